@@ -0,0 +1,153 @@
+/******************************************************************
+ * File:        RequestScope.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread bound scope for the processing of a single request (e.g. a template render).
+ * Resources which must be released at the end of the request, such as streaming
+ * query results, can be registered with the current scope and will be closed
+ * when the scope closes, even if they were not fully consumed.
+ * <p>
+ * The scope also provides a memo table so that repeated identical requests
+ * for data within a single render can be answered without going back to the
+ * source, see {@link #memo(Object, Supplier)}. The memo is discarded when the scope closes.
+ * </p>
+ * <p>
+ * Scopes may be opened in a nested fashion, only the closing of the
+ * outermost scope releases the resources. Typical usage:
+ * </p>
+ * <pre>
+ *   try (RequestScope scope = RequestScope.open()) {
+ *       ...
+ *   }
+ * </pre>
+ */
+public class RequestScope implements AutoCloseable {
+    static Logger log = LoggerFactory.getLogger(RequestScope.class);
+
+    protected static final ThreadLocal<RequestScope> current = new ThreadLocal<>();
+
+    protected final List<AutoCloseable> resources = new ArrayList<>();
+    protected final Map<Object, Object> memo = new HashMap<>();
+    protected int depth = 1;
+
+    protected RequestScope() {
+    }
+
+    /**
+     * Open a scope for the current thread, or join the existing one if already open
+     */
+    public static RequestScope open() {
+        RequestScope scope = current.get();
+        if (scope == null) {
+            scope = new RequestScope();
+            current.set(scope);
+        } else {
+            scope.depth++;
+        }
+        return scope;
+    }
+
+    /**
+     * Return the scope open for the current thread, or null if there is none
+     */
+    public static RequestScope current() {
+        return current.get();
+    }
+
+    /**
+     * Return true if there is a scope open for the current thread
+     */
+    public static boolean isActive() {
+        return current.get() != null;
+    }
+
+    /**
+     * Register a resource to be closed when the current scope closes.
+     * @return false if there is no current scope in which case the caller retains responsibility for the resource
+     */
+    public static boolean register(AutoCloseable resource) {
+        RequestScope scope = current.get();
+        if (scope == null) {
+            return false;
+        }
+        scope.resources.add(resource);
+        return true;
+    }
+
+    /**
+     * Remove a resource which has already been released by its user
+     */
+    public static void deregister(AutoCloseable resource) {
+        RequestScope scope = current.get();
+        if (scope != null) {
+            scope.resources.remove(resource);
+        }
+    }
+
+    /**
+     * Return the value recorded for the key in the current scope, computing and recording
+     * it if not yet known. If there is no current scope the value is simply computed.
+     * Values are only visible to the thread which owns the scope. If the computation
+     * fails nothing is recorded.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T memo(Object key, Supplier<T> compute) {
+        RequestScope scope = current.get();
+        if (scope == null) {
+            return compute.get();
+        }
+        Object value = scope.memo.get(key);
+        if (value == null) {
+            // Not computeIfAbsent, the computation may itself use the memo
+            value = compute.get();
+            if (value != null) {
+                scope.memo.put(key, value);
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * Discard all memoised values in the current scope, if any
+     */
+    public static void clearMemo() {
+        RequestScope scope = current.get();
+        if (scope != null) {
+            scope.memo.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (--depth > 0) {
+            return;
+        }
+        current.remove();
+        memo.clear();
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            try {
+                resources.get(i).close();
+            } catch (Exception e) {
+                log.warn("Failed to release request resource", e);
+            }
+        }
+        resources.clear();
+    }
+}
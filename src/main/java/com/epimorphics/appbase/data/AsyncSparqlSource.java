@@ -0,0 +1,53 @@
+/******************************************************************
+ * File:        AsyncSparqlSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+
+/**
+ * Extension to the SPARQL source signature which allows queries to be issued
+ * without blocking the caller. Allows several independent queries to
+ * be run concurrently and then joined.
+ * <p>
+ * Results are fully materialized, as for the synchronous versions. Failures
+ * are reported by completing the future exceptionally.
+ * </p>
+ */
+public interface AsyncSparqlSource extends SparqlSource {
+
+    /**
+     * Execute a sparql select query returning a future for a local, safe copy of the results.
+     */
+    public CompletableFuture<ResultSet> selectAsync(String query);
+
+    /**
+     * Execute a sparql select query with some variables pre-bound to the values in the given solution.
+     */
+    public CompletableFuture<ResultSet> selectAsync(String query, QuerySolution bindings);
+
+    /**
+     * Fetch the result of a full specified describe query
+     */
+    public CompletableFuture<Graph> describeAsync(String query);
+
+    /**
+     * Execute a construct query
+     */
+    public CompletableFuture<Graph> constructAsync(String query);
+
+    /**
+     * Execute an ASK query
+     */
+    public CompletableFuture<Boolean> askAsync(String query);
+}
@@ -1,5 +1,7 @@
 package com.epimorphics.appbase.data;
 
+import java.util.Map;
+
 import org.apache.jena.rdf.model.Model;
 
 /**
@@ -28,6 +30,17 @@ public interface DatasetAccessor {
      */
     public void putModel(String graphUri, Model data);
 
+    /**
+     * Put (create/replace) a set of named models of a Dataset, keyed by graph URI.
+     * Implementations should override this to group the changes into a single
+     * transaction where they can.
+     */
+    default public void putModels(Map<String, Model> models) {
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            putModel(entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * Delete (which means clear) the default model of a Dataset
      */
@@ -47,5 +60,17 @@ public interface DatasetAccessor {
      * Add statements to a named model of a Dataset
      */
     public void add(String graphUri, Model data);
-}
 
+    /**
+     * Apply a change to a named model of a Dataset, removing the given statements
+     * and then adding the new ones. The default implementation replaces the whole model,
+     * implementations should override this where the change can be applied in place.
+     * Blank nodes in the removals can only be matched by in-place implementations.
+     */
+    default public void applyChanges(String graphUri, Model additions, Model removals) {
+        Model model = getModel(graphUri);
+        model.remove(removals);
+        model.add(additions);
+        putModel(graphUri, model);
+    }
+}
@@ -0,0 +1,105 @@
+/******************************************************************
+ * File:        DescriptionCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import org.apache.jena.graph.Node;
+
+/**
+ * Signature for a bounded, thread-safe cache of resource descriptions
+ * as used by WSource. Implementations must be safe for concurrent
+ * access without external synchronization.
+ */
+public interface DescriptionCache {
+
+    /**
+     * Return the cached description of the node, or null if there is none
+     */
+    public NodeDescription get(Node node);
+
+    /**
+     * Add or replace the cached description of a node
+     */
+    public void put(Node node, NodeDescription description);
+
+    /**
+     * Remove any cached description of the node
+     */
+    public void invalidate(Node node);
+
+    /**
+     * Remove all cached descriptions
+     */
+    public void invalidateAll();
+
+    /**
+     * Return the approximate number of cached descriptions
+     */
+    public long size();
+
+    /**
+     * Return a snapshot of the cache usage statistics
+     */
+    public Stats getStats();
+
+    /**
+     * Snapshot of the usage counters for a cache.
+     */
+    public static class Stats {
+        protected final long hits;
+        protected final long misses;
+        protected final long evictions;
+        protected final long size;
+        protected final long weight;
+
+        public Stats(long hits, long misses, long evictions, long size, long weight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.weight = weight;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Number of cached descriptions
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Total weight (triple count) of the cached descriptions, -1 if not tracked
+         */
+        public long getWeight() {
+            return weight;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 1.0 : (double)hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d evictions=%d size=%d weight=%d", hits, misses, evictions, size, weight);
+        }
+    }
+}
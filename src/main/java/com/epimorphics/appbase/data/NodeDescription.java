@@ -25,11 +25,34 @@ import org.apache.jena.util.iterator.ExtendedIterator;
 public class NodeDescription {
     protected Graph description;
     protected Node root;
+    protected final long created = System.currentTimeMillis();
 
     public NodeDescription(Node root, Graph description) {
         this.description = description;
         this.root = root;
     }
+    
+    /**
+     * Time (in ms since the epoch) at which this description was fetched
+     */
+    public long getCreated() {
+        return created;
+    }
+    
+    /**
+     * Time (in ms) since this description was fetched
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    /**
+     * Return the number of triples in the description, used to weight cache entries.
+     * Always at least one so that empty descriptions still count towards a bound.
+     */
+    public int getWeight() {
+        return description == null ? 1 : Math.max(1, description.size());
+    }
 
     // Subset of Graph interface needed for clients
     
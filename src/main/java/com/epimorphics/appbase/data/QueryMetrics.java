@@ -0,0 +1,275 @@
+/******************************************************************
+ * File:        QueryMetrics.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.apache.jena.atlas.json.JsonArray;
+import org.apache.jena.atlas.json.JsonObject;
+import org.apache.jena.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.data.impl.QueryCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Collects query timing statistics from the sparql sources configured to use it.
+ * Queries are grouped by "shape" - the query text with literal values abstracted out and,
+ * for queries with bound parameters, the unbound query rather than the bound values - and
+ * for each shape records counts, errors, result sizes, bytes received (for remote sources,
+ * where known) and a latency histogram. Queries slower than a threshold are
+ * written to a separate slow query log, including the request id if there is one.
+ * <p>
+ * Intended to be a single shared App component, which templates and admin
+ * endpoints can read via {@link #getShapes()} or {@link #asJson()}.
+ * </p>
+ */
+public class QueryMetrics extends ComponentBase {
+    static Logger log = LoggerFactory.getLogger( QueryMetrics.class );
+
+    public static final String SLOW_LOG = "com.epimorphics.appbase.slowquery";
+    public static final String MDC_REQUEST_ID = "request_id";
+
+    /** Upper bounds of the latency histogram buckets, in ms, the last bucket is unbounded */
+    public static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+    protected static final int MAX_SHAPE_LENGTH = 1000;
+    protected static final Pattern STRING_LITERAL = Pattern.compile("\"(?:[^\"\\\\]|\\\\.)*\"(@[-\\w]+|\\^\\^\\S+)?");
+    protected static final Pattern NUMBER_LITERAL = Pattern.compile("(?<=[\\s(,])[-+]?\\d+(\\.\\d+)?([eE][-+]?\\d+)?(?=[\\s),.;])");
+    protected static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    protected long slowThreshold = 1000;
+    protected int maxShapes = 1000;
+    protected Logger slowLog = LoggerFactory.getLogger(SLOW_LOG);
+    protected Cache<String, ShapeStats> shapes = buildCache();
+    // Keyed by query equality, so separately parsed copies of the same query share an entry
+    protected Cache<Query, String> shapeOf = Caffeine.newBuilder().maximumSize(10000).build();
+
+    /**
+     * Queries taking longer than this many milliseconds are written to the slow query log. Default 1000ms.
+     */
+    public void setSlowThreshold(long ms) {
+        slowThreshold = ms;
+    }
+
+    /**
+     * Set the name of the logger used for the slow query log
+     */
+    public void setSlowLog(String name) {
+        slowLog = LoggerFactory.getLogger(name);
+    }
+
+    /**
+     * Maximum number of distinct query shapes to track, least recently used shapes
+     * are dropped beyond this. Default is 1000.
+     */
+    public void setMaxShapes(long max) {
+        maxShapes = (int) max;
+        shapes = buildCache();
+    }
+
+    private Cache<String, ShapeStats> buildCache() {
+        return Caffeine.newBuilder().maximumSize(maxShapes).build();
+    }
+
+    /**
+     * Record a completed query
+     * @param source the name of the source the query was run against
+     * @param query the query
+     * @param nanos elapsed time in nanoseconds
+     * @param results number of results (rows or triples), or -1 if not known
+     * @param bytes number of bytes received, or -1 if not known
+     * @param error the failure, or null if the query succeeded
+     */
+    public void record(String source, Query query, long nanos, long results, long bytes, Throwable error) {
+        Query template = QueryCache.templateOf(query);
+        String shape = isResourceDescribe(template) ? shape(template) : shapeOf.get(template, QueryMetrics::shape);
+        ShapeStats stats = shapes.get(shape, ShapeStats::new);
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        stats.record(ms, results, bytes, error != null);
+        if (ms >= slowThreshold) {
+            String requestId = MDC.get(MDC_REQUEST_ID);
+            slowLog.warn("Slow query on {} ({}ms, {} results{}{}): {}", source, ms, results,
+                    requestId == null ? "" : ", request " + requestId,
+                    error == null ? "" : ", failed: " + error.getMessage(),
+                    WHITESPACE.matcher(query.toString()).replaceAll(" ").trim());
+        }
+    }
+
+    /**
+     * Return the shape of a query, its text with literals and, for simple describes,
+     * resources replaced by placeholders
+     */
+    public static String shape(Query query) {
+        if (isResourceDescribe(query)) {
+            return "DESCRIBE <uri>" + (query.getResultURIs().size() > 1 ? "..." : "");
+        }
+        String text = WHITESPACE.matcher(query.toString()).replaceAll(" ").trim();
+        text = STRING_LITERAL.matcher(text).replaceAll("?lit");
+        text = NUMBER_LITERAL.matcher(text).replaceAll("?num");
+        return text.length() > MAX_SHAPE_LENGTH ? text.substring(0, MAX_SHAPE_LENGTH) + "..." : text;
+    }
+
+    private static boolean isResourceDescribe(Query query) {
+        return query.isDescribeType() && query.getQueryPattern() == null;
+    }
+
+    /**
+     * Return the statistics for all tracked query shapes, ordered by total time spent
+     */
+    public List<ShapeStats> getShapes() {
+        List<ShapeStats> result = new ArrayList<>( shapes.asMap().values() );
+        result.sort( Comparator.comparingLong(ShapeStats::getTotalTime).reversed() );
+        return result;
+    }
+
+    /**
+     * Discard all statistics
+     */
+    public void reset() {
+        shapes.invalidateAll();
+    }
+
+    /**
+     * Return the statistics in JSON form, for use by admin endpoints
+     */
+    public JsonObject asJson() {
+        JsonObject json = new JsonObject();
+        json.put("slowThreshold", slowThreshold);
+        JsonArray list = new JsonArray();
+        for (ShapeStats stats : getShapes()) {
+            list.add( stats.asJson() );
+        }
+        json.put("shapes", list);
+        return json;
+    }
+
+    /**
+     * Statistics for a single query shape
+     */
+    public static class ShapeStats {
+        protected final String shape;
+        protected final LongAdder count = new LongAdder();
+        protected final LongAdder errors = new LongAdder();
+        protected final LongAdder totalTime = new LongAdder();
+        protected final LongAdder results = new LongAdder();
+        protected final LongAdder bytes = new LongAdder();
+        protected final AtomicLong maxTime = new AtomicLong();
+        protected final LongAdder[] histogram = new LongAdder[BUCKETS.length + 1];
+
+        public ShapeStats(String shape) {
+            this.shape = shape;
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        protected void record(long ms, long resultCount, long byteCount, boolean failed) {
+            count.increment();
+            totalTime.add(ms);
+            maxTime.accumulateAndGet(ms, Math::max);
+            if (failed) errors.increment();
+            if (resultCount > 0) results.add(resultCount);
+            if (byteCount > 0) bytes.add(byteCount);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && ms > BUCKETS[bucket]) bucket++;
+            histogram[bucket].increment();
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getTotalTime() {
+            return totalTime.sum();
+        }
+
+        public long getMaxTime() {
+            return maxTime.get();
+        }
+
+        public long getMeanTime() {
+            long n = getCount();
+            return n == 0 ? 0 : getTotalTime() / n;
+        }
+
+        public long getResults() {
+            return results.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * Counts for each latency bucket, see {@link QueryMetrics#BUCKETS}
+         */
+        public long[] getHistogram() {
+            long[] counts = new long[histogram.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram[i].sum();
+            }
+            return counts;
+        }
+
+        /**
+         * Estimate a latency percentile (0-100) as the upper bound of the histogram
+         * bucket in which it falls, or the max time for the last bucket
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = getHistogram();
+            long total = 0;
+            for (long c : counts) total += c;
+            long target = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && counts[i] > 0) {
+                    return i < BUCKETS.length ? Math.min(BUCKETS[i], getMaxTime()) : getMaxTime();
+                }
+            }
+            return getMaxTime();
+        }
+
+        public JsonObject asJson() {
+            JsonObject json = new JsonObject();
+            json.put("shape", shape);
+            json.put("count", getCount());
+            json.put("errors", getErrors());
+            json.put("totalTime", getTotalTime());
+            json.put("meanTime", getMeanTime());
+            json.put("maxTime", getMaxTime());
+            json.put("p50", getPercentile(50));
+            json.put("p95", getPercentile(95));
+            json.put("p99", getPercentile(99));
+            json.put("results", getResults());
+            json.put("bytes", getBytes());
+            return json;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.epimorphics.appbase.data;
 
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdfconnection.RDFConnection;
+import org.apache.jena.sparql.modify.request.QuadDataAcc;
+import org.apache.jena.sparql.modify.request.UpdateDataDelete;
+import org.apache.jena.sparql.modify.request.UpdateDataInsert;
+import org.apache.jena.update.UpdateRequest;
 
 import java.util.function.Supplier;
 
@@ -71,4 +77,35 @@ public class RDFConnectionDatasetAccessor implements DatasetAccessor {
             cxn.load(graphUri, data);
         }
     }
+
+    /**
+     * Applies the change as a single DELETE DATA/INSERT DATA request so only the
+     * differences are sent. Falls back to a full replace if the removals include
+     * blank nodes, which DELETE DATA can't match.
+     */
+    @Override
+    public void applyChanges(String graphUri, Model additions, Model removals) {
+        if (removals.listStatements().filterKeep( s -> s.getSubject().isAnon() || s.getObject().isAnon() ).hasNext()) {
+            DatasetAccessor.super.applyChanges(graphUri, additions, removals);
+            return;
+        }
+        Node graph = NodeFactory.createURI(graphUri);
+        UpdateRequest request = new UpdateRequest();
+        if (!removals.isEmpty()) {
+            QuadDataAcc quads = new QuadDataAcc();
+            quads.setGraph(graph);
+            removals.getGraph().find().forEachRemaining(quads::addTriple);
+            request.add( new UpdateDataDelete(quads) );
+        }
+        if (!additions.isEmpty()) {
+            QuadDataAcc quads = new QuadDataAcc();
+            quads.setGraph(graph);
+            additions.getGraph().find().forEachRemaining(quads::addTriple);
+            request.add( new UpdateDataInsert(quads) );
+        }
+        if (request.getOperations().isEmpty()) return;
+        try (RDFConnection cxn = cxnFct.get()) {
+            cxn.update(request);
+        }
+    }
 }
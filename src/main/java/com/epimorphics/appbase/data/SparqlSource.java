@@ -12,6 +12,9 @@ package com.epimorphics.appbase.data;
 import java.util.List;
 
 import org.apache.jena.graph.Graph;
+import org.apache.jena.query.ParameterizedSparqlString;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.QuerySolutionMap;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.shared.PrefixMapping;
 import org.apache.jena.update.UpdateRequest;
@@ -30,6 +33,21 @@ public interface SparqlSource {
      */
     public ResultSet select(String query);
     
+    /**
+     * Execute a sparql select query with some variables pre-bound to the values
+     * in the given solution. The query text should be fixed (a template) and
+     * only the bindings vary so that implementations can reuse a parsed form.
+     * The default implementation substitutes the bindings textually.
+     */
+    public default ResultSet select(String query, QuerySolution bindings) {
+        if (bindings == null) {
+            return select(query);
+        }
+        QuerySolutionMap map = new QuerySolutionMap();
+        map.addAll(bindings);
+        return select( new ParameterizedSparqlString(query, map).toString() );
+    }
+    
     /**
      * Execute a sparql select query returning a possibly streamable result set.
      * The result set must be closed to free any associated resources (e.g. an HTTP connection
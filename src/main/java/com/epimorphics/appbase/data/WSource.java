@@ -10,18 +10,36 @@
 package com.epimorphics.appbase.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-
-import org.apache.commons.collections.map.LRUMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.RequestScope;
+import com.epimorphics.appbase.data.impl.ColumnarResultSet;
+import com.epimorphics.appbase.data.impl.StripedLRUDescriptionCache;
+import com.epimorphics.appbase.data.impl.TinyLFUDescriptionCache;
+import com.epimorphics.appbase.data.impl.WResultSetStreaming;
 import com.epimorphics.appbase.data.impl.WResultSetWrapper;
+import com.epimorphics.appbase.util.FutureUtil;
 import com.epimorphics.rdfutil.QueryUtil;
 import com.epimorphics.util.EpiException;
 import com.epimorphics.util.PrefixUtils;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.apache.jena.graph.*;
 import org.apache.jena.mem.GraphMem;
 import org.apache.jena.query.ParameterizedSparqlString;
@@ -32,24 +50,94 @@ import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.DatasetGraphFactory;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.modify.request.UpdateData;
+import org.apache.jena.update.Update;
+import org.apache.jena.update.UpdateRequest;
 import org.apache.jena.util.OneToManyMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A wrapped SPARQL source, designed for easy use from UI scripting.
  * Uses app-wide prefix configuration to expand queries, provides optional caching
  * of resource descriptions to simplify use of remote sources.
+ * <p>
+ * Configuration options for the description cache:
+ * <ul>
+ *   <li>cacheSize - maximum number of cached descriptions, set to zero to suppress caching (default 1000)</li>
+ *   <li>cacheWeight - optional bound on the total number of triples in the cached descriptions,
+ *       takes precedence over cacheSize if set</li>
+ *   <li>cachePolicy - eviction policy, "tinylfu" (default) or "lru"</li>
+ *   <li>cache - an alternative, pre-configured, DescriptionCache implementation</li>
+ *   <li>cacheTTL - optional time (in ms) after which a cached description is discarded</li>
+ *   <li>cacheRefresh - optional time (in ms) after which a cached description is considered stale,
+ *       a stale description is still returned but triggers a background refresh</li>
+ * </ul>
+ * The cache is safe for concurrent access so describe and get calls from concurrent
+ * renders do not serialize on the WSource.
+ * </p>
+ * <p>
+ * Concurrent requests to describe the same resource are coalesced. The first caller
+ * issues the batch describe to the underlying source and any other caller needing
+ * a resource in that batch waits for the same result rather than issuing a duplicate query.
+ * </p>
+ * <p>
+ * As well as a full {@link #resetCache()} the cache supports targeted invalidation of just the
+ * resources affected by a change, see {@link #invalidate(Node...)}, {@link #invalidateSubjects(Graph)}
+ * and {@link #invalidateFor(UpdateRequest)}. Updates made through {@link #update(UpdateRequest)} apply
+ * this automatically, as do changes detected by a {@link com.epimorphics.appbase.monitor.DatasetMonitor}.
+ * </p>
+ * <p>
+ * Select results can be streamed, see {@link #stream(String, Object...)}, so that a render
+ * can start output before the whole result has been retrieved. Setting the <code>streaming</code>
+ * option to true makes this the default for {@link #select(String, Object...)}. Streams are only used
+ * within an open {@link RequestScope} (as set up by VelocityRender) so that any unfinished
+ * stream is closed at the end of the request, otherwise results are materialized as normal.
+ * </p>
+ * <p>
+ * Within an open {@link RequestScope} repeated identical selects, and descriptions of the same
+ * resource, are answered from a memo held by the scope rather than the underlying source.
+ * This is independent of the description cache, only lasts for the one request, and so is safe even for
+ * volatile data. It can be disabled by setting the <code>requestMemo</code> option to false.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
 public class WSource extends ComponentBase {
+    static Logger log = LoggerFactory.getLogger(WSource.class);
+    
     protected static final int DEFAULT_CACHESIZE = 1000;
     
+    public static final String POLICY_TINYLFU = "tinylfu";
+    public static final String POLICY_LRU = "lru";
+    
     protected SparqlSource source;
-    protected Map<Node, NodeDescription> cache;
+    protected boolean streaming = false;
+    protected boolean requestMemo = true;
+    protected volatile DescriptionCache cache;
         // Cache descriptions rather than nodes so we can mutate a WNode with a new description without thread conflicts
+    protected long cacheSize = DEFAULT_CACHESIZE;
+    protected long cacheWeight = 0;
+    protected String cachePolicy = POLICY_TINYLFU;
+    protected long cacheTTL = 0;
+    protected long cacheRefresh = 0;
+    protected boolean customCache = false;
+    
+    // Background refreshes are I/O bound and infrequent so use virtual threads rather than a pool
+    protected static final ExecutorService refreshExecutor = 
+            Executors.newThreadPerTaskExecutor( Thread.ofVirtual().name("wsource-refresh-", 0).factory() );
+    
+    // Incremented on each invalidation so that descriptions fetched across a change are not cached
+    protected final AtomicLong generation = new AtomicLong();
+    
+    // Describe requests currently in progress, used to coalesce duplicate requests
+    protected final ConcurrentMap<Node, CompletableFuture<NodeDescription>> inflight = new ConcurrentHashMap<>();
+    
+    // Prefix expanded forms of query templates, avoids rescanning the query text on each call
+    protected final Cache<String, String> expandedQueries = Caffeine.newBuilder().maximumSize(500).build();
     
     public WSource() {
-        setCacheSize(DEFAULT_CACHESIZE);
+        rebuildCache();
     }
     
     public void setSource(SparqlSource source) {
@@ -60,18 +148,281 @@ public class WSource extends ComponentBase {
      * Sets the size of the WNode cache, set to zero to suppress caching
      * @param size
      */
-    @SuppressWarnings("unchecked")
     public synchronized void setCacheSize(long size) {
-        if (size == 0) {
+        cacheSize = size;
+        rebuildCache();
+    }
+    
+    /**
+     * Sets a bound on the total number of triples held in the cached descriptions.
+     * If set this takes precedence over the size limit.
+     */
+    public synchronized void setCacheWeight(long weight) {
+        cacheWeight = weight;
+        rebuildCache();
+    }
+    
+    /**
+     * Set a time (in milliseconds) after which cached descriptions are discarded. 
+     * Zero (the default) means descriptions only leave the cache by eviction or invalidation.
+     */
+    public synchronized void setCacheTTL(long ttl) {
+        cacheTTL = ttl;
+        rebuildCache();
+    }
+    
+    /**
+     * Set to true to make select stream results when called within a request scope
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+    
+    /**
+     * Set a time (in milliseconds) after which cached descriptions are stale. A stale description
+     * is still returned, so renders don't wait, but triggers a background refresh.
+     * Zero (the default) disables background refresh.
+     */
+    public synchronized void setCacheRefresh(long refresh) {
+        cacheRefresh = refresh;
+    }
+    
+    /**
+     * Set to false to disable memoisation of queries within a request scope
+     */
+    public void setRequestMemo(boolean requestMemo) {
+        this.requestMemo = requestMemo;
+    }
+    
+    /**
+     * Set the cache eviction policy, "tinylfu" (the default) or "lru".
+     */
+    public synchronized void setCachePolicy(String policy) {
+        if ( ! POLICY_TINYLFU.equalsIgnoreCase(policy) && ! POLICY_LRU.equalsIgnoreCase(policy) ) {
+            throw new EpiException("Unrecognized cache policy for WSource: " + policy);
+        }
+        cachePolicy = policy;
+        rebuildCache();
+    }
+    
+    /**
+     * Replace the description cache with a custom implementation, null suppresses caching.
+     * The custom cache is retained, the cache size, weight, TTL and policy settings have no effect on it.
+     */
+    public synchronized void setCache(DescriptionCache cache) {
+        this.cache = cache;
+        customCache = true;
+    }
+    
+    public DescriptionCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * Return the hit/miss/eviction statistics for the description cache, null if caching is suppressed.
+     */
+    public DescriptionCache.Stats getCacheStats() {
+        DescriptionCache c = cache;
+        return c == null ? null : c.getStats();
+    }
+    
+    protected void rebuildCache() {
+        if (customCache) {
+            log.warn("WSource has a custom description cache, ignoring cache size, weight, TTL and policy settings");
+            return;
+        }
+        if (cacheSize == 0) {
             cache = null;
+        } else if (POLICY_LRU.equalsIgnoreCase(cachePolicy)) {
+            cache = new StripedLRUDescriptionCache(cacheSize, cacheWeight);
+        } else {
+            cache = new TinyLFUDescriptionCache(cacheSize, cacheWeight, cacheTTL);
+        }
+    }
+    
+    public void resetCache() {
+        generation.incrementAndGet();
+        DescriptionCache c = cache;
+        if (c != null) {
+            c.invalidateAll();
+        }
+        RequestScope.clearMemo();
+    }
+    
+    /**
+     * Discard any cached descriptions of the given resources.
+     */
+    public void invalidate(Node... nodes) {
+        invalidate( Arrays.asList(nodes) );
+    }
+    
+    /**
+     * Discard any cached descriptions of the given resources.
+     */
+    public void invalidate(Collection<Node> nodes) {
+        generation.incrementAndGet();
+        DescriptionCache c = cache;
+        if (c != null) {
+            for (Node node : nodes) {
+                c.invalidate(node);
+            }
+        }
+        RequestScope.clearMemo();
+    }
+    
+    /**
+     * Discard the cached description of every resource whose description 
+     * could be affected by adding or removing the given triples. Falls back
+     * to a full reset if a blank node subject can't be traced to a described resource.
+     */
+    public void invalidateSubjects(Graph changes) {
+        Set<Node> subjects = describedSubjects(changes);
+        if (subjects == null) {
+            resetCache();
         } else {
-            cache = new LRUMap((int)size);
+            invalidate(subjects);
+        }
+    }
+    
+    /**
+     * Discard the cached descriptions affected by the given update. Only INSERT DATA 
+     * and DELETE DATA operations can be analyzed, any other form of update
+     * results in a full reset.
+     */
+    public void invalidateFor(UpdateRequest request) {
+        Graph changes = GraphMemFactory.createGraphMem();
+        for (Update update : request.getOperations()) {
+            if (update instanceof UpdateData) {
+                ((UpdateData)update).getQuads().forEach( q -> changes.add(q.asTriple()) );
+            } else {
+                resetCache();
+                return;
+            }
+        }
+        invalidateSubjects(changes);
+    }
+    
+    /**
+     * Apply an update to the underlying source and discard any cached descriptions
+     * it affects, see {@link #invalidateFor(UpdateRequest)}.
+     */
+    public void update(UpdateRequest request) {
+        try {
+            source.update(request);
+        } finally {
+            invalidateFor(request);
+        }
+    }
+    
+    /**
+     * Return the set of URI resources whose (closure based) descriptions include any of the 
+     * triples in the graph. Blank node subjects are traced back to the URI resources which
+     * reference them within the same graph. Returns null if some blank node can't be traced
+     * that way, in which case the affected descriptions can't be determined.
+     */
+    public static Set<Node> describedSubjects(Graph graph) {
+        Set<Node> subjects = new HashSet<>();
+        Set<Node> visited = new HashSet<>();
+        List<Node> agenda = new ArrayList<>();
+        graph.find().forEachRemaining( t -> {
+            Node s = t.getSubject();
+            if (s.isURI()) {
+                subjects.add(s);
+            } else if (visited.add(s)) {
+                agenda.add(s);
+            }
+        });
+        while (!agenda.isEmpty()) {
+            Node bnode = agenda.remove(agenda.size() - 1);
+            boolean referenced = false;
+            for (Iterator<Triple> i = graph.find(Node.ANY, Node.ANY, bnode); i.hasNext();) {
+                referenced = true;
+                Node parent = i.next().getSubject();
+                if (parent.isURI()) {
+                    subjects.add(parent);
+                } else if (visited.add(parent)) {
+                    agenda.add(parent);
+                }
+            }
+            if (!referenced) {
+                return null;
+            }
         }
+        return subjects;
     }
     
-    public synchronized void resetCache() {
-        if (cache != null) {
-            cache.clear();
+    /**
+     * Return a usable cached description of the node, or null if there is none.
+     * Descriptions past the TTL are discarded. Stale descriptions are returned
+     * but added to the list of nodes to be refreshed, if one is given.
+     */
+    protected NodeDescription lookup(Node node, List<Node> stale) {
+        Map<Node, NodeDescription> memo = requestDescriptions();
+        if (memo != null && memo.containsKey(node)) {
+            return memo.get(node);
+        }
+        DescriptionCache c = cache;
+        if (c == null) return null;
+        NodeDescription nd = c.get(node);
+        if (nd != null) {
+            long age = nd.getAge();
+            if (cacheTTL > 0 && age > cacheTTL) {
+                c.invalidate(node);
+                return null;
+            }
+            if (cacheRefresh > 0 && age > cacheRefresh && stale != null) {
+                stale.add(node);
+            }
+        }
+        return nd;
+    }
+    
+    /**
+     * Fetch fresh descriptions of the given nodes in the background, replacing the
+     * cached versions. Nodes which are already being described are skipped.
+     */
+    protected void refreshAsync(List<Node> nodes) {
+        List<Node> claimed = new ArrayList<>();
+        List<CompletableFuture<NodeDescription>> claims = new ArrayList<>();
+        for (Node node : nodes) {
+            CompletableFuture<NodeDescription> claim = new CompletableFuture<>();
+            if (inflight.putIfAbsent(node, claim) == null) {
+                claimed.add(node);
+                claims.add(claim);
+            }
+        }
+        if (claimed.isEmpty()) return;
+        Runnable refresh = () -> {
+            try {
+                String[] uris = new String[ claimed.size() ];
+                for (int i = 0; i < uris.length; i++) {
+                    uris[i] = claimed.get(i).getURI();
+                }
+                long gen = generation.get();
+                Graph[] graphs = source.describeEach(uris);
+                for (int i = 0; i < uris.length; i++) {
+                    NodeDescription nd = new NodeDescription(claimed.get(i), graphs[i]);
+                    cachePut(claimed.get(i), nd, gen);
+                    claims.get(i).complete(nd);
+                }
+            } catch (Throwable t) {
+                log.warn("Background refresh of descriptions failed", t);
+                for (CompletableFuture<NodeDescription> claim : claims) {
+                    claim.completeExceptionally(t);
+                }
+            } finally {
+                for (int i = 0; i < claimed.size(); i++) {
+                    inflight.remove(claimed.get(i), claims.get(i));
+                }
+            }
+        };
+        try {
+            refreshExecutor.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            for (int i = 0; i < claimed.size(); i++) {
+                inflight.remove(claimed.get(i), claims.get(i));
+                claims.get(i).cancel(false);
+            }
         }
     }
     
@@ -84,16 +435,111 @@ public class WSource extends ComponentBase {
      * var name and an object to encode as an RDF node.
      */
     public WResultSet select(String query, Object...bindings) {
+        if (streaming) {
+            return stream(query, bindings);
+        }
+        String expandedQuery = expandQuery(query);
+        QuerySolutionMap map = bindings.length == 0 ? null : QueryUtil.createBindings(bindings);
+        if (requestMemo && RequestScope.isActive()) {
+            ColumnarResultSet results = RequestScope.memo( Arrays.asList(this, expandedQuery, bindingsKey(map)),
+                    () -> ColumnarResultSet.materialize( doSelect(expandedQuery, map) ) );
+            return new WResultSetWrapper(results.view(), this);
+        }
+        return new WResultSetWrapper(doSelect(expandedQuery, map), this);
+    }
+    
+    protected ResultSet doSelect(String expandedQuery, QuerySolutionMap map) {
+        return map == null ? source.select(expandedQuery) : source.select(expandedQuery, map);
+    }
+    
+    private static Map<String, RDFNode> bindingsKey(QuerySolutionMap map) {
+        if (map == null) return null;
+        Map<String, RDFNode> key = new HashMap<>();
+        map.varNames().forEachRemaining( v -> key.put(v, map.get(v)) );
+        return key;
+    }
+    
+    /**
+     * Return the descriptions memoised in the current request scope, or null if there is no scope
+     */
+    protected Map<Node, NodeDescription> requestDescriptions() {
+        if (!requestMemo || !RequestScope.isActive()) {
+            return null;
+        }
+        return RequestScope.memo( Arrays.asList(this, NodeDescription.class), HashMap::new );
+    }
+    
+    protected void memoise(Node node, NodeDescription description) {
+        Map<Node, NodeDescription> memo = requestDescriptions();
+        if (memo != null) {
+            memo.put(node, description);
+        }
+    }
+    
+    /**
+     * Start a SPARQL query on the data source without waiting for the results.
+     * If the underlying source does not support asynchronous queries the query
+     * is run immediately and a completed future returned.
+     * 
+     * @param query the query to be executed, prefix declarations will be added 
+     * from the app-wide prefix settings.
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public CompletableFuture<WResultSet> selectAsync(String query, Object...bindings) {
+        if ( ! (source instanceof AsyncSparqlSource) ) {
+            try {
+                return CompletableFuture.completedFuture( select(query, bindings) );
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
         String expandedQuery = expandQuery(query);
-        if (bindings.length != 0) {
-            QuerySolutionMap map = QueryUtil.createBindings(bindings);
+        QuerySolutionMap map = bindings.length == 0 ? null : QueryUtil.createBindings(bindings);
+        return ((AsyncSparqlSource)source).selectAsync(expandedQuery, map)
+                .thenApply( rs -> new WResultSetWrapper(rs, this) );
+    }
+    
+    /**
+     * Run a set of SPARQL queries concurrently, returning the results
+     * in the same order once all have completed. Allows a template to
+     * fan out independent queries so the overall wait is that of the slowest.
+     */
+    public List<WResultSet> selectAll(String...queries) {
+        List<CompletableFuture<WResultSet>> futures = new ArrayList<>(queries.length);
+        for (String query : queries) {
+            futures.add( selectAsync(query) );
+        }
+        return FutureUtil.join(futures);
+    }
+    
+    /**
+     * Run a SPARQL query on the data source, streaming the results.
+     * Results are fetched as they are iterated over and the underlying
+     * connection or transaction is released once iteration completes, or
+     * at the end of the current request scope if not fully iterated.
+     * If there is no current request scope the results are materialized
+     * as for {@link #select(String, Object...)}.
+     * 
+     * @param query the query to be executed, prefix declarations will be added 
+     * from the app-wide prefix settings.
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public WResultSet stream(String query, Object...bindings) {
+        String expandedQuery = expandQuery(query);
+        QuerySolutionMap map = bindings.length == 0 ? null : QueryUtil.createBindings(bindings);
+        if ( ! RequestScope.isActive() ) {
+            return new WResultSetWrapper(source.select(expandedQuery, map), this);
+        }
+        if (map != null) {
             expandedQuery = new ParameterizedSparqlString(expandedQuery, map).toString();
         }
-        return new WResultSetWrapper(source.select(expandedQuery), this);
+        return new WResultSetStreaming(source.streamableSelect(expandedQuery), this);
     }
     
     protected String expandQuery(String query) {
-        return PrefixUtils.expandQuery(query, getApp().getPrefixes());
+        return expandedQueries.get(query, q -> PrefixUtils.expandQuery(q, getApp().getPrefixes()));
     }
     
     // -- Describing and labelling nodes -----------------------------------
@@ -149,18 +595,20 @@ public class WSource extends ComponentBase {
     
     protected void describeList(List<WNode> nodes) {
         List<WNode> batch = new ArrayList<>();
-        synchronized (this) {
-            for (WNode node : nodes) {
-                if ( ! node.isDescribed() ) {
-                    NodeDescription nd = cache == null ? null : cache.get(node);
-                    if (nd != null) {
-                        node.setDescription(nd);
-                    } else {
-                        batch.add(node);
-                    }
+        List<Node> stale = new ArrayList<>();
+        for (WNode node : nodes) {
+            if ( ! node.isDescribed() ) {
+                NodeDescription nd = lookup(node.asNode(), stale);
+                if (nd != null) {
+                    node.setDescription(nd);
+                } else {
+                    batch.add(node);
                 }
             }
         }
+        if (!stale.isEmpty()) {
+            refreshAsync(stale);
+        }
         if (!batch.isEmpty()) {
             WNode[] batchArray = new WNode[ batch.size() ];
             batchArray = batch.toArray(batchArray);
@@ -179,13 +627,26 @@ public class WSource extends ComponentBase {
     }
     
     protected NodeDescription describe(Node node) {
+        long gen = generation.get();
         NodeDescription description = new NodeDescription(node, source.describeAll(node.getURI()));
-        synchronized (this) {
-            if (cache != null) {
-                cache.put(node, description);
+        cachePut(node, description, gen);
+        memoise(node, description);
+        return description;
+    }
+    
+    /**
+     * Cache a description fetched when the cache was at the given generation. 
+     * If an invalidation has happened since then the description may predate the
+     * change, so is not cached, or is withdrawn if the invalidation raced with the put.
+     */
+    protected void cachePut(Node node, NodeDescription description, long startGeneration) {
+        DescriptionCache c = cache;
+        if (c != null && generation.get() == startGeneration) {
+            c.put(node, description);
+            if (generation.get() != startGeneration) {
+                c.invalidate(node);
             }
         }
-        return description;
     }
 
     /**
@@ -197,34 +658,74 @@ public class WSource extends ComponentBase {
                 + "    OPTIONAL {?uri skos:altLabel ?skos_altLabel}\n"
                 + "    OPTIONAL {?uri rdfs:label ?rdfs_label}\n"
                 + "    OPTIONAL {?uri foaf:name ?foaf_name}\n";
+        long gen = generation.get();
         DatasetGraph dsg = constructViews(labelQuery, urisForNodes(nodes));
-        synchronized (this) {
-            for (WNode wnode : nodes) {
-                Node n = wnode.asNode();
-                Graph g = dsg.getGraph(n);
-                if (g != null) {
-                    NodeDescription nd = new NodeDescription(n, g);
-                    if (cache != null) {
-                        cache.put(n, nd);
-                    }
-                    wnode.setDescription(nd);
-                }
+        for (WNode wnode : nodes) {
+            Node n = wnode.asNode();
+            Graph g = dsg.getGraph(n);
+            if (g != null) {
+                NodeDescription nd = new NodeDescription(n, g);
+                cachePut(n, nd, gen);
+                wnode.setDescription(nd);
             }
         }
     }
     
     protected void ensureDescribed(WNode... nodes) {
-        Graph[] graphs = source.describeEach(urisForNodes(nodes));
-        synchronized (this) {
-            for (int i = 0; i < nodes.length; i++) {
-                WNode wnode = nodes[i];
-                Node n = wnode.asNode();
-                Graph g = graphs[i];
-                NodeDescription nd = new NodeDescription(n, g);
-                if (cache != null) {
-                    cache.put(n, nd);
+        // Claim each node not already being described by some other caller
+        List<WNode> owned = new ArrayList<>();
+        List<CompletableFuture<NodeDescription>> ownedFutures = new ArrayList<>();
+        List<WNode> waiting = new ArrayList<>();
+        List<CompletableFuture<NodeDescription>> waitingFutures = new ArrayList<>();
+        for (WNode wnode : nodes) {
+            CompletableFuture<NodeDescription> claim = new CompletableFuture<>();
+            CompletableFuture<NodeDescription> existing = inflight.putIfAbsent(wnode.asNode(), claim);
+            if (existing == null) {
+                owned.add(wnode);
+                ownedFutures.add(claim);
+            } else {
+                waiting.add(wnode);
+                waitingFutures.add(existing);
+            }
+        }
+        
+        if (!owned.isEmpty()) {
+            WNode[] batch = owned.toArray(new WNode[owned.size()]);
+            try {
+                long gen = generation.get();
+                Graph[] graphs = source.describeEach(urisForNodes(batch));
+                for (int i = 0; i < batch.length; i++) {
+                    WNode wnode = batch[i];
+                    Node n = wnode.asNode();
+                    NodeDescription nd = new NodeDescription(n, graphs[i]);
+                    cachePut(n, nd, gen);
+                    memoise(n, nd);
+                    wnode.setDescription(nd);
+                    ownedFutures.get(i).complete(nd);
+                }
+            } catch (Throwable t) {
+                for (CompletableFuture<NodeDescription> future : ownedFutures) {
+                    future.completeExceptionally(t);
+                }
+                throw t;
+            } finally {
+                for (int i = 0; i < batch.length; i++) {
+                    inflight.remove(batch[i].asNode(), ownedFutures.get(i));
                 }
-                wnode.setDescription(nd);
+            }
+        }
+        
+        for (int i = 0; i < waiting.size(); i++) {
+            try {
+                NodeDescription nd = waitingFutures.get(i).join();
+                memoise(waiting.get(i).asNode(), nd);
+                waiting.get(i).setDescription(nd);
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                throw new EpiException(cause);
             }
         }
     }
@@ -250,10 +751,14 @@ public class WSource extends ComponentBase {
      * whatever cached description is already available but will not
      * itself invoke a new query.
      */
-    public synchronized WNode get(Node node) {
+    public WNode get(Node node) {
         if (node == null) return null;
         if (node.isURI()) {
-            NodeDescription nd = cache == null ? null : cache.get(node);
+            List<Node> stale = new ArrayList<>(1);
+            NodeDescription nd = lookup(node, stale);
+            if (!stale.isEmpty()) {
+                refreshAsync(stale);
+            }
             if (nd != null) {
                 return new WNode(this, node, nd);
             }
@@ -344,7 +849,7 @@ public class WSource extends ComponentBase {
      * @return a dataset with a graph for each described node
      */
     public DatasetGraph constructViews(String queryBody, String... uris) {
-        ResultSet rs = source.select( expandQuery( makeViewQuery(queryBody, uris) ) );
+        ResultSet rs = source.select( PrefixUtils.expandQuery( makeViewQuery(queryBody, uris), getApp().getPrefixes() ) );
         DatasetGraph views = DatasetGraphFactory.createGeneral();
         Var var = Var.alloc("uri");
         while (rs.hasNext()) {
@@ -9,50 +9,224 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.appbase.data.AsyncSparqlSource;
 import com.epimorphics.appbase.data.ClosableResultSet;
+import com.epimorphics.appbase.data.QueryMetrics;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.Bulkhead;
+import com.epimorphics.appbase.util.FutureUtil;
 import com.epimorphics.appbase.util.SQueryUtil;
+import com.epimorphics.util.EpiException;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.GraphMemFactory;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.mem.GraphMem;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
-import org.apache.jena.query.ResultSetFactory;
-import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.shared.PrefixMapping;
-import org.apache.jena.sparql.util.Closure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 /**
  * Generic implementation of a sparql source.
+ * <p>
+ * Parsed queries are held in a bounded cache (configuration option
+ * <code>queryCacheSize</code>, default 500, 0 to disable) so that repeated
+ * query shapes are only parsed once. Subclasses execute an already parsed
+ * query via {@link #start(Query)}.
+ * </p>
+ * <p>
+ * The asynchronous query methods run the query on a bounded pool of threads
+ * belonging to the source (configuration options <code>asyncThreads</code>, default 8, and
+ * <code>asyncQueue</code>, default 100). Once the queue is full further requests
+ * are run in the calling thread, which limits the load on the underlying store.
+ * </p>
+ * <p>
+ * Requests to describe many resources are split into batches of at most <code>describeBatchSize</code>
+ * (default 50) resources, which are sent in parallel using the same pool. The combined
+ * result is split into per-resource descriptions in a single pass.
+ * </p>
+ * <p>
+ * If a {@link QueryMetrics} component is configured (<code>metrics</code>) then the
+ * time, result size and outcome of each query is recorded there.
+ * </p>
+ * <p>
+ * The number of concurrently executing queries can be capped by setting <code>maxConcurrent</code>.
+ * Queries beyond this wait in a queue (<code>maxQueued</code>, default 100) for at most <code>queueTimeout</code>
+ * ms (default 30000), after which they fail. Queries from batch work, such as actions, only run when no
+ * interactive query is waiting and can be limited to fewer concurrent queries (<code>maxBatch</code>) to leave
+ * headroom for interactive use. See {@link Bulkhead}.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public abstract class BaseSparqlSource extends ComponentBase implements SparqlSource {
+public abstract class BaseSparqlSource extends ComponentBase implements AsyncSparqlSource, Shutdown {
+    static Logger log = LoggerFactory.getLogger(BaseSparqlSource.class);
+    
+    protected static final int DEFAULT_ASYNC_THREADS = 8;
+    protected static final int DEFAULT_DESCRIBE_BATCH = 50;
+    protected static final int DEFAULT_ASYNC_QUEUE = 100;
+    
+    protected volatile QueryCache queryCache = new QueryCache();
+    protected int asyncThreads = DEFAULT_ASYNC_THREADS;
+    protected int asyncQueue = DEFAULT_ASYNC_QUEUE;
+    protected ThreadPoolExecutor asyncExecutor;
+    protected volatile boolean shutdown = false;
+    protected int describeBatchSize = DEFAULT_DESCRIBE_BATCH;
+    protected QueryMetrics metrics;
+    protected int maxConcurrent = 0;
+    protected int maxBatch = 0;
+    protected int maxQueued = 100;
+    protected long queueTimeout = 30000;
+    protected volatile Bulkhead bulkhead;
+
+    // Marks threads in an async pool so that nested work is run inline rather than queued behind itself
+    protected static final ThreadLocal<Boolean> onAsyncThread = ThreadLocal.withInitial( () -> false );
+
+    /**
+     * Set the maximum number of parsed queries to retain, 0 disables query caching
+     */
+    public void setQueryCacheSize(long size) {
+        queryCache = size > 0 ? new QueryCache(size) : null;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+    
+    /**
+     * Set the maximum number of resources to describe in a single query, 0 for no limit
+     */
+    public void setDescribeBatchSize(long size) {
+        describeBatchSize = (int) size;
+    }
+    
+    /**
+     * Set the maximum number of concurrently executing asynchronous queries
+     */
+    public void setAsyncThreads(long threads) {
+        asyncThreads = (int) threads;
+    }
+    
+    /**
+     * Set the maximum number of asynchronous queries waiting to execute
+     */
+    public void setAsyncQueue(long queue) {
+        asyncQueue = (int) queue;
+    }
+
+    /**
+     * Set a metrics component in which to record query statistics
+     */
+    public void setMetrics(QueryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Set the maximum number of concurrently executing queries, 0 (the default) for no limit
+     */
+    public void setMaxConcurrent(long max) {
+        maxConcurrent = (int) max;
+        bulkhead = null;
+    }
+    
+    /**
+     * Set the maximum number of concurrently executing queries from batch callers
+     */
+    public void setMaxBatch(long max) {
+        maxBatch = (int) max;
+        bulkhead = null;
+    }
+    
+    /**
+     * Set the maximum number of queries waiting to execute when maxConcurrent is reached
+     */
+    public void setMaxQueued(long max) {
+        maxQueued = (int) max;
+        bulkhead = null;
+    }
+    
+    /**
+     * Set the maximum time (in ms) a query will wait to execute when maxConcurrent is reached
+     */
+    public void setQueueTimeout(long timeout) {
+        queueTimeout = timeout;
+        bulkhead = null;
+    }
+    
+    /**
+     * Return the limiter on concurrent queries, or null if there is no limit
+     */
+    public Bulkhead getBulkhead() {
+        Bulkhead b = bulkhead;
+        if (b == null && maxConcurrent > 0) {
+            synchronized (this) {
+                if (bulkhead == null) {
+                    bulkhead = new Bulkhead(maxConcurrent, maxBatch, maxQueued, queueTimeout);
+                }
+                b = bulkhead;
+            }
+        }
+        return b;
+    }
+    
+    /**
+     * Return current usage of the concurrent query limit, or null if there is no limit
+     */
+    public Bulkhead.Stats getBulkheadStats() {
+        Bulkhead b = getBulkhead();
+        return b == null ? null : b.getStats();
+    }
 
     @Override
     public ResultSet select(String queryString) {
-        QueryExecution qexec = start(queryString);
-        try {
-            return ResultSetFactory.makeRewindable( qexec.execSelect() );
-        } finally { 
-            finish(qexec);
-        }
+        return select( parseQuery(queryString) );
+    }
+
+    @Override
+    public ResultSet select(String queryString, QuerySolution bindings) {
+        return select( QueryCache.bind(parseQuery(queryString), bindings) );
+    }
+    
+    protected ResultSet select(Query query) {
+        return exec(query, qexec -> ColumnarResultSet.materialize( qexec.execSelect() ), ColumnarResultSet::size);
     }
 
     @Override
     public <T> List<T> selectVar(String queryString, String varname, Class<T> cls) {
-        QueryExecution qexec = start(queryString);
-        try {
-            return SQueryUtil.resultsFor(qexec.execSelect(), varname, cls);
-        } finally { 
-            finish(qexec);
-        }
+        return exec(parseQuery(queryString), qexec -> SQueryUtil.resultsFor(qexec.execSelect(), varname, cls), List::size);
     }
 
     @Override
@@ -64,67 +238,344 @@ public abstract class BaseSparqlSource extends ComponentBase implements SparqlSo
     public Graph describeAll(String... uris) {
         if (uris.length == 0) return null;
         
-        StringBuffer query = new StringBuffer();
-        query.append("DESCRIBE");
-        for (String uri: uris) {
-            query.append(" <" + uri + ">");
+        List<String[]> batches = batches(uris);
+        if (batches.size() == 1) {
+            return describeBatch(uris);
+        }
+        Graph graph = GraphMemFactory.createGraphMemForModel();
+        for (Graph g : dispatch(batches)) {
+            GraphUtil.addInto(graph, g);
         }
-        return describe(query.toString());
+        return graph;
     }
 
     @Override
     public Graph describe(String query) {
-        QueryExecution qexec = start(query);
-        try {
+        return describe( parseQuery(query) );
+    }
+    
+    protected Graph describe(Query query) {
+        return exec(query, qexec -> {
             Graph graph = GraphMemFactory.createGraphMemForModel();
             for (Iterator<Triple> i = qexec.execDescribeTriples(); i.hasNext();) {
                 graph.add(i.next());
             }
             return graph;
-        } finally { 
-            finish(qexec);
-        }
+        }, Graph::size);
     }
     
     @Override
     public Graph[] describeEach(String... uris) {
-        Model all = ModelFactory.createModelForGraph( describeAll(uris) );
+        Graph[] graphs = new Graph[ uris.length ];
+        if (uris.length == 0) return graphs;
+        
+        List<String[]> batches = batches(uris);
+        List<Graph> results = batches.size() == 1 
+                ? List.of( describeBatch(uris) )
+                : dispatch(batches);
+        int offset = 0;
+        for (int b = 0; b < batches.size(); b++) {
+            String[] batch = batches.get(b);
+            Graph[] split = splitBySubject(results.get(b), batch);
+            System.arraycopy(split, 0, graphs, offset, split.length);
+            offset += split.length;
+        }
+        return graphs;
+    }
+    
+    /**
+     * Divide a set of resources to describe into batches of at most describeBatchSize
+     */
+    protected List<String[]> batches(String[] uris) {
+        List<String[]> batches = new ArrayList<>();
+        int size = describeBatchSize > 0 ? describeBatchSize : uris.length;
+        for (int i = 0; i < uris.length; i += size) {
+            batches.add( Arrays.copyOfRange(uris, i, Math.min(uris.length, i + size)) );
+        }
+        return batches;
+    }
+    
+    /**
+     * Describe each batch, in parallel on the async pool unless already running on it
+     * or holding a query permit (which the pool threads would otherwise wait on)
+     */
+    protected List<Graph> dispatch(List<String[]> batches) {
+        Bulkhead b = getBulkhead();
+        if (onAsyncThread.get() || (b != null && b.isHeld())) {
+            List<Graph> results = new ArrayList<>( batches.size() );
+            for (String[] batch : batches) {
+                results.add( describeBatch(batch) );
+            }
+            return results;
+        }
+        List<CompletableFuture<Graph>> futures = new ArrayList<>( batches.size() );
+        for (String[] batch : batches) {
+            futures.add( async( () -> describeBatch(batch) ) );
+        }
+        return FutureUtil.join(futures);
+    }
+    
+    /**
+     * Issue a single DESCRIBE for a batch of resources. The query is built
+     * directly rather than parsed so that it doesn't displace reusable
+     * queries from the query cache.
+     */
+    protected Graph describeBatch(String[] uris) {
+        long startTime = System.currentTimeMillis();
+        Graph result = describe( describeQuery(uris) );
+        if (log.isDebugEnabled()) {
+            log.debug("Describe batch of {} resources returned {} triples in {}ms", uris.length, result.size(), System.currentTimeMillis() - startTime);
+        }
+        return result;
+    }
+    
+    /**
+     * Build a simple DESCRIBE query for a set of resources
+     */
+    protected static Query describeQuery(String[] uris) {
+        Query query = new Query();
+        query.setQueryDescribeType();
+        for (String uri : uris) {
+            query.addDescribeNode( NodeFactory.createURI(uri) );
+        }
+        return query;
+    }
+    
+    /**
+     * Split a combined description into a separate description for each resource.
+     * Each description includes the triples with that resource as subject and, recursively,
+     * those of any blank node objects. Works from a single index of the triples by subject.
+     */
+    public static Graph[] splitBySubject(Graph all, String[] uris) {
+        Map<Node, List<Triple>> bySubject = new HashMap<>();
+        all.find().forEachRemaining( t -> bySubject.computeIfAbsent(t.getSubject(), k -> new ArrayList<>()).add(t) );
+        
         Graph[] graphs = new Graph[ uris.length ];
         for (int i = 0; i < uris.length; i++) {
-            graphs[i] = Closure.closure( all.createResource(uris[i]), false).getGraph();
-
+            Graph graph = GraphMemFactory.createGraphMemForModel();
+            Set<Node> visited = new HashSet<>();
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.add( NodeFactory.createURI(uris[i]) );
+            while (!pending.isEmpty()) {
+                Node subject = pending.poll();
+                if (!visited.add(subject)) continue;
+                for (Triple t : bySubject.getOrDefault(subject, List.of())) {
+                    graph.add(t);
+                    if (t.getObject().isBlank()) {
+                        pending.add( t.getObject() );
+                    }
+                }
+            }
+            graphs[i] = graph;
         }
         return graphs;
     }
 
     @Override
     public Graph construct(String queryString) {
-        QueryExecution qexec = start(queryString);
-        try {
+        return exec(parseQuery(queryString), qexec -> {
             Graph graph = GraphMemFactory.createGraphMemForModel();
             for (Iterator<Triple> i = qexec.execConstructTriples(); i.hasNext();) {
                 graph.add(i.next());
             }
             return graph;
-        } finally {
-            finish(qexec);
-        }
+        }, Graph::size);
     }
     
     @Override
     public boolean ask(String queryString) {
-        QueryExecution qexec = start(queryString);
+        return exec(parseQuery(queryString), QueryExecution::execAsk, b -> 1);
+    }
+
+    // -- Asynchronous access ----------------------------------------------
+    
+    @Override
+    public CompletableFuture<ResultSet> selectAsync(String query) {
+        return async( () -> select(query) );
+    }
+    
+    @Override
+    public CompletableFuture<ResultSet> selectAsync(String query, QuerySolution bindings) {
+        return async( () -> select(query, bindings) );
+    }
+    
+    @Override
+    public CompletableFuture<Graph> describeAsync(String query) {
+        return async( () -> describe(query) );
+    }
+    
+    @Override
+    public CompletableFuture<Graph> constructAsync(String query) {
+        return async( () -> construct(query) );
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> askAsync(String query) {
+        return async( () -> ask(query) );
+    }
+    
+    /**
+     * Run a task on the asynchronous query pool, preserving the caller's logging context
+     */
+    protected <T> CompletableFuture<T> async(Supplier<T> task) {
+        ThreadPoolExecutor executor;
         try {
-            return qexec.execAsk();
-        } finally {
-            finish(qexec);
+            executor = getAsyncExecutor();
+        } catch (EpiException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        Bulkhead.Lane lane = Bulkhead.getLane();
+        try {
+            return CompletableFuture.supplyAsync( () -> {
+                Map<String, String> previous = MDC.getCopyOfContextMap();
+                boolean wasAsync = onAsyncThread.get();
+                setMDC(mdc);
+                onAsyncThread.set(true);
+                try {
+                    return Bulkhead.runAs(lane, task);
+                } finally {
+                    onAsyncThread.set(wasAsync);
+                    setMDC(previous);
+                }
+            }, executor );
+        } catch (RejectedExecutionException e) {
+            // Only possible if shutdown raced with the submission
+            return CompletableFuture.failedFuture( new EpiException("Sparql source has been shut down: " + getName()) );
         }
     }
-
-    abstract protected QueryExecution start(String queryString);
+    
+    protected static void setMDC(Map<String, String> context) {
+        if (context == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(context);
+        }
+    }
+    
+    protected synchronized ThreadPoolExecutor getAsyncExecutor() {
+        if (shutdown) {
+            throw new EpiException("Sparql source has been shut down: " + getName());
+        }
+        if (asyncExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            String prefix = (getName() == null ? "sparql" : getName()) + "-async-";
+            asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(asyncQueue),
+                    r -> {
+                        Thread t = new Thread(r, prefix + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    (r, executor) -> {
+                        // Run in the caller when saturated, as CallerRunsPolicy, but don't silently drop after shutdown
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Async pool shut down");
+                        }
+                        r.run();
+                    } );
+            asyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return asyncExecutor;
+    }
+    
+    /**
+     * Stop the async query pool. Any later asynchronous or parallel
+     * query on this source fails rather than starting a new pool.
+     */
+    @Override
+    public void shutdown() {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            shutdown = true;
+            executor = asyncExecutor;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Return the parsed form of a query, reusing a previous parse if available
+     */
+    public Query parseQuery(String queryString) {
+        QueryCache qc = queryCache;
+        return qc == null ? QueryCache.doParse(queryString) : qc.parse(queryString);
+    }
+    
+    protected QueryExecution start(String queryString) {
+        return start( parseQuery(queryString) );
+    }
+    
+    /**
+     * Start execution of a parsed query. The query may be shared
+     * with other threads and must not be modified.
+     */
+    abstract protected QueryExecution start(Query query);
     
     abstract protected void finish(QueryExecution qexec);
     
+    /**
+     * Run a query, once admitted by any concurrency limit, finishing it afterwards
+     * and recording its statistics if metrics are enabled
+     */
+    protected <T> T exec(Query query, Function<QueryExecution, T> run, ToLongFunction<T> size) {
+        Bulkhead.Permit permit = admit();
+        long startTime = System.nanoTime();
+        T result = null;
+        Throwable error = null;
+        QueryExecution qexec = null;
+        try {
+            qexec = start(query);
+            result = run.apply(qexec);
+            return result;
+        } catch (RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            try {
+                if (qexec != null) {
+                    finish(qexec);
+                }
+            } finally {
+                if (permit != null) {
+                    permit.release();
+                }
+            }
+            record(query, startTime, result == null ? -1 : size.applyAsLong(result), -1, error);
+        }
+    }
+    
+    /**
+     * Wait to be admitted by the concurrent query limit
+     * @return permit to be released when the query completes, or null if there is no limit
+     */
+    protected Bulkhead.Permit admit() {
+        Bulkhead b = getBulkhead();
+        return b == null ? null : b.acquire();
+    }
+    
+    /**
+     * Wait to be admitted by the concurrent query limit, for a query which will complete
+     * on some other thread
+     * @return permit to be released when the query completes, or null if there is no limit
+     */
+    protected Bulkhead.Permit admitAsync() {
+        Bulkhead b = getBulkhead();
+        return b == null ? null : b.acquireAsync();
+    }
+    
+    /**
+     * Record statistics for a completed query, if metrics are enabled
+     * @param startTime value of System.nanoTime() when the query started
+     */
+    protected void record(Query query, long startTime, long results, long bytes, Throwable error) {
+        QueryMetrics qm = metrics;
+        if (qm != null && query != null) {
+            qm.record(getName(), query, System.nanoTime() - startTime, results, bytes, error);
+        }
+    }
+    
     public PrefixMapping getPrefixes() {
         return getApp().getPrefixes();
     }
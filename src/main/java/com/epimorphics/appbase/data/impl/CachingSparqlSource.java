@@ -0,0 +1,531 @@
+/******************************************************************
+ * File:        CachingSparqlSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphMemFactory;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryParseException;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementVisitorBase;
+import org.apache.jena.sparql.syntax.ElementWalker;
+import org.apache.jena.update.UpdateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.data.ClosableResultSet;
+import com.epimorphics.appbase.data.DatasetAccessor;
+import com.epimorphics.appbase.data.DescriptionCache;
+import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.SQueryUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Wraps a sparql source with a shared, in-memory cache of query results.
+ * <p>
+ * Select, ask, construct and describe results are cached keyed by the normalized
+ * (parsed and reserialized) query so that trivial differences in layout share an entry.
+ * Streamable selects are not cached. Configuration options:
+ * </p>
+ * <ul>
+ *  <li>source - the sparql source to wrap</li>
+ *  <li>cacheSize - maximum number of cached results (default 1000), only used if no weight bound</li>
+ *  <li>cacheWeight - maximum total size of cached results, measured in result cells or triples</li>
+ *  <li>cacheTTL - maximum time, in ms, for which a result is cached (default 0 means no time limit)</li>
+ * </ul>
+ * <p>
+ * Updates passing through this source (or its accessor) invalidate the cache. SPARQL
+ * updates invalidate everything. Graph store writes only invalidate results from
+ * queries which might have touched that graph. A query is regarded as confined to
+ * a set of graphs if it has an explicit FROM dataset or if its pattern
+ * consists solely of <code>GRAPH &lt;uri&gt;</code> blocks, any other query is assumed
+ * to depend on all graphs. Changes made to the underlying store by other routes are not
+ * seen so use of <code>cacheTTL</code> is recommended in that case.
+ * </p>
+ */
+public class CachingSparqlSource extends ComponentBase implements SparqlSource {
+    static Logger log = LoggerFactory.getLogger(CachingSparqlSource.class);
+
+    protected static final int DEFAULT_CACHESIZE = 1000;
+
+    protected SparqlSource source;
+    protected long cacheSize = DEFAULT_CACHESIZE;
+    protected long cacheWeight = 0;
+    protected long cacheTTL = 0;
+
+    protected volatile Cache<String, Entry> cache;
+    protected final QueryCache queries = new QueryCache();
+    protected final Cache<String, QueryKey> keys = Caffeine.newBuilder().maximumSize(DEFAULT_CACHESIZE).build();
+
+    // Incremented on each invalidation so that results computed across an update are not cached
+    protected final AtomicLong generation = new AtomicLong();
+
+    public CachingSparqlSource() {
+        rebuildCache();
+    }
+
+    public CachingSparqlSource(SparqlSource source) {
+        this();
+        this.source = source;
+    }
+
+    public void setSource(SparqlSource source) {
+        this.source = source;
+    }
+
+    public SparqlSource getSource() {
+        return source;
+    }
+
+    public void setCacheSize(long size) {
+        cacheSize = size;
+        rebuildCache();
+    }
+
+    public void setCacheWeight(long weight) {
+        cacheWeight = weight;
+        rebuildCache();
+    }
+
+    public void setCacheTTL(long ttl) {
+        cacheTTL = ttl;
+        rebuildCache();
+    }
+
+    protected void rebuildCache() {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+        if (cacheWeight > 0) {
+            builder.maximumWeight(cacheWeight).weigher( (String key, Entry e) -> e.weight );
+        } else {
+            builder.maximumSize(cacheSize);
+        }
+        if (cacheTTL > 0) {
+            builder.expireAfterWrite(cacheTTL, TimeUnit.MILLISECONDS);
+        }
+        cache = builder.build();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Remove all cached results
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Remove cached results which might depend on the given graph.
+     * @param graphUri the graph which has changed, null for the default graph
+     */
+    public void invalidateGraph(String graphUri) {
+        generation.incrementAndGet();
+        cache.asMap().values().removeIf( e -> e.graphs == null || (graphUri != null && e.graphs.contains(graphUri)) );
+    }
+
+    /**
+     * Return the approximate number of cached results
+     */
+    public long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Return a snapshot of the cache usage statistics
+     */
+    public DescriptionCache.Stats getStats() {
+        var stats = cache.stats();
+        long weight = cache.policy().eviction()
+                .filter( e -> e.isWeighted() )
+                .map( e -> e.weightedSize().orElse(-1) )
+                .orElse(-1L);
+        return new DescriptionCache.Stats(stats.hitCount(), stats.missCount(), stats.evictionCount(), cache.estimatedSize(), weight);
+    }
+
+    // -- Cache access ----------------------------------------------------
+
+    /**
+     * Normalized cache key for a query, null if the query can't be parsed
+     * locally in which case it is passed through uncached.
+     */
+    protected QueryKey keyFor(String queryString) {
+        QueryKey key = keys.getIfPresent(queryString);
+        if (key == null) {
+            try {
+                key = keyFor( queries.parse(queryString) );
+            } catch (QueryParseException e) {
+                log.debug("Not caching unparseable query: {}", e.getMessage());
+                return null;
+            }
+            keys.put(queryString, key);
+        }
+        return key;
+    }
+
+    protected QueryKey keyFor(Query query) {
+        return new QueryKey(query.serialize(), graphsFor(query));
+    }
+
+    protected QueryKey keyFor(String queryString, QuerySolution bindings) {
+        QueryKey template = keyFor(queryString);
+        if (template == null || bindings == null) {
+            return template;
+        }
+        return keyFor( QueryCache.bind(queries.parse(queryString), bindings) );
+    }
+
+    /**
+     * Return the set of graphs the query is confined to or null if it
+     * may depend on any graph.
+     */
+    protected static Set<String> graphsFor(Query query) {
+        if (query.hasDatasetDescription()) {
+            Set<String> graphs = new HashSet<>( query.getGraphURIs() );
+            graphs.addAll( query.getNamedGraphURIs() );
+            return graphs;
+        }
+        Element pattern = query.getQueryPattern();
+        if ( !(pattern instanceof ElementGroup) ) {
+            return null;
+        }
+        List<Element> elements = ((ElementGroup)pattern).getElements();
+        if (elements.isEmpty()) {
+            return null;
+        }
+        Set<String> graphs = new HashSet<>();
+        for (Element element : elements) {
+            if ( !(element instanceof ElementNamedGraph) ) {
+                return null;
+            }
+        }
+        boolean[] variable = new boolean[]{ false };
+        ElementWalker.walk(pattern, new ElementVisitorBase() {
+            @Override
+            public void visit(ElementNamedGraph el) {
+                Node graph = el.getGraphNameNode();
+                if (graph.isURI()) {
+                    graphs.add( graph.getURI() );
+                } else {
+                    variable[0] = true;
+                }
+            }
+        });
+        return variable[0] ? null : graphs;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> T lookup(String key) {
+        Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : (T) entry.value;
+    }
+
+    protected void store(String key, Object value, long weight, Set<String> graphs, long startGeneration) {
+        if (generation.get() == startGeneration) {
+            Cache<String, Entry> c = cache;
+            Entry entry = new Entry(value, weight, graphs);
+            c.put(key, entry);
+            // An invalidation may have run between the check and the put, if so withdraw the entry
+            if (generation.get() != startGeneration) {
+                c.asMap().remove(key, entry);
+            }
+        }
+    }
+
+    protected static Graph copy(Graph graph) {
+        Graph result = GraphMemFactory.createGraphMemForModel();
+        GraphUtil.addInto(result, graph);
+        return result;
+    }
+
+    // -- SparqlSource implementation -------------------------------------
+
+    @Override
+    public ResultSet select(String query) {
+        return select( keyFor(query), () -> source.select(query) );
+    }
+
+    @Override
+    public ResultSet select(String query, QuerySolution bindings) {
+        return select( keyFor(query, bindings), () -> source.select(query, bindings) );
+    }
+
+    protected ResultSet select(QueryKey key, Supplier<ResultSet> exec) {
+        if (key == null) {
+            return exec.get();
+        }
+        ColumnarResultSet result = lookup(key.text);
+        if (result == null) {
+            long gen = generation.get();
+            ResultSet rs = exec.get();
+            result = (rs instanceof ColumnarResultSet) ? (ColumnarResultSet)rs : ColumnarResultSet.materialize(rs);
+            store(key.text, result, Math.max(1, (long)result.size() * result.getResultVars().size()), key.graphs, gen);
+        }
+        return result.view();
+    }
+
+    @Override
+    public ClosableResultSet streamableSelect(String query) {
+        return source.streamableSelect(query);
+    }
+
+    @Override
+    public <T> List<T> selectVar(String query, String varname, Class<T> cls) {
+        return SQueryUtil.resultsFor(select(query), varname, cls);
+    }
+
+    @Override
+    public Graph describe(String query) {
+        return graphQuery( keyFor(query), () -> source.describe(query) );
+    }
+
+    @Override
+    public Graph construct(String query) {
+        return graphQuery( keyFor(query), () -> source.construct(query) );
+    }
+
+    protected Graph graphQuery(QueryKey key, Supplier<Graph> exec) {
+        if (key == null) {
+            return exec.get();
+        }
+        Graph result = lookup(key.text);
+        if (result == null) {
+            long gen = generation.get();
+            result = exec.get();
+            store(key.text, copy(result), result.size(), key.graphs, gen);
+            return result;
+        }
+        return copy(result);
+    }
+
+    @Override
+    public Graph describeAll(String... uris) {
+        String key = "DESCRIBE <" + String.join("> <", uris) + ">";
+        Graph result = lookup(key);
+        if (result == null) {
+            long gen = generation.get();
+            result = source.describeAll(uris);
+            if (result != null) {
+                store(key, copy(result), result.size(), null, gen);
+            }
+            return result;
+        }
+        return copy(result);
+    }
+
+    @Override
+    public Graph[] describeEach(String... uris) {
+        Graph[] results = new Graph[ uris.length ];
+        List<String> missing = new ArrayList<>();
+        List<Integer> missingIndex = new ArrayList<>();
+        for (int i = 0; i < uris.length; i++) {
+            Graph cached = lookup( describeEachKey(uris[i]) );
+            if (cached == null) {
+                missing.add( uris[i] );
+                missingIndex.add( i );
+            } else {
+                results[i] = copy(cached);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long gen = generation.get();
+            Graph[] fetched = source.describeEach( missing.toArray(new String[missing.size()]) );
+            for (int i = 0; i < fetched.length; i++) {
+                Graph g = fetched[i];
+                results[ missingIndex.get(i) ] = g;
+                if (g != null) {
+                    store(describeEachKey(missing.get(i)), copy(g), Math.max(1, g.size()), null, gen);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String describeEachKey(String uri) {
+        return "DESCRIBE-EACH <" + uri + ">";
+    }
+
+    @Override
+    public boolean ask(String query) {
+        QueryKey key = keyFor(query);
+        if (key == null) {
+            return source.ask(query);
+        }
+        Boolean result = lookup(key.text);
+        if (result == null) {
+            long gen = generation.get();
+            result = source.ask(query);
+            store(key.text, result, 1, key.graphs, gen);
+        }
+        return result;
+    }
+
+    @Override
+    public void update(UpdateRequest update) {
+        try {
+            source.update(update);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public boolean isUpdateable() {
+        return source.isUpdateable();
+    }
+
+    @Override
+    public DatasetAccessor getAccessor() {
+        DatasetAccessor accessor = source.getAccessor();
+        return accessor == null ? null : new CachingAccessor(accessor);
+    }
+
+    @Override
+    public PrefixMapping getPrefixes() {
+        return source.getPrefixes();
+    }
+
+    // -- Internals -------------------------------------------------------
+
+    protected static class QueryKey {
+        protected final String text;
+        protected final Set<String> graphs;
+
+        public QueryKey(String text, Set<String> graphs) {
+            this.text = text;
+            this.graphs = graphs;
+        }
+    }
+
+    protected static class Entry {
+        protected final Object value;
+        protected final int weight;
+        protected final Set<String> graphs;
+
+        public Entry(Object value, long weight, Set<String> graphs) {
+            this.value = value;
+            this.weight = (int) Math.min(Integer.MAX_VALUE, weight);
+            this.graphs = graphs;
+        }
+    }
+
+    /**
+     * Accessor which passes writes through to the underlying source
+     * and invalidates any cached results for the affected graph.
+     */
+    public class CachingAccessor implements DatasetAccessor {
+        protected DatasetAccessor accessor;
+
+        public CachingAccessor(DatasetAccessor accessor) {
+            this.accessor = accessor;
+        }
+
+        @Override
+        public Model getModel() {
+            return accessor.getModel();
+        }
+
+        @Override
+        public Model getModel(String graphUri) {
+            return accessor.getModel(graphUri);
+        }
+
+        @Override
+        public void putModel(Model data) {
+            try {
+                accessor.putModel(data);
+            } finally {
+                invalidateGraph(null);
+            }
+        }
+
+        @Override
+        public void putModel(String graphUri, Model data) {
+            try {
+                accessor.putModel(graphUri, data);
+            } finally {
+                invalidateGraph(graphUri);
+            }
+        }
+
+        @Override
+        public void putModels(Map<String, Model> models) {
+            try {
+                accessor.putModels(models);
+            } finally {
+                models.keySet().forEach( CachingSparqlSource.this::invalidateGraph );
+            }
+        }
+
+        @Override
+        public void deleteDefault() {
+            try {
+                accessor.deleteDefault();
+            } finally {
+                invalidateGraph(null);
+            }
+        }
+
+        @Override
+        public void deleteModel(String graphUri) {
+            try {
+                accessor.deleteModel(graphUri);
+            } finally {
+                invalidateGraph(graphUri);
+            }
+        }
+
+        @Override
+        public void add(Model data) {
+            try {
+                accessor.add(data);
+            } finally {
+                invalidateGraph(null);
+            }
+        }
+
+        @Override
+        public void add(String graphUri, Model data) {
+            try {
+                accessor.add(graphUri, data);
+            } finally {
+                invalidateGraph(graphUri);
+            }
+        }
+
+        @Override
+        public void applyChanges(String graphUri, Model additions, Model removals) {
+            try {
+                accessor.applyChanges(graphUri, additions, removals);
+            } finally {
+                invalidateGraph(graphUri);
+            }
+        }
+    }
+}
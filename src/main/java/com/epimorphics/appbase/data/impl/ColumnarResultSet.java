@@ -0,0 +1,216 @@
+/******************************************************************
+ * File:        ColumnarResultSet.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetRewindable;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.core.ResultBinding;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBuilder;
+
+/**
+ * Compact, fully materialized result set. Values are stored column-wise, one
+ * array of nodes per variable (null for unbound), with repeated nodes interned
+ * so that each distinct value is held only once. Row Bindings are only created
+ * as they are requested.
+ * <p>
+ * The column data is immutable once built so any number of independent
+ * cursors can be created over it using {@link #view()}. Each cursor is
+ * itself not thread safe.
+ * </p>
+ */
+public class ColumnarResultSet implements ResultSetRewindable {
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected final List<String> varNames;
+    protected final Var[] vars;
+    protected final Node[][] columns;
+    protected final int size;
+    protected int cursor = 0;
+    protected Model model;
+
+    protected ColumnarResultSet(List<String> varNames, Var[] vars, Node[][] columns, int size) {
+        this.varNames = varNames;
+        this.vars = vars;
+        this.columns = columns;
+        this.size = size;
+    }
+
+    /**
+     * Consume the given result set and return a columnar copy of it.
+     */
+    public static ColumnarResultSet materialize(ResultSet results) {
+        List<String> varNames = Collections.unmodifiableList( new ArrayList<>(results.getResultVars()) );
+        int width = varNames.size();
+        Var[] vars = new Var[width];
+        for (int i = 0; i < width; i++) {
+            vars[i] = Var.alloc( varNames.get(i) );
+        }
+        int capacity = INITIAL_CAPACITY;
+        Node[][] columns = new Node[width][capacity];
+        Map<Node, Node> dictionary = new HashMap<>();
+        int size = 0;
+        while (results.hasNext()) {
+            Binding row = results.nextBinding();
+            if (size == capacity) {
+                capacity *= 2;
+                for (int i = 0; i < width; i++) {
+                    columns[i] = Arrays.copyOf(columns[i], capacity);
+                }
+            }
+            for (int i = 0; i < width; i++) {
+                Node value = row.get(vars[i]);
+                if (value != null) {
+                    Node shared = dictionary.putIfAbsent(value, value);
+                    columns[i][size] = shared == null ? value : shared;
+                }
+            }
+            size++;
+        }
+        for (int i = 0; i < width; i++) {
+            if (columns[i].length != size) {
+                columns[i] = Arrays.copyOf(columns[i], size);
+            }
+        }
+        return new ColumnarResultSet(varNames, vars, columns, size);
+    }
+
+    /**
+     * Return an empty result set with the given result variables
+     */
+    public static ColumnarResultSet empty(List<String> varNames) {
+        int width = varNames.size();
+        Var[] vars = new Var[width];
+        for (int i = 0; i < width; i++) {
+            vars[i] = Var.alloc( varNames.get(i) );
+        }
+        return new ColumnarResultSet(Collections.unmodifiableList( new ArrayList<>(varNames) ), vars, new Node[width][0], 0);
+    }
+
+    /**
+     * Return a new cursor over the same results, positioned at the first row.
+     */
+    public ColumnarResultSet view() {
+        return new ColumnarResultSet(varNames, vars, columns, size);
+    }
+
+    /**
+     * Current cursor position, the index of the row that will be returned next.
+     */
+    public int position() {
+        return cursor;
+    }
+
+    /**
+     * Return the value of the given column in the given row, null if unbound
+     */
+    public Node get(int row, int column) {
+        return columns[column][row];
+    }
+
+    /**
+     * Return the index of the named variable, -1 if not a result variable
+     */
+    public int columnIndex(String varname) {
+        return varNames.indexOf(varname);
+    }
+
+    /**
+     * Return a Binding for an arbitrary row, does not affect the cursor
+     */
+    public Binding getBinding(int row) {
+        BindingBuilder builder = Binding.builder();
+        for (int i = 0; i < vars.length; i++) {
+            Node value = columns[i][row];
+            if (value != null) {
+                builder.add(vars[i], value);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < size;
+    }
+
+    @Override
+    public QuerySolution next() {
+        return nextSolution();
+    }
+
+    @Override
+    public QuerySolution nextSolution() {
+        return new ResultBinding(getResourceModel(), nextBinding());
+    }
+
+    @Override
+    public Binding nextBinding() {
+        if (cursor >= size) {
+            throw new NoSuchElementException();
+        }
+        return getBinding(cursor++);
+    }
+
+    @Override
+    public int getRowNumber() {
+        return cursor;
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return varNames;
+    }
+
+    @Override
+    public Model getResourceModel() {
+        if (model == null) {
+            model = ModelFactory.createDefaultModel();
+        }
+        return model;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public ResultSetRewindable rewindable() {
+        return this;
+    }
+
+    @Override
+    public ResultSet materialise() {
+        return this;
+    }
+
+    public void close() {
+        cursor = size;
+    }
+}
@@ -9,6 +9,10 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
 import com.epimorphics.appbase.data.DatasetAccessor;
 import com.epimorphics.appbase.data.RDFConnectionDatasetAccessor;
 import org.apache.jena.graph.Graph;
@@ -19,7 +23,7 @@ import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
-import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ReadWrite;
 import org.apache.jena.query.text.EntityDefinition;
 import org.apache.jena.query.text.TextDatasetFactory;
 import org.apache.jena.rdf.model.Model;
@@ -40,10 +44,17 @@ import org.slf4j.LoggerFactory;
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.Startup;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.Bulkhead;
 
 /**
  * An in-memory source which supports graph access.
  * No built in initialization - subclass or initialize using a suitably ConfigMonitor.
+ * <p>
+ * By default access is controlled by the dataset's MRSW lock. In {@link #setSnapshot(boolean) snapshot}
+ * mode the data is held in a transactional in-memory dataset instead, readers see an immutable
+ * version of the data without taking any lock and each update builds a new version which is
+ * published atomically on commit. Suits read-heavy data which is rarely updated.
+ * </p>
  * @see FileSparqlSource
  */
 public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSource, Startup {
@@ -51,6 +62,8 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
     protected DatasetGraph graphStore;
     protected DatasetAccessor accessor;
     protected String indexSpec = null;
+    protected boolean snapshot = false;
+    protected final ThreadLocal<int[]> readDepth = ThreadLocal.withInitial( () -> new int[1] );
     
     /**
      * Configuration call to enable text indexing of the loaded data.
@@ -62,9 +75,24 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
         this.indexSpec = indexSpec;
     }
     
+    /**
+     * Set to true to use a transactional in-memory dataset which gives readers a
+     * lock free snapshot of the data. Must be set before startup.
+     */
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+    
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+    
     @Override
     public void startup(App app) {
         super.startup(app);
+        if (snapshot) {
+            dataset = createSnapshotDataset();
+        }
         if (indexSpec != null) {
             Directory dir = new ByteBuffersDirectory();
             // We have a choice of a single index of all predicates or separate indexes, could make this configurable
@@ -85,48 +113,131 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
         
     }
 
+    /**
+     * Create the dataset used in snapshot mode
+     */
+    protected Dataset createSnapshotDataset() {
+        return DatasetFactory.createTxnMem();
+    }
+
     @Override
     public Graph describeAll(String... uris) {
-        dataset.getLock().enterCriticalSection(true);
-        Model description = ModelFactory.createDefaultModel();
-        for (String uri: uris) {
-            Closure.closure( dataset.getDefaultModel().createResource(uri), false, description);
-        }
-        dataset.getLock().leaveCriticalSection();
-        return description.getGraph();
+        return closures(uris, () -> {
+            Model description = ModelFactory.createDefaultModel();
+            for (String uri: uris) {
+                Closure.closure( dataset.getDefaultModel().createResource(uri), false, description);
+            }
+            return description.getGraph();
+        }, Graph::size);
     }
 
     @Override
     public Graph[] describeEach(String... resources) {
-        dataset.getLock().enterCriticalSection(true);
-        Graph[] graphs = new Graph[resources.length];
-        for (int i = 0; i < resources.length; i++) {
-            String uri = resources[i];
-            graphs[i] = Closure.closure( dataset.getDefaultModel().createResource(uri), false).getGraph();
+        return closures(resources, () -> {
+            Graph[] graphs = new Graph[resources.length];
+            for (int i = 0; i < resources.length; i++) {
+                String uri = resources[i];
+                graphs[i] = Closure.closure( dataset.getDefaultModel().createResource(uri), false).getGraph();
+            }
+            return graphs;
+        }, graphs -> Arrays.stream(graphs).mapToLong(Graph::size).sum());
+    }
+    
+    /**
+     * Compute closure based descriptions under read access, once admitted by any
+     * concurrency limit, recording them in any metrics as the equivalent DESCRIBE query
+     */
+    protected <T> T closures(String[] uris, Supplier<T> run, ToLongFunction<T> size) {
+        Bulkhead.Permit permit = admit();
+        long startTime = System.nanoTime();
+        T result = null;
+        Throwable error = null;
+        try {
+            beginRead();
+            try {
+                result = run.get();
+                return result;
+            } finally {
+                endRead();
+            }
+        } catch (RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
+            if (metrics != null && uris.length > 0) {
+                record(describeQuery(uris), startTime, result == null ? -1 : size.applyAsLong(result), -1, error);
+            }
         }
-        dataset.getLock().leaveCriticalSection();
-        return graphs;
     }
     
     @Override
-    protected QueryExecution start(String queryString) {
-        Query query = QueryFactory.create(queryString) ;
+    protected QueryExecution start(Query query) {
         QueryExecution qexec = QueryExecutionFactory.create(query, dataset) ;
-        dataset.getLock().enterCriticalSection(true);
+        beginRead();
         return qexec;
     }
     
     @Override
     protected void finish(QueryExecution qexec) {
         qexec.close() ;
-        dataset.getLock().leaveCriticalSection();
+        endRead();
     }
 
     @Override
     public void update(UpdateRequest update) {
-        dataset.getLock().enterCriticalSection(true);
-        UpdateExec.dataset(getGraphStore()).update(update).execute();
-        dataset.getLock().leaveCriticalSection();
+        write( () -> UpdateExec.dataset(getGraphStore()).update(update).execute() );
+    }
+    
+    /**
+     * Start read access to the dataset, a read transaction in snapshot mode, otherwise
+     * a read lock. Calls may be nested, must be matched by {@link #endRead()}.
+     */
+    protected void beginRead() {
+        if (snapshot) {
+            int[] depth = readDepth.get();
+            if (depth[0]++ == 0) {
+                dataset.begin(ReadWrite.READ);
+            }
+        } else {
+            dataset.getLock().enterCriticalSection(true);
+        }
+    }
+    
+    protected void endRead() {
+        if (snapshot) {
+            int[] depth = readDepth.get();
+            if (--depth[0] == 0) {
+                dataset.end();
+            }
+        } else {
+            dataset.getLock().leaveCriticalSection();
+        }
+    }
+    
+    /**
+     * Run a change to the dataset, as a single write transaction in snapshot mode, 
+     * otherwise under the write lock.
+     */
+    protected void write(Runnable action) {
+        if (snapshot) {
+            dataset.begin(ReadWrite.WRITE);
+            try {
+                action.run();
+                dataset.commit();
+            } finally {
+                dataset.end();
+            }
+        } else {
+            dataset.getLock().enterCriticalSection(false);
+            try {
+                action.run();
+            } finally {
+                dataset.getLock().leaveCriticalSection();
+            }
+        }
     }
 
     @Override
@@ -137,7 +248,8 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
     @Override
     public DatasetAccessor getAccessor() {
         if (accessor == null) {
-            accessor = RDFConnectionDatasetAccessor.create(() -> RDFConnection.connect(dataset));
+            accessor = snapshot ? new TransactionalDatasetAccessor(dataset)
+                    : RDFConnectionDatasetAccessor.create(() -> RDFConnection.connect(dataset));
         }
         return accessor;
     }
@@ -11,16 +11,23 @@ package com.epimorphics.appbase.data.impl;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import org.apache.jena.rdf.model.Model;
 import org.apache.jena.riot.RDFDataMgr;
-import org.apache.jena.util.FileManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.util.EpiException;
 
 /**
  * SparqlSource which serves a set of files from a single union
@@ -32,6 +39,8 @@ public class FileSparqlSource extends DatasetSparqlSource implements SparqlSourc
     static Logger log = LoggerFactory.getLogger( FileSparqlSource.class );
     
     protected String fileSpec = "";
+    protected int loadThreads = Runtime.getRuntime().availableProcessors();
+    protected RDFSnapshotCache snapshots;
     
     /**
      * Configuration call to set file or directories from which to load,
@@ -41,32 +50,94 @@ public class FileSparqlSource extends DatasetSparqlSource implements SparqlSourc
         this.fileSpec = fileSpec;
     }
     
+    /**
+     * Number of threads used to parse the files in parallel. 
+     * Defaults to the number of processors.
+     */
+    public void setLoadThreads(long threads) {
+        this.loadThreads = (int) threads;
+    }
+    
+    /**
+     * Set a directory in which to keep binary snapshots of the parsed files,
+     * so that unchanged files need not be re-parsed on restart.
+     */
+    public void setSnapshotDir(String dir) {
+        snapshots = new RDFSnapshotCache( asFile(dir) );
+    }
+    
     public void startup(App app) {
         super.startup(app);
         reload();
     }
     
-    private void load(File f) {
-        RDFDataMgr.read(dataset.getDefaultModel(), f.getPath());
-        log.info("Loaded file: {}", f);
-    }
-    
     /**
-     * Reload the configured files and directories
+     * Reload the configured files and directories. The files are parsed in parallel
+     * and then swapped in by a single write, so queries see either the
+     * old or the new data.
      */
     public void reload() {
-        // Clear old data to prevent bNode duplication
-        dataset.getDefaultModel().removeAll();
+        List<File> files = new ArrayList<>();
         for (String fname : fileSpec.split(",")) {
             File f = asFile(fname);
             if (f.isDirectory()) {
                 for (String file : Objects.requireNonNull(f.list(new RDFFileNames()))) {
-                    load( new File(f, file) );
+                    files.add( new File(f, file) );
                 }
             } else {
-                load(f);
+                files.add(f);
             }
         }
+        long start = System.currentTimeMillis();
+        List<Model> models = parseAll(files);
+        long parsed = System.currentTimeMillis();
+        
+        write( () -> {
+            // Clear old data to prevent bNode duplication
+            Model target = dataset.getDefaultModel();
+            target.removeAll();
+            for (Model model : models) {
+                target.add(model);
+                target.setNsPrefixes(model);
+            }
+        });
+        log.info("Loaded {} files, parsed in {}ms, total {}ms", files.size(), parsed - start, System.currentTimeMillis() - start);
+    }
+    
+    private List<Model> parseAll(List<File> files) {
+        int threads = Math.min(loadThreads, files.size());
+        if (threads <= 1) {
+            List<Model> models = new ArrayList<>(files.size());
+            for (File f : files) {
+                models.add( load(f) );
+            }
+            return models;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Model>> parses = new ArrayList<>(files.size());
+            for (File f : files) {
+                parses.add( pool.submit( () -> load(f) ) );
+            }
+            List<Model> models = new ArrayList<>(files.size());
+            for (Future<Model> parse : parses) {
+                models.add( parse.get() );
+            }
+            return models;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted during load", e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new EpiException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private Model load(File f) {
+        Model model = snapshots == null ? RDFDataMgr.loadModel( f.getPath() ) : snapshots.loadModel(f);
+        log.info("Loaded file: {}", f);
+        return model;
     }
     
     public static class RDFFileNames implements FilenameFilter {
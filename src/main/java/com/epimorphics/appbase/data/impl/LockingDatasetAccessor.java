@@ -9,6 +9,8 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.util.Map;
+
 import com.epimorphics.appbase.data.DatasetAccessor;
 import com.epimorphics.appbase.data.RDFConnectionDatasetAccessor;
 import org.apache.jena.query.Dataset;
@@ -73,6 +75,21 @@ public class LockingDatasetAccessor implements DatasetAccessor {
         }
     }
 
+    /**
+     * Puts all the models within a single write lock.
+     */
+    @Override
+    public void putModels(Map<String, Model> models) {
+        dataset.getLock().enterCriticalSection(false);
+        try {
+            for (Map.Entry<String, Model> entry : models.entrySet()) {
+                wrapped.putModel(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            dataset.getLock().leaveCriticalSection();
+        }
+    }
+
     @Override
     public void deleteDefault() {
         dataset.getLock().enterCriticalSection(false);
@@ -112,6 +129,20 @@ public class LockingDatasetAccessor implements DatasetAccessor {
             dataset.getLock().leaveCriticalSection();
         }
     }
-    
+
+    /**
+     * Applies the change directly to the named model rather than replacing it.
+     */
+    @Override
+    public void applyChanges(String graphUri, Model additions, Model removals) {
+        dataset.getLock().enterCriticalSection(false);
+        try {
+            Model model = dataset.getNamedModel(graphUri);
+            model.remove(removals);
+            model.add(additions);
+        } finally {
+            dataset.getLock().leaveCriticalSection();
+        }
+    }
 
 }
@@ -15,31 +15,68 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import com.epimorphics.appbase.data.DatasetAccessor;
 import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.atlas.json.JsonObject;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.RDFWriter;
 import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.update.UpdateFactory;
 import org.apache.jena.update.UpdateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
 import com.epimorphics.appbase.data.ClosableResultSet;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.tasks.Action;
+import com.epimorphics.appbase.tasks.impl.BaseAction;
+import com.epimorphics.json.JsonUtil;
+import com.epimorphics.tasks.ProgressMonitorReporter;
 import com.epimorphics.util.EpiException;
 import com.epimorphics.util.FileUtil;
 
 /**
  * Wraps a sparql source with support for logging all updates
  * to a directory of update files.
+ * <p>
+ * Alternatively, if a {@link #setJournalDirectory(String) journal directory} is set, updates
+ * are recorded in a single segmented, append-only {@link UpdateJournal}. Journal entries are
+ * written and synced by a background thread in groups, callers wait for their entry to be
+ * durable (unless journalSync is false) but not for a separate file sync each. The journal can be
+ * replayed onto a restored backup, up to a given point in time, using {@link #getReplayAction()}.
+ * </p>
+ * <p>
+ * Changes are journaled after they have been applied to the wrapped source, so that updates
+ * which fail are never recorded. If the journal entry then can't be written the update
+ * throws an exception but the change remains applied. From then on the journal is disabled
+ * and further updates are rejected before they are applied, so the store never silently
+ * moves ahead of the journal by more than that one failed batch.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
+public class LoggingSparqlSource extends ComponentBase implements SparqlSource, Shutdown {
+    static Logger log = LoggerFactory.getLogger( LoggingSparqlSource.class );
+    
     public static final String OP_PUT = "PUT";
     public static final String OP_DELETE = "DELETE";
     public static final String OP_UPDATE = "UPDATE";
@@ -48,8 +85,13 @@ public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
     
     protected SparqlSource source;
     protected File logDir;
+    protected File journalDir;
+    protected long segmentSize = UpdateJournal.DEFAULT_SEGMENT_SIZE;
+    protected boolean journalSync = true;
+    protected UpdateJournal journal;
     
-    protected long counter = 0;
+    protected final AtomicLong counter = new AtomicLong();
+    protected final Object writeLock = new Object();
     
     public void setSource(SparqlSource source) {
         this.source = source;
@@ -60,10 +102,82 @@ public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
         FileUtil.ensureDir(dir);
     }
     
+    /**
+     * Record updates in a segmented journal in the given directory instead of
+     * as separate files in the log directory.
+     */
+    public void setJournalDirectory(String dir) {
+        this.journalDir = asFile(dir);
+    }
+    
+    /**
+     * Size in bytes at which the journal moves to a new segment file, default 64MB
+     */
+    public void setSegmentSize(long size) {
+        this.segmentSize = size;
+    }
+    
+    /**
+     * If true (the default) an update does not return until its journal entry
+     * is on disk. If false updates return once the entry is queued, so a crash
+     * can lose the most recent updates.
+     */
+    public void setJournalSync(boolean sync) {
+        this.journalSync = sync;
+    }
+    
+    protected synchronized UpdateJournal getJournal() {
+        if (journal == null) {
+            journal = new UpdateJournal(journalDir, segmentSize);
+        }
+        return journal;
+    }
+    
+    @Override
+    public synchronized void shutdown() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+    
+    /**
+     * Apply a change to the wrapped source and record it. In journal mode the change and 
+     * the journal append are made under a lock so that the journal order matches the order
+     * in which changes were applied, the wait for the entry to be synced is outside the lock
+     * so concurrent changes share a sync. The change is refused if the journal has been
+     * disabled by an earlier write failure.
+     */
+    protected void logged(String op, String graph, Runnable change, Supplier<String> body, Runnable fileLog) {
+        if (journalDir == null) {
+            change.run();
+            fileLog.run();
+            return;
+        }
+        CompletableFuture<Long> done;
+        synchronized (writeLock) {
+            UpdateJournal j = getJournal();
+            j.checkWritable();
+            change.run();
+            done = j.append(op, graph, body.get());
+        }
+        if (journalSync) {
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                throw new EpiException("Failed to journal update", e.getCause());
+            }
+        }
+    }
+    
+    protected static String serialize(Model model) {
+        return RDFWriter.source(model).lang(Lang.NTRIPLES).asString();
+    }
+    
     // The logging operations
     protected OutputStream startLogEntry(String op, String model, String format) throws IOException {
         String logname = String.format( "%s-%d-%s.%s",
-                new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-S").format(new Date()), counter++, op , format);
+                new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-S").format(new Date()), counter.getAndIncrement(), op , format);
         File logfile = new File(logDir, logname);
         BufferedOutputStream out = new BufferedOutputStream( new FileOutputStream(logfile) );
         String header = String.format("# %s %s\n", op, model);
@@ -105,6 +219,11 @@ public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
         return source.select(query);
     }
 
+    @Override
+    public ResultSet select(String query, QuerySolution bindings) {
+        return source.select(query, bindings);
+    }
+
     @Override
     public ClosableResultSet streamableSelect(String query) {
         return source.streamableSelect(query);
@@ -112,7 +231,7 @@ public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
 
     @Override
     public <T> List<T> selectVar(String query, String varname, Class<T> cls) {
-        return selectVar(query, varname, cls);
+        return source.selectVar(query, varname, cls);
     }
 
     @Override
@@ -143,8 +262,7 @@ public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
 
     @Override
     public void update(UpdateRequest update) {
-        source.update(update);
-        logUpdate(update);
+        logged(OP_UPDATE, DEFAULT_MODEL, () -> source.update(update), update::toString, () -> logUpdate(update));
     }
 
     @Override
@@ -176,40 +294,151 @@ public class LoggingSparqlSource extends ComponentBase implements SparqlSource {
 
         @Override
         public void putModel(Model data) {
-            source.getAccessor().putModel(data);
-            logEntry(OP_PUT, DEFAULT_MODEL, data);
+            logged(OP_PUT, DEFAULT_MODEL, () -> source.getAccessor().putModel(data), () -> serialize(data), () -> logEntry(OP_PUT, DEFAULT_MODEL, data));
         }
 
         @Override
         public void putModel(String graphUri, Model data) {
-            source.getAccessor().putModel(graphUri, data);
-            logEntry(OP_PUT, graphUri, data);
+            logged(OP_PUT, graphUri, () -> source.getAccessor().putModel(graphUri, data), () -> serialize(data), () -> logEntry(OP_PUT, graphUri, data));
         }
 
         @Override
         public void deleteDefault() {
-            source.getAccessor().deleteDefault();
-            logEntry(OP_DELETE, DEFAULT_MODEL);
+            logged(OP_DELETE, DEFAULT_MODEL, () -> source.getAccessor().deleteDefault(), () -> null, () -> logEntry(OP_DELETE, DEFAULT_MODEL));
         }
 
         @Override
         public void deleteModel(String graphUri) {
-            source.getAccessor().deleteModel(graphUri);
-            logEntry(OP_DELETE, graphUri);
+            logged(OP_DELETE, graphUri, () -> source.getAccessor().deleteModel(graphUri), () -> null, () -> logEntry(OP_DELETE, graphUri));
         }
 
         @Override
         public void add(Model data) {
-            source.getAccessor().add(data);
-            logEntry(OP_ADD, DEFAULT_MODEL, data);
+            logged(OP_ADD, DEFAULT_MODEL, () -> source.getAccessor().add(data), () -> serialize(data), () -> logEntry(OP_ADD, DEFAULT_MODEL, data));
         }
 
         @Override
         public void add(String graphUri, Model data) {
-            source.getAccessor().add(graphUri, data);
-            logEntry(OP_ADD, graphUri, data);
+            logged(OP_ADD, graphUri, () -> source.getAccessor().add(graphUri, data), () -> serialize(data), () -> logEntry(OP_ADD, graphUri, data));
         }
         
     }
     
+    /**
+     * Apply the journal entries in a directory to a source, skipping entries
+     * before since and stopping at the first entry after until (both in ms since epoch).
+     * Returns the number of entries applied.
+     */
+    public static long replay(File journalDir, SparqlSource target, long since, long until) {
+        long[] count = { 0 };
+        UpdateJournal.read(journalDir, entry -> {
+            if (entry.timestamp < since || entry.timestamp > until) return;
+            DatasetAccessor accessor = target.getAccessor();
+            boolean isDefault = DEFAULT_MODEL.equals(entry.graph);
+            switch (entry.op) {
+            case OP_UPDATE:
+                target.update( UpdateFactory.create(entry.body) );
+                break;
+            case OP_PUT:
+                if (isDefault) accessor.putModel( parse(entry.body) ); else accessor.putModel(entry.graph, parse(entry.body));
+                break;
+            case OP_ADD:
+                if (isDefault) accessor.add( parse(entry.body) ); else accessor.add(entry.graph, parse(entry.body));
+                break;
+            case OP_DELETE:
+                if (isDefault) accessor.deleteDefault(); else accessor.deleteModel(entry.graph);
+                break;
+            default:
+                throw new EpiException("Unknown journal operation: " + entry.op);
+            }
+            count[0]++;
+        });
+        return count[0];
+    }
+    
+    protected static Model parse(String ntriples) {
+        Model model = ModelFactory.createDefaultModel();
+        RDFParser.fromString(ntriples, Lang.NTRIPLES).parse(model);
+        return model;
+    }
+    
+    /**
+     * Return an action which rebuilds the wrapped store from the journal. 
+     * Parameters are "backup", the name of a backup file to restore first (only supported
+     * if the wrapped source is a TDBSparqlSource), "since" and "until", ISO 8601 instants 
+     * limiting which journal entries are applied. If a backup is given then "since" defaults 
+     * to the time the backup was started.
+     * <p>
+     * Entries made while the backup was being started may be applied twice,
+     * which is harmless for the usual idempotent forms of update.
+     * </p>
+     */
+    public Action getReplayAction() {
+        return new ReplayAction();
+    }
+    
+    public class ReplayAction extends BaseAction {
+        public static final String BACKUP_PARAM = "backup";
+        public static final String SINCE_PARAM = "since";
+        public static final String UNTIL_PARAM = "until";
+        
+        @Override
+        public String getName() {
+            return "replay";
+        }
+
+        @Override
+        protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+            if (journalDir == null) {
+                monitor.reportError("No journal directory configured");
+                return JsonUtil.emptyObject();
+            }
+            String backup = getStringParameter(parameters, BACKUP_PARAM, null);
+            long since = 0;
+            if (backup != null) {
+                if ( !(source instanceof TDBSparqlSource) ) {
+                    monitor.reportError("Restoring a backup is only supported for TDB sources");
+                    return JsonUtil.emptyObject();
+                }
+                JsonObject restored = ((TDBSparqlSource)source).getRestoreAction().run( JsonUtil.makeJson("file", backup), monitor );
+                if (!restored.hasKey("quads")) {
+                    monitor.reportError("Failed to restore backup " + backup);
+                    return JsonUtil.emptyObject();
+                }
+                since = backupTime(backup);
+            }
+            try {
+                String sinceParam = getStringParameter(parameters, SINCE_PARAM, null);
+                if (sinceParam != null) since = Instant.parse(sinceParam).toEpochMilli();
+                String untilParam = getStringParameter(parameters, UNTIL_PARAM, null);
+                long until = untilParam == null ? Long.MAX_VALUE : Instant.parse(untilParam).toEpochMilli();
+
+                monitor.report("Replaying journal from " + journalDir);
+                long count;
+                synchronized (writeLock) {
+                    count = replay(journalDir, source, since, until);
+                }
+                monitor.report("Replayed " + count + " journal entries");
+                log.info("Replayed {} journal entries from {}", count, journalDir);
+                return JsonUtil.makeJson("replayed", count);
+            } catch (DateTimeParseException e) {
+                monitor.reportError("Illegal time parameter: " + e.getMessage());
+            } catch (RuntimeException e) {
+                log.warn("Exception during journal replay", e);
+                monitor.reportError("Exception during journal replay: " + e);
+            }
+            return JsonUtil.emptyObject();
+        }
+        
+        // Backup files are named backup-{timestamp}.nq.gz, see TDBSparqlSource
+        protected long backupTime(String backup) {
+            String name = new File(backup).getName();
+            try {
+                String stamp = name.substring("backup-".length(), name.lastIndexOf('-'));
+                return new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss_SSS").parse(stamp).getTime();
+            } catch (ParseException | IndexOutOfBoundsException e) {
+                throw new EpiException("Can't determine time of backup " + backup + ", specify since explicitly");
+            }
+        }
+    }
 }
@@ -10,6 +10,7 @@
 package com.epimorphics.appbase.data.impl;
 
 import com.epimorphics.appbase.data.DatasetAccessor;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.rdf.model.Model;
@@ -43,9 +44,9 @@ public class ModelSparqlSource extends BaseSparqlSource implements SparqlSource
     }
 
     @Override
-    protected QueryExecution start(String queryString) {
+    protected QueryExecution start(Query query) {
         model.enterCriticalSection(true);
-        return QueryExecutionFactory.create(queryString, model);
+        return QueryExecutionFactory.create(query, model);
     }
 
     @Override
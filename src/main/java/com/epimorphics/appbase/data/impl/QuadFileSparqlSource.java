@@ -9,6 +9,8 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.io.File;
+
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.riot.RDFDataMgr;
 import org.slf4j.Logger;
@@ -16,6 +18,7 @@ import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.data.impl.UnionDatasetSparqlSource.UnionDatasetGraphMem;
+import com.epimorphics.util.EpiException;
 
 /**
  * Sparql source which serves an in-memory dataset intialized
@@ -26,6 +29,7 @@ public class QuadFileSparqlSource extends DatasetSparqlSource {
     
     protected String fileSpec = "";
     protected boolean unionDefault = false;
+    protected RDFSnapshotCache snapshots;
     
     /**
      * Configuration call to define quad file to load
@@ -41,6 +45,14 @@ public class QuadFileSparqlSource extends DatasetSparqlSource {
         this.unionDefault = unionDefault;
     }
     
+    /**
+     * Set a directory in which to keep a binary snapshot of the parsed file,
+     * so that it need not be re-parsed on restart if unchanged.
+     */
+    public void setSnapshotDir(String dir) {
+        snapshots = new RDFSnapshotCache( asFile(dir) );
+    }
+    
     public void startup(App app) {
         super.startup(app);
         reload();
@@ -51,9 +63,18 @@ public class QuadFileSparqlSource extends DatasetSparqlSource {
      */
     public void reload() {
         if (unionDefault) {
+            if (snapshot) {
+                throw new EpiException("Snapshot mode is not supported for union datasets");
+            }
             dataset = DatasetFactory.wrap( new UnionDatasetGraphMem() );
         }
-        RDFDataMgr.read(dataset, fileSpec);
+        write( () -> {
+            if (snapshots == null) {
+                RDFDataMgr.read(dataset, fileSpec);
+            } else {
+                snapshots.read(dataset.asDatasetGraph(), new File(fileSpec));
+            }
+        });
         log.info("Loaded " + fileSpec);
     }
 
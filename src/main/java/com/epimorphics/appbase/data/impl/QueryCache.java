@@ -0,0 +1,105 @@
+/******************************************************************
+ * File:        QueryCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.syntax.syntaxtransform.QueryTransformOps;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Bounded cache of parsed queries, keyed by the full (prefix expanded) query text.
+ * Applications typically issue a few hundred distinct query shapes many times over
+ * so this avoids re-parsing on every request.
+ * <p>
+ * Cached Query objects are shared between threads and must be treated as immutable.
+ * Use {@link #bind(Query, QuerySolution)} to inject parameter values, which returns
+ * a transformed copy rather than modifying the cached query.
+ * </p>
+ */
+public class QueryCache {
+    public static final int DEFAULT_SIZE = 500;
+    
+    protected final Cache<String, Query> cache;
+    
+    // Queries created by bind, held weakly by identity, mapped to the template they were bound from
+    protected static final Cache<Query, Query> templates = Caffeine.newBuilder().weakKeys().maximumSize(10000).build();
+    
+    public QueryCache() {
+        this(DEFAULT_SIZE);
+    }
+    
+    public QueryCache(long size) {
+        cache = Caffeine.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * Return the parsed form of the query, from the cache if possible.
+     * Parse errors are thrown as normal and not cached.
+     */
+    public Query parse(String queryString) {
+        return cache.get(queryString, QueryCache::doParse);
+    }
+    
+    protected static Query doParse(String queryString) {
+        Query query = QueryFactory.create(queryString);
+        // Compute lazily derived state now, before the query is shared
+        query.setResultVars();
+        return query;
+    }
+    
+    /**
+     * Return a copy of the query with the variables bound in the solution replaced
+     * by their values. Works at the syntax level so the query is not re-serialized
+     * or re-parsed. Returns the query itself if there are no bindings.
+     */
+    public static Query bind(Query query, QuerySolution bindings) {
+        if (bindings == null) {
+            return query;
+        }
+        Map<Var, Node> substitutions = new HashMap<>();
+        for (Iterator<String> i = bindings.varNames(); i.hasNext();) {
+            String var = i.next();
+            substitutions.put(Var.alloc(var), bindings.get(var).asNode());
+        }
+        if (substitutions.isEmpty()) {
+            return query;
+        }
+        Query bound = QueryTransformOps.transform(query, substitutions);
+        templates.put(bound, templateOf(query));
+        return bound;
+    }
+    
+    /**
+     * Return the unbound query from which the given query was created by {@link #bind(Query, QuerySolution)},
+     * or the query itself if it was not created that way (or is no longer tracked).
+     */
+    public static Query templateOf(Query query) {
+        Query template = templates.getIfPresent(query);
+        return template == null ? query : template;
+    }
+    
+    public long size() {
+        return cache.estimatedSize();
+    }
+    
+    public void clear() {
+        cache.invalidateAll();
+    }
+}
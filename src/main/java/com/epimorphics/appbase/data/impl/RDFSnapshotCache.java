@@ -0,0 +1,259 @@
+/******************************************************************
+ * File:        RDFSnapshotCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * On-disk cache of parsed RDF files in binary RDF Thrift form, used to avoid
+ * re-parsing unchanged source files on restart. Each snapshot is keyed by the
+ * absolute path of the source file and is only used if the source's size and
+ * modification time match those recorded when the snapshot was made.
+ * Snapshots are memory-mapped when read.
+ * <p>
+ * Failure to read or write a snapshot is logged and the source file is parsed
+ * as normal, so the cache directory can be safely cleared at any time.
+ * </p>
+ */
+public class RDFSnapshotCache {
+    static Logger log = LoggerFactory.getLogger( RDFSnapshotCache.class );
+
+    protected static final String SUFFIX = ".rt";
+
+    protected File dir;
+
+    public RDFSnapshotCache(File dir) {
+        FileUtil.ensureDir( dir.getPath() );
+        this.dir = dir;
+    }
+
+    /**
+     * Return the contents of the given RDF file, from a snapshot if there is a valid one,
+     * otherwise by parsing the file and then recording a snapshot for next time.
+     */
+    public Model loadModel(File source) {
+        Model model = ModelFactory.createDefaultModel();
+        File snapshot = snapshotFor(source);
+        if (snapshot != null && snapshot.isFile()) {
+            try {
+                readSnapshot(snapshot, StreamRDFLib.graph(model.getGraph()));
+                log.debug("Loaded {} from snapshot", source);
+                return model;
+            } catch (Exception e) {
+                log.warn("Failed to read snapshot of {}, reparsing", source, e);
+                snapshot.delete();
+                model = ModelFactory.createDefaultModel();
+            }
+        }
+        Model parsed = model;
+        RDFDataMgr.read(parsed, source.getPath());
+        if (snapshot != null) {
+            writeSnapshot(snapshot, out -> RDFDataMgr.write(out, parsed, RDFFormat.RDF_THRIFT));
+        }
+        return parsed;
+    }
+
+    /**
+     * Read the given RDF file into a dataset, which should initially be empty,
+     * from a snapshot if there is a valid one otherwise by parsing the file
+     * and recording a snapshot for next time.
+     */
+    public void read(DatasetGraph target, File source) {
+        File snapshot = snapshotFor(source);
+        if (snapshot != null && snapshot.isFile()) {
+            try {
+                readSnapshot(snapshot, StreamRDFLib.dataset(target));
+                log.debug("Loaded {} from snapshot", source);
+                return;
+            } catch (Exception e) {
+                log.warn("Failed to read snapshot of {}, reparsing", source, e);
+                snapshot.delete();
+                target.clear();
+            }
+        }
+        if (snapshot == null) {
+            RDFDataMgr.read(target, source.getPath());
+            return;
+        }
+        // Parse once, sending the data both to the target and to the snapshot
+        boolean[] parsed = {false};
+        writeSnapshot(snapshot, out -> {
+            StreamRDF writer = StreamRDFWriter.getWriterStream(out, RDFFormat.RDF_THRIFT);
+            writer.start();
+            RDFParser.source( source.getPath() ).parse( new Tee(StreamRDFLib.dataset(target), writer) );
+            parsed[0] = true;
+            writer.finish();
+        });
+        if (!parsed[0]) {
+            // Snapshot failed before the parse completed, reparse directly so any syntax errors are reported
+            target.clear();
+            RDFDataMgr.read(target, source.getPath());
+        }
+    }
+
+    /**
+     * Return the snapshot file which would be valid for the current state of the source,
+     * or null if the source is not a local file.
+     */
+    protected File snapshotFor(File source) {
+        if (!source.isFile()) {
+            return null;
+        }
+        return new File(dir, keyFor(source) + "-" + source.length() + "-" + source.lastModified() + SUFFIX);
+    }
+
+    protected static String keyFor(File source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest( source.getAbsolutePath().getBytes(StandardCharsets.UTF_8) );
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new EpiException(e);
+        }
+    }
+
+    protected void readSnapshot(File snapshot, StreamRDF dest) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            InputStream in;
+            if (channel.size() <= Integer.MAX_VALUE) {
+                in = new ByteBufferInputStream( channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) );
+            } else {
+                in = new BufferedInputStream( Files.newInputStream(snapshot.toPath()), 256 * 1024 );
+            }
+            try (InputStream input = in) {
+                RDFParser.source(input).lang(RDFLanguages.RDFTHRIFT).parse(dest);
+            }
+        }
+    }
+
+    protected interface SnapshotWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Write a snapshot via a temporary file and then replace any older
+     * snapshots of the same source.
+     */
+    protected void writeSnapshot(File snapshot, SnapshotWriter writer) {
+        String prefix = snapshot.getName().substring(0, snapshot.getName().indexOf('-') + 1);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(dir.toPath(), prefix, ".tmp");
+            try (OutputStream out = new BufferedOutputStream( Files.newOutputStream(temp), 256 * 1024 )) {
+                writer.write(out);
+            }
+            Files.move(temp, snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            File[] old = dir.listFiles( (d, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX) && !name.equals(snapshot.getName()) );
+            if (old != null) {
+                for (File f : old) f.delete();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to write snapshot {}", snapshot, e);
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Send the stream to two destinations
+     */
+    static class Tee extends StreamRDFWrapper {
+        protected StreamRDF other;
+
+        Tee(StreamRDF primary, StreamRDF other) {
+            super(primary);
+            this.other = other;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            super.triple(triple);
+            other.triple(triple);
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            super.quad(quad);
+            other.quad(quad);
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+            super.prefix(prefix, iri);
+            other.prefix(prefix, iri);
+        }
+    }
+
+    /**
+     * Stream view of a (memory mapped) buffer
+     */
+    static class ByteBufferInputStream extends InputStream {
+        protected final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -9,23 +9,48 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.epimorphics.appbase.data.DatasetAccessor;
 import com.epimorphics.appbase.data.RDFConnectionDatasetAccessor;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphMemFactory;
 import org.apache.jena.rdfconnection.RDFConnectionRemote;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.ResultSetMgr;
 import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.riot.web.HttpNames;
 import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
 import org.apache.jena.sparql.exec.http.QueryExecutionHTTPBuilder;
+import org.apache.jena.sparql.exec.http.UpdateExecutionHTTP;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.Bulkhead;
+import com.epimorphics.util.EpiException;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
-import org.apache.jena.update.UpdateExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
 import org.apache.jena.update.UpdateRequest;
 import org.slf4j.MDC;
 
@@ -36,7 +61,21 @@ import org.slf4j.MDC;
  *   <li>updateEndpoint - optional URL for the SPARQL update endpoint</li>
  *   <li>graphEndpoint - optional URL for the graph store protocol endpoint</li>
  *   <li>contentType - set the type of the data requested for query results, one of "xml", "json", "tsv", "csv"</li>
+ *   <li>http2 - true to prefer HTTP/2 connections to the endpoint, false to force HTTP/1.1 (default is the JDK client's default)</li>
+ *   <li>executor - executor for the HTTP client's asynchronous work, "default" or "virtual" (virtual threads)</li>
  * </ul>
+ * <p>
+ * A single HttpClient is shared by all queries, updates and graph access through the source so
+ * that connections are reused. The JDK client has no per-client pool settings, its connection pool
+ * is tuned JVM-wide via the <code>jdk.httpclient.keepalive.timeout</code> and
+ * <code>jdk.httpclient.connectionPoolSize</code> system properties, which should be set on the command line.
+ * </p>
+ * <p>
+ * The asynchronous query methods use the client's non-blocking send so don't tie up
+ * a thread per outstanding query, though they still wait for admission if <code>maxConcurrent</code>
+ * is set. If query metrics are enabled these also record the
+ * number of bytes received for each query.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
@@ -59,6 +98,19 @@ public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource
     protected long  readTimeout = -1;
     protected long  connectTimeout = -1;
     protected Long  remoteTimeout = null;
+    protected Boolean http2 = null;
+    protected String executorType = EXECUTOR_DEFAULT;
+    
+    public static final String EXECUTOR_DEFAULT = "default";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    
+    protected volatile HttpClient httpClient;
+    protected ExecutorService clientExecutor;
+    
+    protected final LongAdder queryCount = new LongAdder();
+    protected final LongAdder updateCount = new LongAdder();
+    protected final AtomicInteger active = new AtomicInteger();
+    protected final AtomicInteger peakActive = new AtomicInteger();
     
     public void setEndpoint(String endpoint) {
         this.endpoint = endpoint;
@@ -88,12 +140,26 @@ public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource
     /**
      * The remote timeout is passed to the client on the assumption it's a Fuseki endpoint
      * configured to access a timeout query parameter.
-     * @param remoteTimeout timeout in seconds, -1 for no timeout
+     * @param remoteTimeout timeout in milliseconds, -1 (or 0) for no timeout
      */
     public void setRemoteTimeout(long remoteTimeout) {
         this.remoteTimeout = remoteTimeout;
     }
     
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+    
+    /**
+     * Set the executor used by the HTTP client, "default" or "virtual"
+     */
+    public void setExecutor(String type) {
+        if ( ! EXECUTOR_DEFAULT.equalsIgnoreCase(type) && ! EXECUTOR_VIRTUAL.equalsIgnoreCase(type) ) {
+            throw new EpiException("Unrecognized executor type for remote source: " + type);
+        }
+        this.executorType = type;
+    }
+    
     /**
      * Set the content type to request from the remote endpoint.
      * Legal values are "xml", "json", "tsv", "csv".
@@ -107,36 +173,188 @@ public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource
 
     private static final String MDC_REQUEST_HEADER = "request_id";
 
+    /**
+     * Return the shared HTTP client for this source, creating it on first use
+     */
+    public HttpClient getHttpClient() {
+        HttpClient client = httpClient;
+        if (client == null) {
+            synchronized (this) {
+                client = httpClient;
+                if (client == null) {
+                    client = buildClient();
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+    
+    protected HttpClient buildClient() {
+        HttpClient.Builder clientBldr = HttpClient.newBuilder();
+        if (http2 != null) {
+            clientBldr.version( http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1 );
+        }
+        if (connectTimeout != -1) {
+            clientBldr.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        if (EXECUTOR_VIRTUAL.equalsIgnoreCase(executorType)) {
+            clientExecutor = Executors.newThreadPerTaskExecutor( Thread.ofVirtual().name("remote-sparql-", 0).factory() );
+            clientBldr.executor(clientExecutor);
+        }
+        HttpClient client = clientBldr.build();
+        log.info("Created HTTP client for remote source {} ({}, executor {})", endpoint, client.version(), executorType);
+        return client;
+    }
+
     @Override
-    protected QueryExecution start(String queryString) {
-        QueryExecutionHTTPBuilder hs = QueryExecutionHTTP.service(endpoint).query(queryString);
+    protected QueryExecution start(Query query) {
+        QueryExecutionHTTPBuilder hs = QueryExecutionHTTP.service(endpoint).query(query);
         if (contentType != null) {
             hs.acceptHeader(contentType);
         }
         if (MDC.get(MDC_REQUEST_HEADER) != null) {
             hs.httpHeader("x-request-id", MDC.get(MDC_REQUEST_HEADER));
         }
-        HttpClient.Builder clientBldr = HttpClient.newBuilder();
-        if (connectTimeout != -1) {
-            clientBldr.connectTimeout(Duration.ofMillis(connectTimeout));
-        }
-        HttpClient client = clientBldr.build();
-        hs.httpClient(client);
+        hs.httpClient( getHttpClient() );
 
-        if (remoteTimeout != null) {
+        if (remoteTimeout != null && remoteTimeout > 0) {
             hs.timeout(remoteTimeout);
         }
-        return hs.build();
+        QueryExecution qexec = hs.build();
+        queryCount.increment();
+        peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        return qexec;
     }
 
     @Override
     protected void finish(QueryExecution qexec) {
-        qexec.close();
+        try {
+            qexec.close();
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    // -- Asynchronous access, using the HTTP client's native async support --
+    
+    @Override
+    public CompletableFuture<ResultSet> selectAsync(String query) {
+        return resultsAsync(query, null);
+    }
+    
+    @Override
+    public CompletableFuture<ResultSet> selectAsync(String query, QuerySolution bindings) {
+        Query bound = QueryCache.bind(parseQuery(query), bindings);
+        return resultsAsync(bound.serialize(), bound);
+    }
+    
+    protected CompletableFuture<ResultSet> resultsAsync(String query, Query parsed) {
+        String accept = contentType == null ? WebContent.defaultSparqlResultsHeader : contentType;
+        return sendAsync(query, parsed, accept).thenApply( response -> 
+            ColumnarResultSet.materialize( ResultSetMgr.read(body(response), langOf(response, ResultSetLang.RS_XML)) ) );
+    }
+    
+    @Override
+    public CompletableFuture<Graph> describeAsync(String query) {
+        return graphAsync(query);
+    }
+    
+    @Override
+    public CompletableFuture<Graph> constructAsync(String query) {
+        return graphAsync(query);
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> askAsync(String query) {
+        return sendAsync(query, WebContent.defaultSparqlAskHeader).thenApply( response ->
+            ResultSetMgr.readBoolean(body(response), langOf(response, ResultSetLang.RS_JSON)) );
+    }
+    
+    protected CompletableFuture<Graph> graphAsync(String query) {
+        return sendAsync(query, WebContent.defaultGraphAcceptHeader).thenApply( response -> {
+            Graph graph = GraphMemFactory.createGraphMemForModel();
+            RDFParser.create().source( body(response) ).lang( langOf(response, Lang.TURTLE) ).parse(graph);
+            return graph;
+        });
+    }
+    
+    protected CompletableFuture<HttpResponse<byte[]>> sendAsync(String query, String accept) {
+        return sendAsync(query, null, accept);
+    }
+    
+    /**
+     * Send the query to the endpoint as a SPARQL protocol POST, response
+     * body is buffered so that parsing does not block the client's threads.
+     * Responses other than 2xx complete exceptionally.
+     * @param parsed the parsed form of the query, used for metrics, or null to parse it when needed
+     */
+    protected CompletableFuture<HttpResponse<byte[]>> sendAsync(String query, Query parsed, String accept) {
+        HttpRequest.Builder request;
+        Bulkhead.Permit permit;
+        try {
+            request = HttpRequest.newBuilder( URI.create(endpoint) )
+                    .header(HttpNames.hContentType, WebContent.contentTypeSPARQLQuery)
+                    .header(HttpNames.hAccept, accept)
+                    .POST( HttpRequest.BodyPublishers.ofString(query, StandardCharsets.UTF_8) );
+            if (MDC.get(MDC_REQUEST_HEADER) != null) {
+                request.header("x-request-id", MDC.get(MDC_REQUEST_HEADER));
+            }
+            if (remoteTimeout != null && remoteTimeout > 0) {
+                request.timeout( Duration.ofMillis(remoteTimeout) );
+            }
+            permit = admitAsync();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        queryCount.increment();
+        peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        long startTime = System.nanoTime();
+        return getHttpClient()
+                .sendAsync( request.build(), HttpResponse.BodyHandlers.ofByteArray() )
+                .thenApply( response -> {
+                    if (response.statusCode() / 100 != 2) {
+                        throw new EpiException( String.format("Remote query failed (%d) %s", response.statusCode(),
+                                new String(response.body(), StandardCharsets.UTF_8)) );
+                    }
+                    return response;
+                })
+                .whenComplete( (response, error) -> {
+                    active.decrementAndGet();
+                    if (permit != null) {
+                        permit.release();
+                    }
+                    if (metrics != null) {
+                        // Completes on a client thread, restore the caller's context for the slow query log
+                        Map<String, String> previous = MDC.getCopyOfContextMap();
+                        setMDC(mdc);
+                        try {
+                            Throwable failure = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                            record(parsed == null ? parseQuery(query) : parsed, startTime, -1,
+                                    response == null ? -1 : response.body().length, failure);
+                        } finally {
+                            setMDC(previous);
+                        }
+                    }
+                });
+    }
+    
+    private static InputStream body(HttpResponse<byte[]> response) {
+        return new ByteArrayInputStream( response.body() );
+    }
+    
+    private static Lang langOf(HttpResponse<byte[]> response, Lang dflt) {
+        Lang lang = response.headers().firstValue(HttpNames.hContentType)
+                .map( ct -> RDFLanguages.contentTypeToLang( ct.split(";")[0].trim() ) )
+                .orElse(null);
+        return lang == null ? dflt : lang;
     }
 
     @Override
     public void update(UpdateRequest update) {
-        UpdateExecutionFactory.createRemote(update, updateEndpoint).execute();
+        updateCount.increment();
+        UpdateExecutionHTTP.service(updateEndpoint).update(update).httpClient( getHttpClient() ).build().execute();
     }
 
     @Override
@@ -147,10 +365,75 @@ public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource
     @Override
     public DatasetAccessor getAccessor() {
         if (accessor == null) {
-            accessor = RDFConnectionDatasetAccessor.create(() -> RDFConnectionRemote.newBuilder().gspEndpoint(graphEndpoint).build());
+            accessor = RDFConnectionDatasetAccessor.create(() -> RDFConnectionRemote.newBuilder().gspEndpoint(graphEndpoint).httpClient( getHttpClient() ).build());
         }
         return accessor;
     }
+    
+    /**
+     * Return a snapshot of the usage counts for the shared client
+     */
+    public ClientStats getClientStats() {
+        return new ClientStats(queryCount.sum(), updateCount.sum(), active.get(), peakActive.get());
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        HttpClient client;
+        synchronized (this) {
+            client = httpClient;
+            httpClient = null;
+        }
+        if (client != null) {
+            client.close();
+        }
+        if (clientExecutor != null) {
+            clientExecutor.shutdown();
+            clientExecutor = null;
+        }
+    }
+    
+    /**
+     * Usage counts for the shared HTTP client of a remote source
+     */
+    public static class ClientStats {
+        protected final long queries;
+        protected final long updates;
+        protected final int active;
+        protected final int peakActive;
+        
+        public ClientStats(long queries, long updates, int active, int peakActive) {
+            this.queries = queries;
+            this.updates = updates;
+            this.active = active;
+            this.peakActive = peakActive;
+        }
+
+        public long getQueries() {
+            return queries;
+        }
+
+        public long getUpdates() {
+            return updates;
+        }
+
+        /**
+         * Number of queries currently in progress (including open streaming results)
+         */
+        public int getActive() {
+            return active;
+        }
+
+        public int getPeakActive() {
+            return peakActive;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("queries=%d updates=%d active=%d peak=%d", queries, updates, active, peakActive);
+        }
+    }
 
     
 }
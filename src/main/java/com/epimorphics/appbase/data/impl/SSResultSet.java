@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.function.Consumer;
 
 import com.epimorphics.appbase.data.ClosableResultSet;
+import com.epimorphics.appbase.util.Bulkhead;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
@@ -28,16 +29,37 @@ public class SSResultSet implements ClosableResultSet {
     protected ResultSet results;
     protected QueryExecution qexec;
     protected BaseSparqlSource source;
+    protected Bulkhead.Permit permit;
+    protected long startTime;
     
     public SSResultSet(BaseSparqlSource source, String queryString) {
         this.source = source;
-        qexec = source.start(queryString);
-        results =  qexec.execSelect();
+        permit = source.admit();
+        startTime = System.nanoTime();
+        try {
+            qexec = source.start(queryString);
+            results =  qexec.execSelect();
+        } catch (RuntimeException e) {
+            if (qexec != null) {
+                source.finish(qexec);
+            }
+            if (permit != null) {
+                permit.release();
+            }
+            throw e;
+        }
     }
 
     protected void doClose() {
         if (source != null) {
-            source.finish(qexec);
+            try {
+                source.finish(qexec);
+            } finally {
+                if (permit != null) {
+                    permit.release();
+                }
+            }
+            source.record(qexec.getQuery(), startTime, results.getRowNumber(), -1, null);
             source = null;
         }
     }
@@ -0,0 +1,174 @@
+/******************************************************************
+ * File:        StripedLRUDescriptionCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jena.graph.Node;
+
+import com.epimorphics.appbase.data.DescriptionCache;
+import com.epimorphics.appbase.data.NodeDescription;
+
+/**
+ * Description cache with strict LRU eviction. The cache is split into a number of
+ * independently locked segments so that concurrent readers only contend
+ * when they hit the same segment. Size and weight bounds are divided
+ * evenly between the segments.
+ */
+public class StripedLRUDescriptionCache implements DescriptionCache {
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    protected final Segment[] segments;
+    protected final int mask;
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of descriptions to retain
+     * @param maxWeight maximum total number of triples to retain, 0 or less for no weight bound
+     */
+    public StripedLRUDescriptionCache(long maxSize, long maxWeight) {
+        this(maxSize, maxWeight, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param maxSize maximum number of descriptions to retain
+     * @param maxWeight maximum total number of triples to retain, 0 or less for no weight bound
+     * @param concurrency expected number of concurrent accessors, rounded up to a power of two
+     */
+    public StripedLRUDescriptionCache(long maxSize, long maxWeight, int concurrency) {
+        int n = 1;
+        while (n < concurrency && n < maxSize) {
+            n <<= 1;
+        }
+        segments = new Segment[n];
+        mask = n - 1;
+        long segmentSize = Math.max(1, maxSize / n);
+        long segmentWeight = maxWeight > 0 ? Math.max(1, maxWeight / n) : Long.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(segmentSize, segmentWeight);
+        }
+    }
+
+    protected Segment segmentFor(Node node) {
+        int h = node.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & mask];
+    }
+
+    @Override
+    public NodeDescription get(Node node) {
+        Segment segment = segmentFor(node);
+        NodeDescription nd;
+        synchronized (segment) {
+            nd = segment.get(node);
+        }
+        if (nd == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return nd;
+    }
+
+    @Override
+    public void put(Node node, NodeDescription description) {
+        Segment segment = segmentFor(node);
+        synchronized (segment) {
+            segment.add(node, description);
+        }
+    }
+
+    @Override
+    public void invalidate(Node node) {
+        Segment segment = segmentFor(node);
+        synchronized (segment) {
+            segment.delete(node);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Stats getStats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+                weight += segment.weight;
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), size, weight);
+    }
+
+    /**
+     * One independently locked, access ordered, partition of the cache.
+     * All access must be synchronized on the segment.
+     */
+    @SuppressWarnings("serial")
+    protected class Segment extends LinkedHashMap<Node, NodeDescription> {
+        protected final long maxSize;
+        protected final long maxWeight;
+        protected long weight = 0;
+
+        public Segment(long maxSize, long maxWeight) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.maxWeight = maxWeight;
+        }
+
+        public void add(Node node, NodeDescription description) {
+            NodeDescription old = put(node, description);
+            if (old != null) {
+                weight -= old.getWeight();
+            }
+            weight += description.getWeight();
+            Iterator<Map.Entry<Node, NodeDescription>> i = entrySet().iterator();
+            while ((size() > maxSize || weight > maxWeight) && size() > 1 && i.hasNext()) {
+                Map.Entry<Node, NodeDescription> eldest = i.next();
+                if (eldest.getKey().equals(node)) continue;
+                weight -= eldest.getValue().getWeight();
+                i.remove();
+                evictions.increment();
+            }
+        }
+
+        public void delete(Node node) {
+            NodeDescription old = remove(node);
+            if (old != null) {
+                weight -= old.getWeight();
+            }
+        }
+    }
+}
@@ -14,25 +14,40 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
 
 import com.epimorphics.appbase.data.DatasetAccessor;
 import org.apache.jena.atlas.json.JsonObject;
 import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
-import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.ReadWrite;
 import org.apache.jena.query.text.EntityDefinition;
 import org.apache.jena.query.text.TextDatasetFactory;
-import org.apache.jena.riot.Lang;
-import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFOps;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.riot.system.StreamRDFWriter;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.Quad;
 import org.apache.jena.sparql.exec.UpdateExec;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.TDB2;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.loader.base.MonitorOutput;
 import org.apache.jena.update.UpdateRequest;
 import org.apache.jena.vocabulary.RDFS;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -45,6 +60,7 @@ import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.data.SparqlSource;
 import com.epimorphics.appbase.tasks.Action;
 import com.epimorphics.appbase.tasks.impl.BaseAction;
+import com.epimorphics.appbase.util.ParallelGZIPOutputStream;
 import com.epimorphics.appbase.util.TimeStamp;
 import com.epimorphics.json.JsonUtil;
 import com.epimorphics.tasks.ProgressMonitorReporter;
@@ -54,6 +70,13 @@ import com.epimorphics.util.FileUtil;
 /**
  * A Sparql source which provides access to a TDB-based persistent
  * data store with an optional jena-text index.
+ * <p>
+ * Set <code>tdb2</code> to true to use a TDB2 store rather than the legacy TDB1 format.
+ * TDB2 gives readers a consistent snapshot (MVCC) so queries are never blocked behind a writer
+ * and supports online compaction (see {@link #getCompactAction()}) to recover the space
+ * used by superseded data. The two store formats are not compatible, a TDB1 store can be
+ * migrated by backup and restore.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
@@ -66,9 +89,15 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
     protected String indexSpec = null;
     protected Dataset dataset;  // TODO should this be a thread local?
     protected boolean isUnionDefault;
+    protected boolean isTDB2 = false;
+    protected DatasetGraph baseDataset;     // The underlying TDB store, without any text index wrapping
     protected DatasetGraph graphStore;
     protected DatasetAccessor accessor;
     
+    // Number of open query executions on each thread, so that streaming results
+    // can be left open while other queries run within the same read transaction
+    protected final ThreadLocal<int[]> readDepth = ThreadLocal.withInitial( () -> new int[1] );
+    
     public void setLocation(String loc) {
         FileUtil.ensureDir(loc);
         tdbDir = asFile(loc);
@@ -104,10 +133,26 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
         isUnionDefault = flag;
     }
     
+    /**
+     * Set to true to use a TDB2 store
+     */
+    public void setTdb2(boolean flag) {
+        isTDB2 = flag;
+    }
+    
+    public boolean isTDB2() {
+        return isTDB2;
+    }
+    
     @Override @SuppressWarnings({"removal"})
     public void startup(App app) {
         super.startup(app);
-        dataset = org.apache.jena.tdb1.TDB1Factory.createDataset( tdbDir.getPath() );
+        if (isTDB2) {
+            dataset = TDB2Factory.connectDataset( tdbDir.getPath() );
+        } else {
+            dataset = org.apache.jena.tdb1.TDB1Factory.createDataset( tdbDir.getPath() );
+        }
+        baseDataset = dataset.asDatasetGraph();
         if (textIndex != null) {
             try {
                 Directory dir = FSDirectory.open(textIndex.toPath());
@@ -131,27 +176,37 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
     }
     
     @Override @SuppressWarnings({"removal"})
-    protected QueryExecution start(String queryString) {
-        Query query = QueryFactory.create(queryString) ;
+    protected QueryExecution start(Query query) {
         QueryExecution qexec = QueryExecutionFactory.create(query, dataset) ;
         if (isUnionDefault) {
-            qexec.getContext().set(org.apache.jena.tdb1.TDB1.symUnionDefaultGraph, true) ;
+            qexec.getContext().set(isTDB2 ? TDB2.symUnionDefaultGraph : org.apache.jena.tdb1.TDB1.symUnionDefaultGraph, true) ;
+        }
+        int[] depth = readDepth.get();
+        if (depth[0]++ == 0) {
+            dataset.begin(ReadWrite.READ);
         }
-        dataset.begin(ReadWrite.READ);
         return qexec;
     }
     
     @Override
     protected void finish(QueryExecution qexec) {
         qexec.close() ;
-        dataset.end();
+        int[] depth = readDepth.get();
+        if (--depth[0] == 0) {
+            dataset.end();
+        }
     }
 
     @Override
     public void update(UpdateRequest update) {
         dataset.begin(ReadWrite.WRITE);
-        UpdateExec.dataset(getGraphStore()).update(update).execute();
-        dataset.commit();
+        try {
+            UpdateExec.dataset(getGraphStore()).update(update).execute();
+            dataset.commit();
+        } finally {
+            // No-op after a commit, aborts the transaction if the update failed
+            dataset.end();
+        }
     }
 
     @Override
@@ -175,6 +230,94 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
         return graphStore;
     }
 
+    /**
+     * Return size information for the store: the total disk space used (storeBytes),
+     * the size of the transaction journal (journalBytes) and, for TDB2, the number of
+     * data generations present (generations) which compaction will reduce to one.
+     */
+    public JsonObject getStoreStats() {
+        JsonObject stats = new JsonObject();
+        stats.put("format", isTDB2 ? "TDB2" : "TDB1");
+        stats.put("storeBytes", sizeOf(tdbDir));
+        long journal = 0;
+        int generations = 0;
+        File[] files = tdbDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".jrnl")) {
+                    journal += f.length();
+                } else if (f.isDirectory() && f.getName().startsWith("Data-")) {
+                    generations++;
+                    File[] dataFiles = f.listFiles( (dir, name) -> name.endsWith(".jrnl") );
+                    if (dataFiles != null) {
+                        for (File j : dataFiles) journal += j.length();
+                    }
+                }
+            }
+        }
+        stats.put("journalBytes", journal);
+        if (isTDB2) {
+            stats.put("generations", generations);
+        }
+        return stats;
+    }
+    
+    private static long sizeOf(File dir) {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        } catch (IOException e) {
+            log.warn("Failed to measure TDB store size", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Return an action that will compact a TDB2 store, while it remains online,
+     * discarding superseded data. Has no effect on a TDB1 store.
+     */
+    public Action getCompactAction() {
+        return new CompactAction();
+    }
+    
+    public class CompactAction extends BaseAction {
+        public static final String DELETE_OLD_PARAM = "deleteOld";
+        
+        @Override
+        public String getName() {
+            return "compact";
+        }
+
+        @Override
+        protected JsonObject doRun(JsonObject parameters,
+                ProgressMonitorReporter monitor) {
+            if (!isTDB2) {
+                monitor.reportError("Compaction is only supported for TDB2 stores");
+                return JsonUtil.emptyObject();
+            }
+            boolean deleteOld = getBooleanParameter(parameters, DELETE_OLD_PARAM, true);
+            JsonObject before = getStoreStats();
+            monitor.report("Compaction in progress, store size " + before.get("storeBytes"));
+            log.info("Started compaction of {}", tdbDir);
+            long start = System.currentTimeMillis();
+            try {
+                DatabaseMgr.compact(baseDataset, deleteOld);
+            } catch ( RuntimeException ex ) {
+                log.warn("Exception during compaction: ", ex);
+                monitor.reportError("Exception during compaction: " + ex);
+                return JsonUtil.emptyObject();
+            }
+            JsonObject after = getStoreStats();
+            long duration = System.currentTimeMillis() - start;
+            monitor.report("Compaction finished in " + duration + "ms, store size " + after.get("storeBytes"));
+            log.info("Finished compaction of {} in {}ms", tdbDir, duration);
+            JsonObject result = new JsonObject();
+            result.put("before", before);
+            result.put("after", after);
+            result.put("duration", duration);
+            return result;
+        }
+    }
+    
     /**
      * Return an action that will backup the data to the backup directory
      */
@@ -182,7 +325,15 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
         return new BackupAction();
     }
     
+    /**
+     * Backup the store as gzipped N-Quads. The data is streamed from a single read
+     * transaction, so the backup is a consistent snapshot, and compressed in parallel.
+     * Reports the number of quads written as it goes. The backup is written to a temporary
+     * file which is only renamed into place once complete, so a failed backup never
+     * leaves a partial file that could be picked up by a restore.
+     */
     public class BackupAction extends BaseAction {
+        public static final int REPORT_INTERVAL = 100000;
         
         @Override
         public String getName() {
@@ -199,23 +350,34 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
             }
             String filename = "backup-" + TimeStamp.makeTimestamp() + ".nq.gz";
             File backupFile = new File(backupDir, filename);
+            File tempFile = new File(backupDir, filename + ".tmp");
 
             monitor.report("Backup in progress: " + filename);
             log.info("Started  backup to " +filename);
+            long start = System.currentTimeMillis();
+            ParallelGZIPOutputStream gz = null;
             OutputStream out = null ;
+            boolean complete = false;
             dataset.begin(ReadWrite.READ);
             try {
-                out = new FileOutputStream(backupFile) ;
-                out = new GZIPOutputStream(out, 8*1024) ;
-                out = new BufferedOutputStream(out) ;
+                gz = new ParallelGZIPOutputStream( new FileOutputStream(tempFile) );
+                out = new BufferedOutputStream(gz, 256*1024) ;
                 
-                RDFDataMgr.write(out, dataset.asDatasetGraph(), Lang.NQUADS) ;
+                CountingStream stream = new CountingStream( StreamRDFWriter.getWriterStream(out, RDFFormat.NQUADS), monitor, "Backup" );
+                StreamRDFOps.sendDatasetToStream(dataset.asDatasetGraph(), stream);
                 out.close() ;
                 out = null ;
+                Files.move(tempFile.toPath(), backupFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                complete = true;
 
-                monitor.report("Backup finished: " + filename);
-                log.info("Finished backup to " + filename);
-                return JsonUtil.makeJson("backupfile", backupFile.getPath());
+                long duration = System.currentTimeMillis() - start;
+                monitor.report("Backup finished: " + filename + ", " + stream.getCount() + " quads in " + duration + "ms");
+                log.info("Finished backup to {}, {} quads in {}ms", filename, stream.getCount(), duration);
+                JsonObject result = JsonUtil.makeJson("backupfile", backupFile.getPath());
+                result.put("quads", stream.getCount());
+                result.put("bytes", gz.getBytesOut());
+                result.put("duration", duration);
+                return result;
                 
             } catch (IOException e) {
                 log.warn("Problem writing backup to " + filename, e);
@@ -229,10 +391,183 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
                 dataset.end();
                 try { if (out != null) out.close() ; }
                 catch (IOException e) { /* ignore */ }
+                if (!complete && tempFile.exists() && !tempFile.delete()) {
+                    log.warn("Failed to remove incomplete backup {}", tempFile);
+                }
             }
             return JsonUtil.emptyObject();
         }
         
     }
     
+    /**
+     * Return an action that will restore the store from a backup in the backup directory
+     */
+    public Action getRestoreAction() {
+        return new RestoreAction();
+    }
+    
+    /**
+     * Restore the store from a backup file. Parameters are "file" (the name of a file in the
+     * backup directory, defaults to the most recent backup) and "replace" (default true) which
+     * clears the existing data first.
+     * <p>
+     * A TDB2 store with no text index is loaded with the TDB2 parallel bulk loader, which
+     * excludes other writers for the duration. The bulk loader can't share a transaction with
+     * the clear so when replacing data the whole backup is parsed first, and the existing
+     * data left untouched if it is unreadable. Otherwise the clear and load are done in a
+     * single write transaction, which also keeps any text index up to date.
+     * </p>
+     */
+    public class RestoreAction extends BaseAction {
+        public static final String FILE_PARAM = "file";
+        public static final String REPLACE_PARAM = "replace";
+        
+        @Override
+        public String getName() {
+            return "restore";
+        }
+
+        @Override
+        protected JsonObject doRun(JsonObject parameters,
+                ProgressMonitorReporter monitor) {
+            if (backupDir == null) {
+                log.error("No backup directory configured");
+                monitor.reportError("No backup directory configured");
+                return JsonUtil.emptyObject();
+            }
+            String filename = getStringParameter(parameters, FILE_PARAM, null);
+            File backupFile = (filename == null) ? latestBackup() : new File(backupDir, new File(filename).getName());
+            if (backupFile == null || !backupFile.isFile()) {
+                monitor.reportError("No backup file found to restore: " + (filename == null ? backupDir : filename));
+                return JsonUtil.emptyObject();
+            }
+            boolean replace = getBooleanParameter(parameters, REPLACE_PARAM, true);
+            
+            monitor.report("Restore in progress: " + backupFile.getName());
+            log.info("Started restore from {}", backupFile);
+            long start = System.currentTimeMillis();
+            long count;
+            try {
+                if (isTDB2 && textIndex == null) {
+                    if (replace) {
+                        validate(backupFile, monitor);
+                        clear();
+                    }
+                    count = bulkLoad(backupFile, monitor);
+                } else {
+                    count = transactionalLoad(backupFile, replace, monitor);
+                }
+            } catch ( RuntimeException ex ) {
+                log.warn("Exception during restore: ", ex);
+                monitor.reportError("Exception during restore: " + ex);
+                return JsonUtil.emptyObject();
+            }
+            long duration = System.currentTimeMillis() - start;
+            monitor.report("Restore finished: " + backupFile.getName() + ", " + count + " quads in " + duration + "ms");
+            log.info("Finished restore from {}, {} quads in {}ms", backupFile, count, duration);
+            JsonObject result = JsonUtil.makeJson("backupfile", backupFile.getPath());
+            result.put("quads", count);
+            result.put("duration", duration);
+            return result;
+        }
+        
+        protected long bulkLoad(File file, ProgressMonitorReporter monitor) {
+            MonitorOutput output = (fmt, args) -> monitor.report( String.format(fmt, args) );
+            DataLoader loader = LoaderFactory.parallelLoader(baseDataset, output);
+            loader.startBulk();
+            try {
+                loader.load( file.getPath() );
+                loader.finishBulk();
+            } catch (RuntimeException e) {
+                loader.finishException(e);
+                throw e;
+            }
+            return loader.countQuads() + loader.countTriples();
+        }
+        
+        protected long transactionalLoad(File file, boolean replace, ProgressMonitorReporter monitor) {
+            dataset.begin(ReadWrite.WRITE);
+            try {
+                if (replace) {
+                    dataset.asDatasetGraph().clear();
+                }
+                CountingStream stream = new CountingStream( StreamRDFLib.dataset(dataset.asDatasetGraph()), monitor, "Restore" );
+                RDFParser.source( file.getPath() ).parse(stream);
+                dataset.commit();
+                return stream.getCount();
+            } finally {
+                dataset.end();
+            }
+        }
+        
+        protected void validate(File file, ProgressMonitorReporter monitor) {
+            CountingStream stream = new CountingStream( StreamRDFLib.sinkNull(), monitor, "Validate" );
+            RDFParser.source( file.getPath() ).parse(stream);
+        }
+        
+        protected void clear() {
+            dataset.begin(ReadWrite.WRITE);
+            try {
+                dataset.asDatasetGraph().clear();
+                dataset.commit();
+            } finally {
+                dataset.end();
+            }
+        }
+        
+        protected File latestBackup() {
+            File[] backups = backupDir.listFiles( (dir, name) -> name.startsWith("backup-") && name.endsWith(".nq.gz") );
+            if (backups == null || backups.length == 0) {
+                return null;
+            }
+            File latest = backups[0];
+            for (File f : backups) {
+                if (f.lastModified() > latest.lastModified() 
+                        || (f.lastModified() == latest.lastModified() && f.getName().compareTo(latest.getName()) > 0)) {
+                    latest = f;
+                }
+            }
+            return latest;
+        }
+    }
+    
+    /**
+     * Stream wrapper which counts the triples and quads passing through
+     * and reports progress at intervals.
+     */
+    static class CountingStream extends StreamRDFWrapper {
+        protected final ProgressMonitorReporter monitor;
+        protected final String label;
+        protected long count = 0;
+        
+        CountingStream(StreamRDF stream, ProgressMonitorReporter monitor, String label) {
+            super(stream);
+            this.monitor = monitor;
+            this.label = label;
+        }
+        
+        @Override
+        public void triple(Triple triple) {
+            super.triple(triple);
+            counted();
+        }
+        
+        @Override
+        public void quad(Quad quad) {
+            super.quad(quad);
+            counted();
+        }
+        
+        private void counted() {
+            if (++count % BackupAction.REPORT_INTERVAL == 0) {
+                monitor.report(label + " in progress: " + count + " quads");
+            }
+        }
+        
+        public long getCount() {
+            return count;
+        }
+    }
+    
 }
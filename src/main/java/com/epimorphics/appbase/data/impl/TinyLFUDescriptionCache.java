@@ -0,0 +1,111 @@
+/******************************************************************
+ * File:        TinyLFUDescriptionCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import org.apache.jena.graph.Node;
+
+import com.epimorphics.appbase.data.DescriptionCache;
+import com.epimorphics.appbase.data.NodeDescription;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Description cache based on Caffeine, using W-TinyLFU eviction.
+ * Reads are lock-free and writes are amortized across the cache's internal buffers
+ * so this scales with the number of concurrent renders.
+ * <p>
+ * The cache can be bounded either by the number of entries or by total weight,
+ * where the weight of an entry is the number of triples in the description.
+ * If a weight bound is given it takes precedence over the size bound.
+ * Entries can optionally be expired a fixed time after they were written.
+ * </p>
+ */
+public class TinyLFUDescriptionCache implements DescriptionCache {
+    protected final Cache<Node, NodeDescription> cache;
+
+    /**
+     * @param maxSize maximum number of descriptions to retain
+     * @param maxWeight maximum total number of triples to retain, 0 or less for no weight bound
+     */
+    public TinyLFUDescriptionCache(long maxSize, long maxWeight) {
+        this(maxSize, maxWeight, 0);
+    }
+
+    /**
+     * @param maxSize maximum number of descriptions to retain
+     * @param maxWeight maximum total number of triples to retain, 0 or less for no weight bound
+     * @param expireAfterMS time (in milliseconds) after which an entry is discarded, 0 or less for no expiry
+     */
+    public TinyLFUDescriptionCache(long maxSize, long maxWeight, long expireAfterMS) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+        if (expireAfterMS > 0) {
+            builder.expireAfterWrite( Duration.ofMillis(expireAfterMS) );
+        }
+        if (maxWeight > 0) {
+            cache = builder
+                    .maximumWeight(maxWeight)
+                    .weigher( (Node node, NodeDescription description) -> description.getWeight() )
+                    .build();
+        } else {
+            cache = builder
+                    .maximumSize(maxSize)
+                    .<Node, NodeDescription>build();
+        }
+    }
+
+    @Override
+    public NodeDescription get(Node node) {
+        return cache.getIfPresent(node);
+    }
+
+    @Override
+    public void put(Node node, NodeDescription description) {
+        cache.put(node, description);
+    }
+
+    @Override
+    public void invalidate(Node node) {
+        cache.invalidate(node);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Run any pending maintenance, such as eviction, immediately. Mostly for testing.
+     */
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    @Override
+    public Stats getStats() {
+        CacheStats stats = cache.stats();
+        long weight = -1;
+        Optional<Policy.Eviction<Node, NodeDescription>> eviction = cache.policy().eviction();
+        if (eviction.isPresent() && eviction.get().isWeighted()) {
+            weight = eviction.get().weightedSize().orElse(-1);
+        }
+        return new Stats(stats.hitCount(), stats.missCount(), stats.evictionCount(), cache.estimatedSize(), weight);
+    }
+
+}
@@ -9,6 +9,8 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.util.Map;
+
 import com.epimorphics.appbase.data.DatasetAccessor;
 import com.epimorphics.appbase.data.RDFConnectionDatasetAccessor;
 import org.apache.jena.query.Dataset;
@@ -77,6 +79,22 @@ public class TransactionalDatasetAccessor implements DatasetAccessor {
         }
     }
 
+    /**
+     * Puts all the models within a single write transaction.
+     */
+    @Override
+    public void putModels(Map<String, Model> models) {
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            for (Map.Entry<String, Model> entry : models.entrySet()) {
+                wrapped.putModel(entry.getKey(), entry.getValue());
+            }
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+    }
+
     @Override
     public void deleteDefault() {
         dataset.begin(ReadWrite.WRITE);                 
@@ -120,6 +138,21 @@ public class TransactionalDatasetAccessor implements DatasetAccessor {
             dataset.end();
         }
     }
-    
+
+    /**
+     * Applies the change directly to the named model rather than replacing it.
+     */
+    @Override
+    public void applyChanges(String graphUri, Model additions, Model removals) {
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            Model model = dataset.getNamedModel(graphUri);
+            model.remove(removals);
+            model.add(additions);
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+    }
 
 }
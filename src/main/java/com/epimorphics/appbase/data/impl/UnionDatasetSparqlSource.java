@@ -11,11 +11,14 @@ package com.epimorphics.appbase.data.impl;
 
 import com.epimorphics.appbase.data.DatasetAccessor;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.DatasetGraphMap;
 import org.apache.jena.sparql.graph.GraphUnionRead;
 
+import com.epimorphics.util.EpiException;
+
 /**
  * An in-memory source where the default model is the union of
  * the named models. Changes made to models other than via
@@ -36,6 +39,11 @@ public class UnionDatasetSparqlSource extends DatasetSparqlSource {
         }
     }
 
+    @Override
+    protected Dataset createSnapshotDataset() {
+        throw new EpiException("Snapshot mode is not supported for union datasets");
+    }
+
     @Override
     public DatasetAccessor getAccessor() {
         if (accessor == null) {
@@ -0,0 +1,376 @@
+/******************************************************************
+ * File:        UpdateJournal.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Append-only journal of updates, stored as a sequence of segment files in a directory.
+ * Entries are handed to a background writer which writes everything that has queued up
+ * in one go and then syncs the file once for the whole group (group commit). Segments are
+ * rotated once they exceed a size limit and are named by the sequence number of their
+ * first entry, so can be archived or deleted once covered by a backup.
+ * <p>
+ * Each record is framed with its length and a CRC so that a torn write at the end of the
+ * journal, following a crash, is detected and discarded when the journal is reopened.
+ * </p>
+ * <p>
+ * If a write fails the segment is truncated back to the end of the last complete batch and
+ * the journal refuses any further entries, since it would no longer be a complete record of
+ * the changes. Once the problem is fixed the journal can be reopened.
+ * </p>
+ */
+public class UpdateJournal implements AutoCloseable {
+    static Logger log = LoggerFactory.getLogger( UpdateJournal.class );
+
+    public static final String SEGMENT_PREFIX = "journal-";
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    protected static final int MAX_BATCH = 1000;
+
+    /**
+     * A single journal record
+     */
+    public static class Entry {
+        public final long seq;
+        public final long timestamp;
+        public final String op;
+        public final String graph;
+        public final String body;
+
+        public Entry(long seq, long timestamp, String op, String graph, String body) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.op = op;
+            this.graph = graph;
+            this.body = body;
+        }
+    }
+
+    protected static class Pending {
+        final byte[] record;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        final long seq;
+
+        Pending(long seq, byte[] record) {
+            this.seq = seq;
+            this.record = record;
+        }
+    }
+
+    protected final File dir;
+    protected final long segmentSize;
+    protected final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    protected final Thread writer;
+    protected FileChannel channel;
+    protected long nextSeq;
+    protected volatile boolean closed = false;
+    protected volatile Throwable failure;
+
+    /**
+     * Open, or create, a journal in the given directory
+     */
+    public UpdateJournal(File dir, long segmentSize) {
+        FileUtil.ensureDir( dir.getPath() );
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.nextSeq = recover() + 1;
+        this.writer = new Thread(this::writeLoop, "journal-" + dir.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Append an entry to the journal. The returned future completes, with the
+     * sequence number of the entry, once it has been synced to disk.
+     * Callers must ensure entries are appended in the order their changes were applied.
+     */
+    public synchronized CompletableFuture<Long> append(String op, String graph, String body) {
+        if (closed) {
+            throw new EpiException("Journal is closed: " + dir);
+        }
+        checkWritable();
+        long seq = nextSeq++;
+        Pending pending = new Pending(seq, frame( encode(seq, System.currentTimeMillis(), op, graph, body) ));
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Throw an exception if an earlier write failure means the journal can't accept entries
+     */
+    public void checkWritable() {
+        Throwable t = failure;
+        if (t != null) {
+            throw new EpiException("Journal disabled following a write failure: " + dir, t);
+        }
+    }
+
+    /**
+     * Return the sequence number which will be assigned to the next entry
+     */
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * Flush outstanding entries and stop the writer
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) break;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                if (failure != null) {
+                    // Entries queued before the failure was noticed can't follow the lost batch
+                    for (Pending p : batch) p.done.completeExceptionally(failure);
+                } else {
+                    writeBatch(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable t) {
+                log.error("Failed to write journal entries to {}, journal disabled", dir, t);
+                failure = t;
+                for (Pending p : batch) p.done.completeExceptionally(t);
+            }
+            batch.clear();
+        }
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close journal segment", e);
+        }
+    }
+
+    protected void writeBatch(List<Pending> batch) throws IOException {
+        if (channel == null || channel.size() >= segmentSize) {
+            rotate(batch.get(0).seq);
+        }
+        int total = 0;
+        for (Pending p : batch) total += p.record.length;
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (Pending p : batch) buffer.put(p.record);
+        buffer.flip();
+        long start = channel.size();
+        try {
+            write(buffer);
+            channel.force(false);
+        } catch (Throwable t) {
+            discard(start);
+            throw t;
+        }
+        for (Pending p : batch) {
+            p.done.complete(p.seq);
+        }
+    }
+
+    protected void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Truncate the current segment back to the given size, removing any partially written batch
+     */
+    protected void discard(long size) {
+        try {
+            channel.truncate(size);
+            channel.force(false);
+        } catch (IOException e) {
+            log.error("Failed to truncate journal segment after write failure, it will be repaired when reopened", e);
+        }
+    }
+
+    protected void rotate(long seq) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        File segment = new File(dir, segmentName(seq));
+        channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.info("Started journal segment {}", segment);
+    }
+
+    protected static String segmentName(long seq) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Find the last good sequence number, truncating any torn record at the end of the last segment
+     */
+    protected long recover() {
+        File[] segments = listSegments(dir);
+        if (segments.length == 0) return 0;
+        File last = segments[segments.length - 1];
+        long[] lastSeq = { 0 };
+        long good = scan(last, e -> lastSeq[0] = e.seq);
+        if (good < last.length()) {
+            log.warn("Truncating incomplete journal record at {} in {}", good, last);
+            try (FileChannel ch = FileChannel.open(last.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            } catch (IOException e) {
+                throw new EpiException("Failed to recover journal: " + last, e);
+            }
+        }
+        if (lastSeq[0] == 0) {
+            // Empty final segment, its name gives the next sequence number
+            String name = last.getName();
+            lastSeq[0] = Long.parseLong( name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()) ) - 1;
+        }
+        return lastSeq[0];
+    }
+
+    /**
+     * Return the journal segments in a directory, in order
+     */
+    public static File[] listSegments(File dir) {
+        File[] segments = dir.listFiles( (d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) );
+        if (segments == null) return new File[0];
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Read all the entries in a journal directory, in order, passing them to the consumer.
+     * Reading stops at the first incomplete or corrupt record.
+     */
+    public static void read(File dir, Consumer<Entry> consumer) {
+        for (File segment : listSegments(dir)) {
+            long good = scan(segment, consumer);
+            if (good < segment.length()) {
+                log.warn("Incomplete journal record in {}, ignoring rest of journal", segment);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pass each valid record in the segment to the consumer, returning the
+     * offset after the last valid record
+     */
+    protected static long scan(File segment, Consumer<Entry> consumer) {
+        long offset = 0;
+        long size = segment.length();
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(segment), 64 * 1024) )) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                // A length running past the end of the segment can only be a torn or corrupt header
+                if (length <= 0 || length > size - offset - 8) break;
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (crc.getValue() != checksum) break;
+                consumer.accept( decode(payload) );
+                offset += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Torn record, offset marks the end of the good data
+        } catch (IOException e) {
+            throw new EpiException("Failed to read journal segment: " + segment, e);
+        }
+        return offset;
+    }
+
+    protected static byte[] encode(long seq, long timestamp, String op, String graph, String body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(seq);
+            out.writeLong(timestamp);
+            out.writeUTF(op);
+            out.writeUTF(graph == null ? "" : graph);
+            byte[] text = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new EpiException(e);
+        }
+    }
+
+    protected static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    protected static Entry decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream(payload) );
+        long seq = in.readLong();
+        long timestamp = in.readLong();
+        String op = in.readUTF();
+        String graph = in.readUTF();
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new Entry(seq, timestamp, op, graph.isEmpty() ? null : graph, new String(text, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,99 @@
+/******************************************************************
+ * File:        WResultSetColumnar.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.graph.Node;
+
+import com.epimorphics.appbase.data.WNode;
+import com.epimorphics.appbase.data.WQuerySolution;
+import com.epimorphics.appbase.data.WResultSet;
+import com.epimorphics.appbase.data.WSource;
+
+/**
+ * Implementation of WResultSet over a columnar result set. Can be iterated
+ * over multiple times, each row is only wrapped as it is first reached and the
+ * wrapped row is then reused, so descriptions attached to its nodes (for example by
+ * {@link WSource#describe(WResultSet)}) are retained for later iterations.
+ */
+public class WResultSetColumnar implements WResultSet {
+    protected ColumnarResultSet results;
+    protected int start;
+    protected WSource source;
+    protected WQuerySolution[] rows;
+
+    /**
+     * Wrap the rows of the result set from its current position onwards.
+     * Does not move the cursor of the given result set.
+     */
+    public WResultSetColumnar(ColumnarResultSet results, WSource source) {
+        this.results = results;
+        this.start = results.position();
+        this.source = source;
+        this.rows = new WQuerySolution[ Math.max(0, results.size() - start) ];
+    }
+
+    @Override
+    public Iterator<WQuerySolution> iterator() {
+        return new Iterator<WQuerySolution>() {
+            int row = start;
+
+            @Override
+            public boolean hasNext() {
+                return row < results.size();
+            }
+
+            @Override
+            public WQuerySolution next() {
+                if (row >= results.size()) {
+                    throw new NoSuchElementException();
+                }
+                int i = row++ - start;
+                WQuerySolution solution = rows[i];
+                if (solution == null) {
+                    solution = solution(i + start);
+                    rows[i] = solution;
+                }
+                return solution;
+            }
+        };
+    }
+
+    protected WQuerySolution solution(int row) {
+        List<String> vars = results.getResultVars();
+        Map<String, WNode> values = new HashMap<>();
+        for (int i = 0; i < vars.size(); i++) {
+            Node value = results.get(row, i);
+            if (value != null) {
+                values.put(vars.get(i), source.get(value));
+            }
+        }
+        return new WQuerySolution(values);
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return results.getResultVars();
+    }
+
+    @Override
+    public WResultSet copy() {
+        return this;
+    }
+
+    public int count() {
+        return results.size() - start;
+    }
+}
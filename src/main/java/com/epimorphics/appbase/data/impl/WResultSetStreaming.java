@@ -0,0 +1,101 @@
+/******************************************************************
+ * File:        WResultSetStreaming.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.epimorphics.appbase.core.RequestScope;
+import com.epimorphics.appbase.data.ClosableResultSet;
+import com.epimorphics.appbase.data.WQuerySolution;
+import com.epimorphics.appbase.data.WResultSet;
+import com.epimorphics.appbase.data.WSource;
+import com.epimorphics.util.EpiException;
+
+/**
+ * Implementation of WResultSet which streams rows from an underlying
+ * ClosableResultSet as they are iterated over. The underlying resources
+ * (read transaction, HTTP connection) are released as soon as the results
+ * are exhausted, when this is closed, or when the enclosing {@link RequestScope}
+ * closes, whichever comes first.
+ * <p>
+ * Can only be iterated once. Calling {@link #copy()} spills any remaining rows
+ * to a materialized form, after which this result set iterates over that copy.
+ * </p>
+ */
+public class WResultSetStreaming implements Iterator<WQuerySolution>, WResultSet, AutoCloseable {
+    protected ClosableResultSet results;
+    protected WSource source;
+    protected List<String> varnames;
+    protected WResultSetColumnar spilled;
+    protected boolean closed = false;
+
+    public WResultSetStreaming(ClosableResultSet results, WSource source) {
+        this.results = results;
+        this.source = source;
+        this.varnames = results.getResultVars();
+        RequestScope.register(this);
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return varnames;
+    }
+
+    @Override
+    public Iterator<WQuerySolution> iterator() {
+        if (spilled != null) {
+            return spilled.iterator();
+        }
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) return false;
+        boolean hasNext = results.hasNext();
+        if (!hasNext) {
+            close();
+        }
+        return hasNext;
+    }
+
+    @Override
+    public WQuerySolution next() {
+        return new WQuerySolution(source, results.nextBinding());
+    }
+
+    @Override
+    public void remove() {
+        throw new EpiException("Remove not implemented on result sets");
+    }
+
+    @Override
+    public synchronized WResultSet copy() {
+        if (spilled == null) {
+            try {
+                ColumnarResultSet rest = closed ? ColumnarResultSet.empty(varnames) : ColumnarResultSet.materialize(results);
+                spilled = new WResultSetColumnar(rest, source);
+            } finally {
+                close();
+            }
+        }
+        return spilled;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            results.close();
+            RequestScope.deregister(this);
+        }
+    }
+}
@@ -62,7 +62,11 @@ public class WResultSetWrapper implements Iterable<WQuerySolution>, Iterator<WQu
     
     @Override
     public WResultSet copy() {
-        return new WResultSetMaterialized(results, source);
+        if (results instanceof ColumnarResultSet) {
+            // Already materialized, share the column data from the current position
+            return new WResultSetColumnar((ColumnarResultSet)results, source);
+        }
+        return new WResultSetColumnar(ColumnarResultSet.materialize(results), source);
     }
 
 }
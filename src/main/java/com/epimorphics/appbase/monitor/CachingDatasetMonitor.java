@@ -14,12 +14,17 @@ import java.util.Map;
 
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.rdf.model.StmtIterator;
 
 /**
  * Variant on the DatasetMonitor which maintains an up to date, in memory,
  * cache of the union of the monitored models. 
  * Only makes sense to use this when the underlying dataset is persistent and contains
  * other data, and the monitored data is small and needs fast access.
+ * When a monitored file changes incrementally the delta is applied to a copy of the
+ * cached union which then replaces it, so a model returned by {@link #getCachedUnion()}
+ * is never modified and can be read without locking (though it may become stale).
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
@@ -43,6 +48,32 @@ public class CachingDatasetMonitor extends DatasetMonitor {
         cachedModels.put(graph, model);
     }
     
+    @Override
+    protected synchronized void changeModelHook(String graph, Model model, GraphDelta delta) {
+        cachedModels.put(graph, model);
+        if (cachedUnion != null) {
+            Model union = ModelFactory.createDefaultModel().add(cachedUnion);
+            // Only retract triples which are not also asserted by another monitored file
+            for (StmtIterator i = delta.removals.listStatements(); i.hasNext();) {
+                Statement s = i.next();
+                if (!assertedElsewhere(graph, s)) {
+                    union.remove(s);
+                }
+            }
+            union.add(delta.additions);
+            cachedUnion = union;
+        }
+    }
+    
+    private boolean assertedElsewhere(String graph, Statement s) {
+        for (Map.Entry<String, Model> entry : cachedModels.entrySet()) {
+            if (!entry.getKey().equals(graph) && entry.getValue().contains(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     @Override
     protected synchronized void removeModelHook(String graph) {
         cachedUnion = null;
@@ -11,10 +11,12 @@ package com.epimorphics.appbase.monitor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledFuture;
@@ -215,9 +217,18 @@ public abstract class ConfigMonitor<T extends ConfigInstance> extends ComponentB
     private synchronized void doScan(boolean returnImmediately) {
         Set<FileRecord> changes = scanner.scan(returnImmediately);
         synchronized (this) {
-            for ( FileRecord change : changes ) {
-                process(change);
-            }
+            processAll(changes);
+        }
+    }
+    
+    /**
+     * Handle a set of file changes found by a single scan, which will include
+     * every file on the initial scan. The default processes each change in turn,
+     * subclasses may override this to prepare the changes in parallel.
+     */
+    protected void processAll(Collection<FileRecord> changes) {
+        for ( FileRecord change : changes ) {
+            process(change);
         }
     }
     
@@ -234,8 +245,7 @@ public abstract class ConfigMonitor<T extends ConfigInstance> extends ComponentB
                 
             case MODIFIED:
                 Collection<T> entrylist = configure(file);
-                removeEntry( file );
-                addEntry(file, entrylist);
+                replaceEntry(file, entrylist);
                 break;
                 
             case DELETED:
@@ -285,6 +295,25 @@ public abstract class ConfigMonitor<T extends ConfigInstance> extends ComponentB
         }
     }
     
+    // Assumes in synchronized block
+    private void replaceEntry(File file, Collection<T> entrylist) {
+        List<T> old = new ArrayList<>();
+        entries.getAll(file).forEachRemaining(old::add);
+        if (old.size() == 1 && entrylist.size() == 1) {
+            T oldEntry = old.get(0);
+            T entry = entrylist.iterator().next();
+            if (oldEntry != null && oldEntry.getName() != null && oldEntry.getName().equals(entry.getName())) {
+                log.info("Replacing monitored entry " + entry.getName() + " from: " + file);
+                doReplaceEntry(oldEntry, entry);
+                entries.remove(file);
+                entries.put(file, entry);
+                return;
+            }
+        }
+        removeEntry( file );
+        addEntry(file, entrylist);
+    }
+    
     protected void doAddEntry(T entry) {
         String name = entry.getName();
         if (name != null) {
@@ -298,4 +327,14 @@ public abstract class ConfigMonitor<T extends ConfigInstance> extends ComponentB
             entryIndex.remove(name);
         }
     }
+
+    /**
+     * Called when a file change yields a new version of a single existing entry
+     * with the same name. The default is to remove the old entry and add the new one,
+     * subclasses can override this to update in place.
+     */
+    protected void doReplaceEntry(T oldEntry, T entry) {
+        doRemoveEntry(oldEntry);
+        doAddEntry(entry);
+    }
 }
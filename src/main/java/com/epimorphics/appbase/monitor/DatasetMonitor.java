@@ -10,8 +10,21 @@
 package com.epimorphics.appbase.monitor;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import com.epimorphics.appbase.data.DatasetAccessor;
@@ -20,24 +33,97 @@ import org.apache.jena.riot.RDFDataMgr;
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.data.SparqlSource;
 import com.epimorphics.appbase.data.WSource;
+import com.epimorphics.appbase.data.impl.RDFSnapshotCache;
+import com.epimorphics.appbase.monitor.FileRecord.FileState;
 import com.epimorphics.util.EpiException;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 
 /**
  * Monitors a directory of RDF files, loading each into a given SparqlSource as 
  * a separate graph with the graph URI "file:<filename>". Particularly useful
  * when the underlying store is a TDB store with default union set.
+ * <p>
+ * If the associated WSource is in use then changes to a monitored file only invalidate
+ * the cached descriptions of the resources described in the old and new versions of
+ * that file, rather than the whole description cache.
+ * </p>
+ * <p>
+ * When a monitored file is modified the new version is compared to the previously
+ * loaded graph and, by default, only the added and removed triples are applied to
+ * the store. A full replace is used instead if either version contains blank nodes
+ * (which can't be matched between parses) or the change is larger than
+ * {@link #setDeltaLimit(long) deltaLimit} percent of the graph. To make the comparison
+ * without fetching the graph back from the store the last parsed version of each
+ * file is retained in memory while incremental update is enabled.
+ * </p>
+ * <p>
+ * When a scan finds several files, as on the initial load, they are parsed in parallel
+ * (see {@link #setLoadThreads(long)}) and new graphs are stored in groups of
+ * {@link #setLoadBatchSize(long) loadBatchSize}, a single write transaction per group
+ * where the store supports it.
+ * </p>
  */
 public class DatasetMonitor extends ConfigMonitor<DatasetMonitor.MonitoredGraph> {
     protected SparqlSource source;
     protected DatasetAccessor accessor;
     protected String baseDir;
     protected WSource  wsource;
+    protected Map<String, Set<Node>> graphSubjects = new ConcurrentHashMap<>();
+    protected Map<String, Graph> loadedGraphs = new ConcurrentHashMap<>();
+    protected boolean incremental = true;
+    protected int deltaLimit = 50;
+    protected int loadThreads = Runtime.getRuntime().availableProcessors();
+    protected int loadBatchSize = 100;
+    protected Map<String, Preloaded> preloaded = new HashMap<>();
+    protected RDFSnapshotCache snapshots;
     
     public void setSparqlSource(SparqlSource source) {
         this.source = source;
     }
 
+    /**
+     * Set to false to always replace the whole graph when a monitored file is modified,
+     * rather than applying the changes. Default is true.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    /**
+     * Size of change, as a percentage of the size of the new graph, above which
+     * a modified file is loaded by replacing the whole graph. Default is 50.
+     */
+    public void setDeltaLimit(long percent) {
+        this.deltaLimit = (int) percent;
+    }
+
+    /**
+     * Number of threads used to parse files in parallel when a scan finds several
+     * changes. Defaults to the number of processors, set to 1 to load serially.
+     */
+    public void setLoadThreads(long threads) {
+        this.loadThreads = (int) threads;
+    }
+    
+    /**
+     * Maximum number of new files to store in one group during a parallel load. Default is 100.
+     */
+    public void setLoadBatchSize(long size) {
+        this.loadBatchSize = Math.max(1, (int) size);
+    }
+
+    /**
+     * Set a directory in which to keep binary snapshots of the parsed files,
+     * so that unchanged files need not be re-parsed on restart.
+     */
+    public void setSnapshotDir(String dir) {
+        snapshots = new RDFSnapshotCache( asFile(dir) );
+    }
+
     public SparqlSource getSource() {
         return source;
     }
@@ -94,19 +180,187 @@ public class DatasetMonitor extends ConfigMonitor<DatasetMonitor.MonitoredGraph>
         
     }
     
+    @Override
+    protected void processAll(Collection<FileRecord> changes) {
+        if (loadThreads <= 1 || changes.size() < 2) {
+            super.processAll(changes);
+            return;
+        }
+        List<FileRecord> records = new ArrayList<>(changes);
+        ExecutorService pool = Executors.newFixedThreadPool( Math.min(loadThreads, records.size()) );
+        long start = System.currentTimeMillis();
+        int count = 0;
+        try {
+            for (int i = 0; i < records.size(); i += loadBatchSize) {
+                List<FileRecord> batch = records.subList(i, Math.min(records.size(), i + loadBatchSize));
+                count += preload(batch, pool);
+                super.processAll(batch);
+                if (records.size() > loadBatchSize) {
+                    log.info("Monitor {} loaded {} of {} files", getName(), i + batch.size(), records.size());
+                }
+            }
+        } finally {
+            pool.shutdown();
+            preloaded.clear();
+        }
+        log.info("Monitor {} loaded {} graphs in parallel in {}ms", getName(), count, System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Parse the files for a batch of changes in parallel and store any new graphs
+     * as a group, leaving the results for the subsequent add/replace to pick up.
+     */
+    protected int preload(List<FileRecord> batch, ExecutorService pool) {
+        Map<MonitoredGraph, Future<Model>> parses = new LinkedHashMap<>();
+        Set<MonitoredGraph> isNew = new HashSet<>();
+        for (FileRecord change : batch) {
+            if (change.getState() == FileState.DELETED) continue;
+            for (MonitoredGraph entry : configure(change.getFile())) {
+                parses.put(entry, pool.submit( () -> parse(entry) ));
+                if (change.getState() == FileState.NEW) {
+                    isNew.add(entry);
+                }
+            }
+        }
+        Map<String, Model> puts = new LinkedHashMap<>();
+        for (Map.Entry<MonitoredGraph, Future<Model>> parse : parses.entrySet()) {
+            MonitoredGraph entry = parse.getKey();
+            try {
+                Model model = parse.getValue().get();
+                boolean put = isNew.contains(entry) && !puts.containsKey(entry.getName());
+                if (put) {
+                    puts.put(entry.getName(), model);
+                }
+                preloaded.put(entry.getFilepath(), new Preloaded(model, put));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EpiException(e);
+            } catch (ExecutionException e) {
+                // Leave it to the normal add to retry and report
+                log.error("Failed to parse monitored file: {}", entry.getFilepath(), e.getCause());
+            }
+        }
+        if (!puts.isEmpty()) {
+            try {
+                getAccessor().putModels(puts);
+            } catch (Exception e) {
+                // Fall back to storing each one as it is added
+                log.error("Failed to store batch of monitored graphs", e);
+                preloaded.replaceAll( (path, p) -> new Preloaded(p.model, false) );
+            }
+        }
+        return parses.size();
+    }
+    
+    /**
+     * Parse the file for a monitored graph, using the snapshot cache if configured.
+     */
+    protected Model parse(MonitoredGraph entry) {
+        if (snapshots == null) {
+            return RDFDataMgr.loadModel( entry.getFilepath() );
+        }
+        return snapshots.loadModel( new File(entry.getFilepath()) );
+    }
+    
+    /**
+     * Result of parsing a monitored file ahead of adding it, and whether
+     * it has already been stored.
+     */
+    protected static class Preloaded {
+        final Model model;
+        final boolean stored;
+        
+        Preloaded(Model model, boolean stored) {
+            this.model = model;
+            this.stored = stored;
+        }
+    }
+    
     @Override
     protected void doAddEntry(MonitoredGraph entry) {
         try {
-            Model model = RDFDataMgr.loadModel( entry.getFilepath() );
-            getAccessor().putModel(entry.getName(), model);
+            Preloaded pre = preloaded.remove( entry.getFilepath() );
+            Model model = pre == null ? parse(entry) : pre.model;
+            if (pre == null || !pre.stored) {
+                getAccessor().putModel(entry.getName(), model);
+            }
             super.doAddEntry(entry);
-            if (wsource != null) wsource.resetCache();
+            invalidateDescriptions(entry.getName(), model.getGraph());
+            retain(entry.getName(), model);
             addModelHook(entry.getName(), model);
         } catch (Throwable t) {
             log.error("Failed add monitored graph: {}", entry.getName(), t);
         }
     }
     
+    @Override
+    protected void doReplaceEntry(MonitoredGraph oldEntry, MonitoredGraph entry) {
+        if (!incremental) {
+            super.doReplaceEntry(oldEntry, entry);
+            return;
+        }
+        try {
+            String name = entry.getName();
+            Preloaded pre = preloaded.remove( entry.getFilepath() );
+            Model model = pre == null ? parse(entry) : pre.model;
+            Graph previous = previousGraph(name);
+            GraphDelta delta = previous == null ? null : GraphDelta.compute(previous, model.getGraph(), deltaLimit);
+            if (delta == null) {
+                getAccessor().putModel(name, model);
+                invalidateDescriptions(name, model.getGraph());
+                entryIndex.put(name, entry);
+                retain(name, model);
+                addModelHook(name, model);
+            } else {
+                log.info("Applying {} additions, {} removals to monitored graph {}", delta.additions.size(), delta.removals.size(), name);
+                if (!delta.isEmpty()) {
+                    getAccessor().applyChanges(name, delta.additions, delta.removals);
+                }
+                entryIndex.put(name, entry);
+                if (wsource != null) {
+                    graphSubjects.put(name, WSource.describedSubjects(model.getGraph()));
+                    wsource.invalidateSubjects(delta.additions.getGraph());
+                    wsource.invalidateSubjects(delta.removals.getGraph());
+                }
+                retain(name, model);
+                changeModelHook(name, model, delta);
+            }
+        } catch (Throwable t) {
+            log.error("Failed update of monitored graph: {}", entry.getName(), t);
+        }
+    }
+    
+    /**
+     * Return the currently loaded content of the given monitored graph, against which
+     * a new version of the file is compared. Uses the retained parse of the file,
+     * only fetching from the store if that is not available. Returns null if not available.
+     */
+    protected Graph previousGraph(String graph) {
+        Graph previous = loadedGraphs.get(graph);
+        if (previous != null) {
+            return previous;
+        }
+        Model model = getAccessor().getModel(graph);
+        return model == null ? null : model.getGraph();
+    }
+    
+    /**
+     * Keep the parsed content of a monitored graph for comparison with the next version
+     */
+    protected void retain(String graph, Model model) {
+        if (incremental) {
+            loadedGraphs.put(graph, model.getGraph());
+        }
+    }
+    
+    /**
+     * Extension hook called when a graph is updated by applying a delta,
+     * default is to treat it as a fresh load.
+     */
+    protected void changeModelHook(String graph, Model model, GraphDelta delta) {
+        addModelHook(graph, model);
+    }
+    
     /**
      * Extension hook called when a graph is loaded.
      */
@@ -124,10 +378,34 @@ public class DatasetMonitor extends ConfigMonitor<DatasetMonitor.MonitoredGraph>
     @Override
     protected void doRemoveEntry(MonitoredGraph entry) {
         getAccessor().deleteModel( entry.getName() );
+        loadedGraphs.remove( entry.getName() );
         super.doRemoveEntry(entry);
-        if (wsource != null) wsource.resetCache();
+        invalidateDescriptions(entry.getName(), null);
         removeModelHook(entry.getName());
     }
+    
+    /**
+     * Invalidate any WSource cached descriptions affected by a change to a monitored graph,
+     * covering both the previously loaded and the new content of the graph.
+     * @param graph the name of the monitored graph
+     * @param content the new content of the graph, null if the graph has been removed
+     */
+    protected void invalidateDescriptions(String graph, Graph content) {
+        if (wsource == null) return;
+        Set<Node> subjects = content == null ? null : WSource.describedSubjects(content);
+        Set<Node> previous = subjects == null ? graphSubjects.remove(graph) : graphSubjects.put(graph, subjects);
+        if ( (content != null && subjects == null) || (content == null && previous == null) ) {
+            // Can't determine what was affected
+            wsource.resetCache();
+            return;
+        }
+        if (subjects != null) {
+            wsource.invalidate(subjects);
+        }
+        if (previous != null) {
+            wsource.invalidate(previous);
+        }
+    }
 
     protected DatasetAccessor getAccessor() {
         if (accessor == null) {
@@ -141,4 +419,56 @@ public class DatasetMonitor extends ConfigMonitor<DatasetMonitor.MonitoredGraph>
         }
         return accessor;
     }
+
+    /**
+     * The triples added and removed between two versions of a graph.
+     */
+    public static class GraphDelta {
+        public final Model additions = ModelFactory.createDefaultModel();
+        public final Model removals = ModelFactory.createDefaultModel();
+        
+        public boolean isEmpty() {
+            return additions.isEmpty() && removals.isEmpty();
+        }
+        
+        /**
+         * Compute the change from the previous to the current graph. Returns null if 
+         * a delta can't be used, because blank nodes are present, or if the 
+         * change is more than limit percent of the size of the current graph.
+         */
+        public static GraphDelta compute(Graph previous, Graph current, int limit) {
+            if (hasBlankNodes(previous) || hasBlankNodes(current)) {
+                return null;
+            }
+            long max = (long) current.size() * limit / 100;
+            GraphDelta delta = new GraphDelta();
+            Graph added = delta.additions.getGraph();
+            Graph removed = delta.removals.getGraph();
+            for (Iterator<Triple> i = current.find(); i.hasNext();) {
+                Triple t = i.next();
+                if (!previous.contains(t)) {
+                    added.add(t);
+                    if (added.size() > max) return null;
+                }
+            }
+            for (Iterator<Triple> i = previous.find(); i.hasNext();) {
+                Triple t = i.next();
+                if (!current.contains(t)) {
+                    removed.add(t);
+                    if (added.size() + removed.size() > max) return null;
+                }
+            }
+            return delta;
+        }
+        
+        protected static boolean hasBlankNodes(Graph graph) {
+            for (Iterator<Triple> i = graph.find(); i.hasNext();) {
+                Triple t = i.next();
+                if (t.getSubject().isBlank() || t.getObject().isBlank()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
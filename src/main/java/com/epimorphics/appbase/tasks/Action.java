@@ -10,6 +10,8 @@
 package com.epimorphics.appbase.tasks;
 
 
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.jena.atlas.json.JsonObject;
 
 import com.epimorphics.appbase.core.Named;
@@ -35,6 +37,19 @@ public interface Action extends ConfigInstance, Named {
      */
     public JsonObject run(JsonObject parameters, ProgressMonitorReporter monitor);
     
+    /**
+     * Run the action, returning a future for its results. Actions which spend their time
+     * waiting for other executions can override this so as not to hold a thread while they wait.
+     * The default runs the action synchronously.
+     */
+    public default CompletableFuture<JsonObject> runAsync(JsonObject parameters, ProgressMonitorReporter monitor) {
+        try {
+            return CompletableFuture.completedFuture( run(parameters, monitor) );
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
     /**
      * Return access to the configuration parmeters for this action, if available.
      * May return null.
@@ -47,6 +62,14 @@ public interface Action extends ConfigInstance, Named {
      */
     public int getTimeout();
     
+    /**
+     * Return the maximum number of executions of this action which may run at once,
+     * further executions wait to start. Return -1 to use the ActionManager's default.
+     */
+    public default int getMaxConcurrent() {
+        return -1;
+    }
+    
     /**
      * Return a trigger which should be used to fire this action.
      * Returns null if there is no associated trigger
@@ -13,8 +13,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.apache.jena.atlas.json.JSON;
 import org.apache.jena.atlas.json.JsonObject;
@@ -24,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.TimerManager;
 import com.epimorphics.appbase.tasks.impl.InternalAction;
+import com.epimorphics.appbase.util.Bulkhead;
 import com.epimorphics.appbase.util.TimeStamp;
 import com.epimorphics.json.JSFullWriter;
 import com.epimorphics.json.JSONWritable;
@@ -52,13 +57,24 @@ public class ActionExecution implements Runnable, JSONWritable {
     protected static final String ID_KEY = "id";
     protected static final String RESULT_KEY = "result";
     
+    // The execution running on the current thread, if any
+    protected static final ThreadLocal<ActionExecution> current = new ThreadLocal<>();
+    
     private final ActionManager actionManager;
     protected ActionInstance instance;
     protected long startTime;
     protected long finishTime = 0;
     protected ProgressMonitorReporter monitor;
     protected String id = TimeStamp.makeTimestamp();
-    protected Future<?> future;
+    protected volatile Future<?> future;
+    protected volatile boolean started = false;
+    // Set once run() has returned leaving asynchronous work to finish later
+    protected volatile boolean asyncPending = false;
+    protected volatile boolean cancelled = false;
+    // The per-action limit held by the execution and whether it, and its queue slot, have been released
+    protected Semaphore heldLimit;
+    protected boolean released = false;
+    protected final CompletableFuture<ActionExecution> completion = new CompletableFuture<>();
     protected JsonObject result;
     
     public ActionExecution(ActionManager actionManager, ActionInstance instance, ProgressMonitorReporter monitor) {
@@ -125,19 +141,186 @@ public class ActionExecution implements Runnable, JSONWritable {
         return instance.getCall();
     }
     
+    /**
+     * Return a future which completes once this execution has finished, 
+     * whether successfully, in failure or by being cancelled.
+     */
+    public CompletableFuture<ActionExecution> getCompletion() {
+        return completion.copy();
+    }
+    
+    /**
+     * Return the number of queued actions ahead of this one, or -1 if not waiting in a queue
+     */
+    public int getQueuePosition() {
+        return actionManager.getQueuePosition(id);
+    }
+    
+    /**
+     * Return a rough estimate (in ms) of the time until this execution starts, 0 if not waiting in a queue
+     */
+    public long getEstimatedWait() {
+        return actionManager.getEstimatedWait(id);
+    }
+    
+    /**
+     * Return the execution being run by the current thread, or null if the thread is not running an action
+     */
+    public static ActionExecution current() {
+        return current.get();
+    }
+    
+    /**
+     * Wrap a continuation of the current execution's asynchronous work so that it
+     * runs as part of that execution, whichever thread completes the work
+     */
+    public static <T, R> Function<T, R> within(Function<T, R> continuation) {
+        ActionExecution execution = current.get();
+        return value -> {
+            ActionExecution outer = current.get();
+            current.set(execution);
+            try {
+                return continuation.apply(value);
+            } finally {
+                current.set(outer);
+            }
+        };
+    }
+    
+    /**
+     * Wrap a continuation of the current execution's asynchronous work so that it
+     * runs as part of that execution, whichever thread completes the work
+     */
+    public static <T, U, R> BiFunction<T, U, R> within(BiFunction<T, U, R> continuation) {
+        ActionExecution execution = current.get();
+        return (value, error) -> {
+            ActionExecution outer = current.get();
+            current.set(execution);
+            try {
+                return continuation.apply(value, error);
+            } finally {
+                current.set(outer);
+            }
+        };
+    }
+    
     @Override
     public void run() {
+        synchronized (this) {
+            if (cancelled) {
+                // Cancelled, and released, before it could start
+                return;
+            }
+            started = true;
+        }
+        ActionExecution outer = current.get();
+        current.set(this);
+        Semaphore limit = null;
+        CompletableFuture<JsonObject> running = null;
+        try {
+            limit = actionManager.limitFor( getAction() );
+            if (limit != null) {
+                try {
+                    limit.acquire();
+                } catch (InterruptedException e) {
+                    // Cancelled before it could start
+                    actionManager.recordEndOfExecution(this);
+                    return;
+                }
+            }
+            if ( ! hold(limit) ) {
+                // Cancelled, and released, before it could start
+                if (limit != null) {
+                    limit.release();
+                }
+                return;
+            }
+            running = doRun();
+        } finally {
+            // Asynchronous actions finish later, on whichever thread completes them
+            if (running == null) {
+                finished();
+            } else {
+                boolean cancelledWhileStarting;
+                synchronized (this) {
+                    asyncPending = true;
+                    cancelledWhileStarting = cancelled;
+                }
+                if (cancelledWhileStarting) {
+                    // Don't wait for the asynchronous work to release
+                    release();
+                }
+                running.whenComplete( (r, e) -> finished() );
+            }
+            current.set(outer);
+        }
+    }
+    
+    private synchronized boolean hold(Semaphore limit) {
+        if (released) {
+            return false;
+        }
+        heldLimit = limit;
+        return true;
+    }
+    
+    /**
+     * Release the per-action limit and queue slot held by this execution, if not already released
+     */
+    private void release() {
+        Semaphore limit;
+        synchronized (this) {
+            if (released) return;
+            released = true;
+            limit = heldLimit;
+            heldLimit = null;
+        }
+        if (limit != null) {
+            limit.release();
+        }
+        actionManager.executionFinished(this);
+    }
+    
+    private void finished() {
+        release();
+        completion.complete(this);
+    }
+    
+    protected CompletableFuture<JsonObject> doRun() {
         this.actionManager.actionStartEvent(this, getParameters());
         startTime = System.currentTimeMillis();
         monitor.setState(TaskState.Running);
         startTimeout();
-        result = instance.run(monitor);
-        finishTime = System.currentTimeMillis();
-        this.actionManager.recordEndOfExecution(this);
-        if (monitor.getState() != TaskState.Terminated) {
-            condMarkTerminated("Thread died before completion, cause unknown");
+        // Queries made by actions are batch work, giving way to interactive requests
+        Bulkhead.Lane lane = Bulkhead.getLane();
+        Bulkhead.setLane(Bulkhead.Lane.BATCH);
+        CompletableFuture<JsonObject> running;
+        try {
+            running = instance.runAsync(JsonUtil.emptyObject(), monitor);
+        } finally {
+            Bulkhead.setLane(lane);
         }
-        this.actionManager.actionEndEvent(this, result);
+        return running.handle( within( (JsonObject r, Throwable e) -> {
+            if (e != null) {
+                log.error("Action execution failed", e);
+            }
+            result = r;
+            finishTime = System.currentTimeMillis();
+            this.actionManager.recordEndOfExecution(this);
+            if (monitor.getState() != TaskState.Terminated) {
+                condMarkTerminated("Thread died before completion, cause unknown");
+            }
+            this.actionManager.actionEndEvent(this, result);
+            return result;
+        }) );
+    }
+    
+    /**
+     * Reinstate the id of an execution recovered from the action queue
+     */
+    void restoreId(String id) {
+        this.id = id;
+        instance.addConfig(ActionManager.ACTION_EXECUTION_PARAM, id);
     }
     
     Future<?> start() {
@@ -160,10 +343,39 @@ public class ActionExecution implements Runnable, JSONWritable {
      * Cancel the execution, recording the given message on the progress monitor
      */
     public void cancel(String message) {
-        if ( ! future.isDone() ) {
+        if (future == null && actionManager.dequeue(this)) {
+            // Was still waiting in the action queue
+            monitor.setState(TaskState.Terminated);
+            condMarkTerminated(message);
+            actionManager.recordEndOfExecution(this);
+            completion.complete(this);
+            return;
+        }
+        // The queue may have started it while we were trying to dequeue it
+        Future<?> future = this.future;
+        if (future == null) {
+            return;
+        }
+        if ( ! completion.isDone() ) {
+            // Decided under the same lock as run() starts, so a running execution is never released here
+            boolean neverStarted;
+            boolean releaseNow;
+            synchronized (this) {
+                cancelled = true;
+                neverStarted = !started;
+                // Asynchronous work may never complete, don't let it hold the limit or queue slot
+                releaseNow = neverStarted || asyncPending;
+            }
             monitor.setState(TaskState.Terminated);
             condMarkTerminated(message);
             future.cancel(true);
+            if (neverStarted) {
+                actionManager.recordEndOfExecution(this);
+            }
+            if (releaseNow) {
+                release();
+            }
+            completion.complete(this);
         }
     }
     
@@ -174,7 +386,7 @@ public class ActionExecution implements Runnable, JSONWritable {
     
     public void waitForCompletion() {
         try {
-            future.get();
+            completion.get();
         } catch(Exception e) {
             log.warn("Wait for action completion interrupted", e);
         }
@@ -11,6 +11,8 @@ package com.epimorphics.appbase.tasks;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.jena.atlas.json.JsonObject;
 
@@ -68,6 +70,11 @@ public class ActionInstance implements Action {
         return timeout;
     }
     
+    @Override
+    public int getMaxConcurrent() {
+        return baseAction.getMaxConcurrent();
+    }
+    
     @Override
     public JsonObject getConfig() {
         return call;
@@ -147,10 +154,19 @@ public class ActionInstance implements Action {
     @Override
     public JsonObject run(JsonObject parameters,
             ProgressMonitorReporter monitor) {
+        return runAsync(parameters, monitor).join();
+    }
+    
+    @Override
+    public CompletableFuture<JsonObject> runAsync(JsonObject parameters,
+            ProgressMonitorReporter monitor) {
 //        JsonObject thiscall = JsonUtil.merge(call, parameters);
         JsonObject thiscall = JsonUtil.merge(parameters, call);
-        JsonObject result = safeRun(baseAction, thiscall, monitor);
-        
+        return safeRunAsync(baseAction, thiscall, monitor)
+                .thenCompose( ActionExecution.within( (JsonObject result) -> runFollowOns(thiscall, result, monitor) ) );
+    }
+    
+    private CompletableFuture<JsonObject> runFollowOns(JsonObject thiscall, JsonObject result, ProgressMonitorReporter monitor) {
         String aeid = JsonUtil.getStringValue(thiscall, ActionManager.ACTION_EXECUTION_PARAM, null);
         if (aeid != null) {
             // Merge rather than put to avoid overwriting the EMPTY_OBJECT
@@ -159,45 +175,47 @@ public class ActionInstance implements Action {
         
         JsonObject followOnCall = JsonUtil.merge(thiscall, result);
         
-        if (monitor.succeeded()) {
-            synchronized (this) {
-                for (Action a : onSuccessList) {
-                    safeRun(a, followOnCall, monitor);
-                }
-            }
-        } else {
-            synchronized (this) {
-                for (Action a : onErrorList) {
-                    safeRun(a, followOnCall, monitor);
-                }
-            }
+        List<Action> followOns;
+        synchronized (this) {
+            followOns = new ArrayList<>( monitor.succeeded() ? onSuccessList : onErrorList );
         }
-        if (monitor.getState() != TaskState.Terminated) {
-            monitor.setState(TaskState.Terminated);
+        // Each follow on starts once the previous one completes, without holding a thread while waiting
+        CompletableFuture<JsonObject> chain = CompletableFuture.completedFuture(result);
+        for (Action a : followOns) {
+            chain = chain.thenCompose( ActionExecution.within( (JsonObject previous) -> safeRunAsync(a, followOnCall, monitor) ) );
         }
-        return result;
+        JsonObject finalResult = result;
+        return chain.thenApply( previous -> {
+            if (monitor.getState() != TaskState.Terminated) {
+                monitor.setState(TaskState.Terminated);
+            }
+            return finalResult;
+        });
     }
     
-    private JsonObject safeRun(Action a, JsonObject params, ProgressMonitorReporter monitor) {
-        JsonObject result = null;
+    private CompletableFuture<JsonObject> safeRunAsync(Action a, JsonObject params, ProgressMonitorReporter monitor) {
+        CompletableFuture<JsonObject> running;
         try {
-            result = a.run(params, monitor);
+            running = a.runAsync(params, monitor);
         } catch (Exception e) {
-            ActionManager.log.error("Exception during action execution", e);
-            monitor.reportError("Exception during execution: " + e);
-            result = JsonUtil.emptyObject();
+            running = CompletableFuture.failedFuture(e);
         }
-        JsonObject followOnCall = JsonUtil.merge(params, result);
-        if (monitor.succeeded()) {
-            if (a.getOnSuccess() != null) {
-                safeRun(a.getOnSuccess(), followOnCall, monitor);
+        return running.handle( ActionExecution.within( (JsonObject result, Throwable e) -> {
+            if (e != null) {
+                Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                ActionManager.log.error("Exception during action execution", cause);
+                monitor.reportError("Exception during execution: " + cause);
+                result = JsonUtil.emptyObject();
             }
-        } else {
-            if (a.getOnError() != null) {
-                safeRun(a.getOnError(), followOnCall, monitor);
+            return result;
+        }) ).thenCompose( ActionExecution.within( (JsonObject result) -> {
+            Action next = monitor.succeeded() ? a.getOnSuccess() : a.getOnError();
+            if (next == null) {
+                return CompletableFuture.completedFuture(result);
             }
-        }
-        return result;
+            // Chained rather than joined so no thread is held while the follow on runs
+            return safeRunAsync(next, JsonUtil.merge(params, result), monitor).thenApply( r -> result );
+        }) );
     }
     
     /**
@@ -51,9 +51,13 @@ import com.epimorphics.util.EpiException;
  *   <li><code>@name</code> - a name for the action</li>
  *   <li><code>@description</code> - optional description</li>
  *   <li><code>@timeout</code> - optional timeout value in milliseconds</li>
+ *   <li><code>@maxConcurrent</code> - optional limit on the number of concurrent executions of the action</li>
+ *   <li><code>@priority</code> - priority of the action if ActionManager is using a queue, "high", "normal" (default) or "low"</li>
  *   <li><code>@base</code> - the name of a base action which this simple action parameterizes</li>
  *   <li><code>@javaclass</code> - name of a javaclass that implements the base action, alternative to @base for simple actions</li>
  *   <li><code>@actions</code> - array of actions which make up a sequence or parallel action</li>
+ *   <li><code>@required</code> - for parallel actions, the number of component actions which must succeed (default all)</li>
+ *   <li><code>@failFast</code> - for parallel actions, fail as soon as any component action fails</li>
  *   <li><code>@onError</code> - action to be invoke if this or any component actions fail</li>
  *   <li><code>@trigger</code> - regex which, if it matches an event, triggers the action</li>
  * </ul>
@@ -66,9 +70,13 @@ public class ActionJsonFactorylet implements ActionFactory.Factorylet {
     public static final String NAME_KEY        = "@name";
     public static final String DESCRIPTION_KEY = "@description";
     public static final String TIMEOUT_KEY     = "@timeout";
+    public static final String MAX_CONCURRENT_KEY = "@maxConcurrent";
+    public static final String PRIORITY_KEY    = "@priority";
     public static final String BASE_KEY        = "@base";
     public static final String JAVACLASS_KEY   = "@javaclass";
     public static final String ACTIONS_KEY     = "@actions";
+    public static final String REQUIRED_KEY    = "@required";
+    public static final String FAIL_FAST_KEY   = "@failFast";
     public static final String ON_ERROR_KEY    = "@onError";
     public static final String ON_SUCCESS_KEY  = "@onSuccess";
     public static final String TRIGGER_KEY     = "@trigger";
@@ -88,9 +96,13 @@ public class ActionJsonFactorylet implements ActionFactory.Factorylet {
         ALLOWED_KEYS.add(NAME_KEY);
         ALLOWED_KEYS.add(DESCRIPTION_KEY);
         ALLOWED_KEYS.add(TIMEOUT_KEY);
+        ALLOWED_KEYS.add(MAX_CONCURRENT_KEY);
+        ALLOWED_KEYS.add(PRIORITY_KEY);
         ALLOWED_KEYS.add(BASE_KEY);
         ALLOWED_KEYS.add(JAVACLASS_KEY);
         ALLOWED_KEYS.add(ACTIONS_KEY);
+        ALLOWED_KEYS.add(REQUIRED_KEY);
+        ALLOWED_KEYS.add(FAIL_FAST_KEY);
         ALLOWED_KEYS.add(ON_ERROR_KEY);
         ALLOWED_KEYS.add(ON_SUCCESS_KEY);
         ALLOWED_KEYS.add(TRIGGER_KEY);
@@ -9,31 +9,32 @@
 
 package com.epimorphics.appbase.tasks;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.jena.atlas.json.JSON;
 import org.apache.jena.atlas.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,8 +48,12 @@ import com.epimorphics.json.JSFullWriter;
 import com.epimorphics.json.JsonUtil;
 import com.epimorphics.tasks.ProgressMonitorReporter;
 import com.epimorphics.tasks.SimpleProgressMonitor;
+import com.epimorphics.tasks.TaskState;
 import com.epimorphics.util.EpiException;
 import com.epimorphics.util.FileUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 import org.slf4j.MDC;
 
 /**
@@ -58,8 +63,25 @@ import org.slf4j.MDC;
  * <p>Additional configuration options:</p>
  * <ul>
  * <li>maxHistory - how many completed ActionExecutions to retain in memory</li>
+ * <li>traceDir - directory in which to record traces of completed executions, in a {@link TraceStore}</li>
+ * <li>traceCacheSize - how many executions reloaded from the trace directory to keep in memory (default 100)</li>
+ * <li>traceSegmentSize - size (in bytes) of each trace store segment (default 16MB)</li>
+ * <li>traceRetention - number of days for which to keep traces, older segments are deleted (default 0, keep all)</li>
  * <li>factories - comma-separated list of javaclass names for ActionFactory factorylets to use for parsing configuration files</li>
  * <li>logDirectory - file name for a separate log of all actions, actions will still be included in the webapp log</li>
+ * <li>executor - "pool" (default) to run actions on a small fixed pool of threads, or "virtual" to run each
+ *     action on its own virtual thread, so that bursts of actions are never rejected and blocked
+ *     actions don't tie up pool threads</li>
+ * <li>maxPerAction - default limit on the number of concurrent executions of any one action, an action
+ *     can set its own limit using <code>@maxConcurrent</code>. Executions beyond the limit wait to start.
+ *     Intended for use with the virtual executor, with a pool waiting executions hold pool threads.</li>
+ * <li>queueDir - if set, actions are submitted through a durable {@link ActionQueue} recorded in this directory
+ *     (for example a "queue" subdirectory of the trace directory). Queued actions survive a restart and are run
+ *     in order of their <code>@priority</code> (set on the action or in the call parameters).
+ *     Actions started from within a running action bypass the queue, so nested actions can't deadlock waiting for their parent's slot.</li>
+ * <li>queueLimits - maximum concurrently running queued actions for each priority, default "high=4,normal=4,low=2"</li>
+ * <li>maxQueued - maximum number of waiting actions, further submissions wait for space (default 1000)</li>
+ * <li>queueTimeout - maximum time (in ms) a submission will wait for space in the queue before failing (default 30000)</li>
  * </ul>
  */
 public class ActionManager extends ConfigMonitor<Action> implements Shutdown, Startup {
@@ -68,27 +90,40 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
     public static final String ACTION_EXECUTION_PARAM = "actionExecutionID";
     
     protected static final int DEFAULT_HISTORY_SIZE = 500;
+    protected static final int DEFAULT_TRACE_CACHE_SIZE = 100;
     private static final int MAX_THREADS = 20;
     private static final int CORE_THREADS = 10;
     private static final int QUEUE_DEPTH = 10;
     private static final int KEEPALIVE = 1000;
     
+    public static final String EXECUTOR_POOL = "pool";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    
     // Table of available actions provided by super class
     
-    protected Set<ActionExecution> currentExecutions = new HashSet<>();
-    protected Map<String, ActionExecution> executionIndex = new HashMap<String, ActionExecution>();
-    protected Deque<ActionExecution> executionHistory = new ArrayDeque<>(DEFAULT_HISTORY_SIZE);
+    protected ExecutionHistory history = new ExecutionHistory(DEFAULT_HISTORY_SIZE);
+    protected Cache<String, ActionExecution> traceCache = Caffeine.newBuilder().maximumSize(DEFAULT_TRACE_CACHE_SIZE).build();
     protected Set<Action> triggerableActions = new HashSet<>();
     protected Map<Event, List<ProcessingHook>> installedHooks = new HashMap<>();
 
-    protected ThreadPoolExecutor executor = new ThreadPoolExecutor(CORE_THREADS, MAX_THREADS, KEEPALIVE, TimeUnit.MILLISECONDS, 
+    protected ExecutorService executor = new ThreadPoolExecutor(CORE_THREADS, MAX_THREADS, KEEPALIVE, TimeUnit.MILLISECONDS, 
             new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH));
+    protected Map<String, Semaphore> actionLimits = new ConcurrentHashMap<>();
+    protected int maxPerAction = -1;
+    protected File queueDir;
+    protected int[] queueLimits = {4, 4, 2};
+    protected int maxQueued = 1000;
+    protected long queueTimeout = 30000;
+    protected volatile ActionQueue queue;
     
     // Configuration options beyond base ConfigMonitor
     protected int maxHistory = DEFAULT_HISTORY_SIZE;
     protected File logF;
     protected FileWriter actionLog;
     protected File traceDir = null;
+    protected long traceSegmentSize = TraceStore.DEFAULT_SEGMENT_SIZE;
+    protected long traceRetention = 0;
+    protected volatile TraceStore traceStore;
     protected File scriptDir = null;
 
     /**
@@ -96,6 +131,141 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
      */
     public void setMaxHistory(long maxHistory) {
         this.maxHistory = (int) maxHistory;
+        history.setMaxSize(this.maxHistory);
+    }
+    
+    /**
+     * Configure the number of executions reloaded from the trace directory to keep in memory, default is 100
+     */
+    public void setTraceCacheSize(long size) {
+        traceCache = Caffeine.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * Configure how actions are run, "pool" (the default) or "virtual"
+     */
+    public void setExecutor(String type) {
+        ExecutorService old = executor;
+        if (EXECUTOR_VIRTUAL.equalsIgnoreCase(type)) {
+            executor = Executors.newThreadPerTaskExecutor( Thread.ofVirtual().name("action-", 0).factory() );
+        } else if (EXECUTOR_POOL.equalsIgnoreCase(type)) {
+            executor = new ThreadPoolExecutor(CORE_THREADS, MAX_THREADS, KEEPALIVE, TimeUnit.MILLISECONDS, 
+                    new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH));
+        } else {
+            throw new EpiException("Unknown action executor type: " + type);
+        }
+        old.shutdown();
+    }
+    
+    /**
+     * Configure the default limit on concurrent executions of each action, -1 (the default) for no limit
+     */
+    public void setMaxPerAction(long max) {
+        maxPerAction = (int) max;
+    }
+    
+    /**
+     * Return the semaphore limiting concurrent executions of the action, or null if there is no limit
+     */
+    protected Semaphore limitFor(Action action) {
+        int limit = action.getMaxConcurrent();
+        if (limit <= 0) {
+            limit = maxPerAction;
+        }
+        if (limit <= 0) {
+            return null;
+        }
+        int permits = limit;
+        return actionLimits.computeIfAbsent(action.getName() + "/" + permits, k -> new Semaphore(permits, true));
+    }
+
+    /**
+     * Configure a directory in which to record a durable queue of submitted actions
+     */
+    public void setQueueDir(String dir) {
+        queueDir = asFile(dir);
+    }
+    
+    /**
+     * Configure the maximum number of concurrently running queued actions for each priority,
+     * as a comma separated list of priority=limit pairs, e.g. "high=4,normal=4,low=2"
+     */
+    public void setQueueLimits(String limits) {
+        for (String pair : limits.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new EpiException("Illegal queue limit: " + pair);
+            }
+            queueLimits[ ActionQueue.asPriority(parts[0]).ordinal() ] = Integer.parseInt( parts[1].trim() );
+        }
+    }
+    
+    /**
+     * Configure the maximum number of actions waiting in the queue
+     */
+    public void setMaxQueued(long max) {
+        maxQueued = (int) max;
+    }
+    
+    /**
+     * Configure the maximum time (in ms) a submission will wait for space in the queue
+     */
+    public void setQueueTimeout(long timeout) {
+        queueTimeout = timeout;
+    }
+    
+    /**
+     * Return the action queue, or null if actions are not queued
+     */
+    public ActionQueue getQueue() {
+        ActionQueue q = queue;
+        if (q == null && queueDir != null) {
+            synchronized (this) {
+                q = queue;
+                if (q == null) {
+                    q = new ActionQueue(this, queueDir, queueLimits, maxQueued, queueTimeout);
+                    queue = q;
+                }
+            }
+        }
+        return q;
+    }
+    
+    /**
+     * Return the number of queued actions ahead of the given execution, -1 if it is not waiting in the queue
+     */
+    public int getQueuePosition(String id) {
+        ActionQueue q = getQueue();
+        return q == null ? -1 : q.getPosition(id);
+    }
+    
+    /**
+     * Return an estimate of the time (in ms) until the given execution starts, 0 if it is not waiting in the queue
+     */
+    public long getEstimatedWait(String id) {
+        ActionQueue q = getQueue();
+        return q == null ? 0 : q.getEstimatedWait(id);
+    }
+    
+    protected boolean dequeue(ActionExecution ae) {
+        ActionQueue q = getQueue();
+        return q != null && q.cancel(ae);
+    }
+    
+    protected void executionFinished(ActionExecution ae) {
+        ActionQueue q = getQueue();
+        if (q != null) {
+            q.finished(ae);
+        }
+    }
+    
+    protected ActionQueue.Priority priorityFor(ActionInstance instance) {
+        String priority = JsonUtil.getStringValue(instance.getCall(), ActionJsonFactorylet.PRIORITY_KEY, null);
+        JsonObject config = instance.getAction().getConfig();
+        if (priority == null && config != null) {
+            priority = JsonUtil.getStringValue(config, ActionJsonFactorylet.PRIORITY_KEY, null);
+        }
+        return ActionQueue.asPriority(priority);
     }
 
     /**
@@ -126,6 +296,37 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
         return traceDir == null ? null : traceDir.getPath();
     }
     
+    /**
+     * Configure the size (in bytes) at which a new trace segment is started
+     */
+    public void setTraceSegmentSize(long size) {
+        traceSegmentSize = size;
+    }
+    
+    /**
+     * Configure the number of days for which to retain traces
+     */
+    public void setTraceRetention(long days) {
+        traceRetention = TimeUnit.DAYS.toMillis(days);
+    }
+    
+    /**
+     * Return the store in which traces are recorded, or null if tracing is not enabled
+     */
+    public TraceStore getTraceStore() {
+        TraceStore store = traceStore;
+        if (store == null && traceDir != null) {
+            synchronized (this) {
+                store = traceStore;
+                if (store == null) {
+                    store = new TraceStore(traceDir, traceSegmentSize, traceRetention);
+                    traceStore = store;
+                }
+            }
+        }
+        return store;
+    }
+    
     /**
      * Configure a directory which will hold shell scripts usable as actions.
      */
@@ -175,6 +376,12 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
                 // ignore, we are shutting down anyway
             }
         }
+        synchronized (this) {
+            if (traceStore != null) {
+                traceStore.close();
+                traceStore = null;
+            }
+        }
     }
     
     @Override
@@ -183,22 +390,53 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
         if (traceDir != null) {
             loadTraceHistory();
         }
+        ActionQueue q = getQueue();
+        if (q != null) {
+            int recovered = q.recover();
+            if (recovered > 0) {
+                log.info("Resubmitted " + recovered + " queued actions");
+            }
+        }
     }
     
     private void loadTraceHistory() {
-        String[] tracesFiles = traceDir.list();
+        TraceStore store = getTraceStore();
+        importTraceFiles(store);
+        for (byte[] trace : store.tail(maxHistory)) {
+            ActionExecution ae = reloadTrace(trace);
+            if (ae != null)
+                history.add(ae, ae.getStartTime(), false);
+        }
+        log.info("Loaded " + history.size() + " historical action traces");
+    }
+    
+    /**
+     * Move any traces recorded as individual files, by earlier versions, into the trace store
+     */
+    private void importTraceFiles(TraceStore store) {
+        String[] tracesFiles = traceDir.list( (dir, name) -> name.startsWith("trace-") && name.endsWith(".json") );
+        if (tracesFiles == null || tracesFiles.length == 0) return;
         Arrays.sort(tracesFiles);
-        int start = Math.max(0, tracesFiles.length - maxHistory);
-        try {
-            for (int i = start; i < tracesFiles.length; i++) {
-                ActionExecution ae = ActionExecution.reload(this, new File(traceDir, tracesFiles[i]));
-                if (ae != null)
-                    executionHistory.add(ae);
-            }   
-            log.info("Loaded " + executionHistory.size() + " historical action traces");
-        } catch (IOException e) {
-            log.error("Failed to reload historical action traces", e);
+        List<File> imported = new ArrayList<>();
+        for (String fname : tracesFiles) {
+            File file = new File(traceDir, fname);
+            try {
+                JsonObject trace = JSON.read( file.getPath() );
+                store.append(JsonUtil.getStringValue(trace, "id"), JsonUtil.getLongValue(trace, "startTime", 0),
+                        Files.readAllBytes( file.toPath() ));
+                imported.add(file);
+            } catch (Exception e) {
+                log.error("Failed to import action trace " + file, e);
+            }
+        }
+        if ( ! store.flush() ) {
+            log.error("Failed to write imported action traces to the trace store, keeping the trace files to retry on restart");
+            return;
         }
+        for (File file : imported) {
+            file.delete();
+        }
+        log.info("Imported " + imported.size() + " action trace files into trace store");
     }
     
     // Trap any triggerable actions
@@ -243,34 +481,44 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
         }
     }
 
-    protected synchronized void recordExecution(ActionExecution ae) {
-        currentExecutions.add(ae);
-        executionIndex.put(ae.getId(), ae);
-        executionHistory.addLast(ae);
-        if (executionHistory.size() > maxHistory) {
-            ActionExecution discard = executionHistory.removeFirst();
-            executionIndex.remove( discard.getId() );
-        }
+    protected void recordExecution(ActionExecution ae) {
+        history.add(ae);
     }
     
-    protected synchronized void recordEndOfExecution(ActionExecution ae) {
-        currentExecutions.remove(ae);
+    protected void recordEndOfExecution(ActionExecution ae) {
+        history.finished(ae);
     }
 
     /**
      * Return an identified execution, may no longer be active.
      */
-    public synchronized ActionExecution getExecution(String id) {
-        ActionExecution ae = executionIndex.get(id);
+    public ActionExecution getExecution(String id) {
+        ActionExecution ae = history.get(id);
         if (ae == null && traceDir != null) {
-            try {
-                ae = ActionExecution.reload(this, getTraceFile(id));
-            } catch (IOException e) {
-                log.error("Failed to retrieve persisted action execution for: " + id);
-            }
+            ae = traceCache.get(id, this::reloadTrace);
         }
         return ae;
     }
+    
+    protected ActionExecution reloadTrace(String id) {
+        TraceStore store = getTraceStore();
+        byte[] trace = store == null ? null : store.find(id);
+        if (trace == null) {
+            return null;
+        }
+        ActionExecution ae = reloadTrace(trace);
+        // Index only holds a hash of the id
+        return ae != null && id.equals(ae.getId()) ? ae : null;
+    }
+    
+    protected ActionExecution reloadTrace(byte[] trace) {
+        try {
+            return ActionExecution.reload(this, new ByteArrayInputStream(trace));
+        } catch (Exception e) {
+            log.error("Failed to reload action trace", e);
+            return null;
+        }
+    }
 
     /**
      * Return the executor which runs all actions, can be used
@@ -283,21 +531,28 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
     /**
      * Return all executions that are still active.
      */
-    public synchronized Collection<ActionExecution> listActiveExecutions() {
-        return new ArrayList<>( currentExecutions );
+    public Collection<ActionExecution> listActiveExecutions() {
+        return history.listActive();
     }
     
     /**
      * Return the last N executions, whether or not completed
      */
-    public synchronized List<ActionExecution> listRecentExecutions(int n) {
-        n = Math.max(n, executionHistory.size());
-        List<ActionExecution> results = new ArrayList<>(n);
-        Iterator<ActionExecution> it = executionHistory.descendingIterator();
-        for (int i = 0; i < n && it.hasNext(); i++) {
-            results.add( it.next() );
-        }
-        return results;
+    public List<ActionExecution> listRecentExecutions(int n) {
+        return history.find(null, null, 0, 0, 0, n);
+    }
+    
+    /**
+     * Return a page of the execution history, most recent first
+     * @param name only return executions with this name, or null for any
+     * @param state only return executions in this state, or null for any
+     * @param from only return executions submitted at or after this time (in ms), or 0 for no limit
+     * @param to only return executions submitted before this time (in ms), or 0 for no limit
+     * @param offset number of matching executions to skip
+     * @param limit maximum number of executions to return
+     */
+    public List<ActionExecution> listExecutions(String name, TaskState state, long from, long to, int offset, int limit) {
+        return history.find(name, state, from, to, offset, limit);
     }
     
     /**
@@ -336,7 +591,17 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
         ActionExecution ae = new ActionExecution(this, instance, monitor);
         recordExecution(ae);
         runHooks(Event.Start, ae);
-        ae.start();
+        ActionQueue q = getQueue();
+        if (q != null && ActionExecution.current() == null) {
+            try {
+                q.submit(ae, priorityFor(instance));
+            } catch (RuntimeException e) {
+                recordEndOfExecution(ae);
+                throw e;
+            }
+        } else {
+            ae.start();
+        }
         return ae;
     }
 
@@ -418,32 +683,20 @@ public class ActionManager extends ConfigMonitor<Action> implements Shutdown, St
      * Record a trace of the entire execution history
      */
     protected void recordTrace(ActionExecution ae) {
-        if (traceDir != null) {
+        TraceStore store = getTraceStore();
+        if (store != null) {
             try {
-                File traceFile = getTraceFile( ae.getId() );
-                OutputStream outs = new BufferedOutputStream( new FileOutputStream( traceFile ) );
+                ByteArrayOutputStream outs = new ByteArrayOutputStream();
                 JSFullWriter jsout = new JSFullWriter(outs);
                 jsout.startOutput();
                 ae.writeTo( jsout );
                 jsout.finishOutput();
-                outs.close();
-            } catch (IOException e) {
+                store.append(ae.getId(), ae.getStartTime(), outs.toByteArray());
+            } catch (Exception e) {
                 log.error("Failed to write action trace", e);
             }
         }
     }
-
-    /**
-     * Return the file name of the trace file to use to record an execution
-     * or null tracing is not enabled
-     */
-    protected File getTraceFile(String id) {
-        if (traceDir != null) {
-            return new File(traceDir, "trace-" + id + ".json");
-        } else {
-            return null;
-        }
-    }
     /**
      * Log an event
      */
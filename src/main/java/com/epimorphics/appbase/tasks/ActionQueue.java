@@ -0,0 +1,389 @@
+/******************************************************************
+ * File:        ActionQueue.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.tasks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.TimerManager;
+import com.epimorphics.json.JsonUtil;
+import com.epimorphics.tasks.SimpleProgressMonitor;
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Durable, priority ordered queue of action executions waiting to run.
+ * Each submitted execution is recorded as a job file in the queue directory, which is
+ * removed once the execution finishes, so jobs which were queued or running when the
+ * application stopped are resubmitted on restart (giving at-least-once execution).
+ * <p>
+ * Jobs are started in priority order, FIFO within a priority, subject to a separate
+ * limit on the number of running jobs at each priority. Once the total number of waiting jobs
+ * reaches a limit further submissions wait for space, for at most a timeout, rather than failing.
+ * The position of a waiting job, and a rough estimate of its wait, are available to callers.
+ * </p>
+ */
+public class ActionQueue {
+    static Logger log = LoggerFactory.getLogger( ActionQueue.class );
+
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    protected static final String JOB_PREFIX = "job-";
+    protected static final String JOB_SUFFIX = ".json";
+    protected static final String ID_KEY = "id";
+    protected static final String ACTION_KEY = "action";
+    protected static final String NAME_KEY = "name";
+    protected static final String PRIORITY_KEY = "priority";
+    protected static final String CALL_KEY = "call";
+
+    // Weight given to each new duration in the running mean
+    protected static final double DURATION_WEIGHT = 0.2;
+    protected static final long DEFAULT_DURATION = 1000;
+    // Delay before trying again to start jobs the executor rejected
+    protected static final long RETRY_DELAY = 100;
+
+    protected final ActionManager am;
+    protected final File dir;
+    protected final int[] limits;
+    protected final int maxQueued;
+    protected final long timeout;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition notFull = lock.newCondition();
+    protected final List<Deque<ActionExecution>> waiting = new ArrayList<>();
+    protected final int[] running = new int[ Priority.values().length ];
+    protected final Map<String, Priority> priorities = new HashMap<>();
+    protected final Map<String, File> jobFiles = new HashMap<>();
+    protected long nextSeq = 1;
+    protected double meanDuration = -1;
+    protected boolean retryScheduled = false;
+
+    /**
+     * @param am the manager whose actions are being run
+     * @param dir directory in which to record queued jobs
+     * @param limits maximum number of running jobs at each priority
+     * @param maxQueued maximum number of waiting jobs
+     * @param timeout maximum time (in ms) a submission will wait for space in the queue
+     */
+    public ActionQueue(ActionManager am, File dir, int[] limits, int maxQueued, long timeout) {
+        FileUtil.ensureDir( dir.getPath() );
+        this.am = am;
+        this.dir = dir;
+        this.limits = limits;
+        this.maxQueued = maxQueued;
+        this.timeout = timeout;
+        for (int i = 0; i < Priority.values().length; i++) {
+            waiting.add( new ArrayDeque<>() );
+        }
+    }
+
+    /**
+     * Parse a priority name, defaulting to NORMAL
+     */
+    public static Priority asPriority(String name) {
+        if (name == null) {
+            return Priority.NORMAL;
+        }
+        try {
+            return Priority.valueOf( name.trim().toUpperCase() );
+        } catch (IllegalArgumentException e) {
+            throw new EpiException("Unknown action priority: " + name);
+        }
+    }
+
+    /**
+     * Record the execution and queue it to run. Waits if the queue is full.
+     * @throws EpiException if there is still no space after the queue timeout or the job can't be recorded
+     */
+    public void submit(ActionExecution ae, Priority priority) {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (size() >= maxQueued) {
+                if (remaining <= 0) {
+                    throw new EpiException("Action queue full, could not queue " + ae.getAction().getName());
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            jobFiles.put(ae.getId(), writeJob(ae, priority, nextSeq++));
+            enqueue(ae, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted waiting to queue action", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void enqueue(ActionExecution ae, Priority priority) {
+        priorities.put(ae.getId(), priority);
+        waiting.get( priority.ordinal() ).addLast(ae);
+        dispatch();
+    }
+
+    /**
+     * Start as many waiting jobs as the limits allow, highest priority first.
+     * Call with the lock held.
+     */
+    protected void dispatch() {
+        for (Priority p : Priority.values()) {
+            Deque<ActionExecution> queue = waiting.get( p.ordinal() );
+            while (!queue.isEmpty() && running[p.ordinal()] < limits[p.ordinal()]) {
+                ActionExecution ae = queue.pollFirst();
+                try {
+                    ae.start();
+                    running[p.ordinal()]++;
+                } catch (RejectedExecutionException e) {
+                    // Executor is saturated, no queued job may be running to trigger a retry so use a timer
+                    queue.addFirst(ae);
+                    scheduleRetry();
+                    return;
+                }
+                notFull.signalAll();
+            }
+        }
+    }
+
+    /**
+     * Arrange to dispatch again shortly, unless already arranged or the executor has been shut down.
+     * Call with the lock held.
+     */
+    protected void scheduleRetry() {
+        if (retryScheduled || am.getExecutor().isShutdown()) return;
+        retryScheduled = true;
+        TimerManager.get().schedule( () -> {
+            lock.lock();
+            try {
+                retryScheduled = false;
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remove a job which has not yet started
+     * @return true if the job was waiting and has been removed
+     */
+    public boolean cancel(ActionExecution ae) {
+        lock.lock();
+        try {
+            Priority p = priorities.get( ae.getId() );
+            if (p != null && waiting.get( p.ordinal() ).remove(ae)) {
+                priorities.remove( ae.getId() );
+                deleteJob( ae.getId() );
+                notFull.signalAll();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Note that a job has finished, freeing its slot
+     */
+    public void finished(ActionExecution ae) {
+        lock.lock();
+        try {
+            Priority p = priorities.remove( ae.getId() );
+            if (p == null) return;
+            running[p.ordinal()]--;
+            deleteJob( ae.getId() );
+            long duration = ae.getDuration();
+            if (duration >= 0) {
+                meanDuration = meanDuration < 0 ? duration : meanDuration + DURATION_WEIGHT * (duration - meanDuration);
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of jobs ahead of the given job, -1 if it is not waiting
+     */
+    public int getPosition(String id) {
+        lock.lock();
+        try {
+            Priority p = priorities.get(id);
+            if (p == null) return -1;
+            int ahead = 0;
+            for (int i = 0; i < p.ordinal(); i++) {
+                ahead += waiting.get(i).size();
+            }
+            for (ActionExecution ae : waiting.get( p.ordinal() )) {
+                if (ae.getId().equals(id)) {
+                    return ahead;
+                }
+                ahead++;
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a rough estimate of the time (in ms) until the given job starts,
+     * based on its position and the mean duration of recent jobs. Returns 0 if it is not waiting.
+     */
+    public long getEstimatedWait(String id) {
+        int position = getPosition(id);
+        if (position < 0) return 0;
+        lock.lock();
+        try {
+            int slots = Math.max(1, limits[ priorities.get(id).ordinal() ]);
+            double mean = meanDuration < 0 ? DEFAULT_DURATION : meanDuration;
+            return (long) ((position / slots + 1) * mean);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the total number of waiting jobs
+     */
+    public int size() {
+        lock.lock();
+        try {
+            int total = 0;
+            for (Deque<ActionExecution> queue : waiting) total += queue.size();
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Summary of the queue state, for status reports
+     */
+    public JsonObject getStatus() {
+        lock.lock();
+        try {
+            JsonObject status = new JsonObject();
+            for (Priority p : Priority.values()) {
+                status.put(p.name().toLowerCase(), JsonUtil.makeJson(
+                        "waiting", waiting.get( p.ordinal() ).size(),
+                        "running", running[p.ordinal()],
+                        "limit", limits[p.ordinal()] ));
+            }
+            status.put("meanDuration", (long) Math.max(0, meanDuration));
+            return status;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resubmit any jobs recorded by a previous run, in their original order. Jobs whose action
+     * is no longer known are discarded.
+     * @return the number of jobs resubmitted
+     */
+    public int recover() {
+        File[] files = dir.listFiles( (d, name) -> name.startsWith(JOB_PREFIX) && name.endsWith(JOB_SUFFIX) );
+        if (files == null) return 0;
+        Arrays.sort(files);
+        int count = 0;
+        lock.lock();
+        try {
+            for (File file : files) {
+                nextSeq = Math.max(nextSeq, seqOf(file) + 1);
+                try {
+                    JsonObject job = JSON.read( file.getPath() );
+                    Action action = am.get( JsonUtil.getStringValue(job, ACTION_KEY) );
+                    if (action == null) {
+                        log.warn("Discarding queued job for unknown action: {}", file);
+                        file.delete();
+                        continue;
+                    }
+                    action.resolve(am);
+                    ActionInstance instance = am.makeInstance(action, job.get(CALL_KEY).getAsObject());
+                    instance.setName( JsonUtil.getStringValue(job, NAME_KEY, action.getName()) );
+                    ActionExecution ae = new ActionExecution(am, instance, new SimpleProgressMonitor());
+                    ae.restoreId( JsonUtil.getStringValue(job, ID_KEY) );
+                    jobFiles.put(ae.getId(), file);
+                    am.recordExecution(ae);
+                    enqueue(ae, asPriority( JsonUtil.getStringValue(job, PRIORITY_KEY, null) ));
+                    count++;
+                } catch (Exception e) {
+                    log.error("Failed to recover queued job, discarding: " + file, e);
+                    file.delete();
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected static long seqOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong( name.substring(JOB_PREFIX.length(), name.indexOf('-', JOB_PREFIX.length())) );
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    protected File writeJob(ActionExecution ae, Priority priority, long seq) {
+        File file = new File(dir, String.format("%s%012d-%s%s", JOB_PREFIX, seq, ae.getId(), JOB_SUFFIX));
+        JsonObject job = JsonUtil.makeJson(ID_KEY, ae.getId(),
+                ACTION_KEY, ae.getAction().getName(),
+                NAME_KEY, ae.getName(),
+                PRIORITY_KEY, priority.name(),
+                CALL_KEY, ae.getParameters());
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(dir.toPath(), JOB_PREFIX, ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                JSON.write(out, job);
+                // Make sure the content is on disk before the rename can be
+                out.getFD().sync();
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+            throw new EpiException("Failed to record queued action: " + file, e);
+        }
+    }
+
+    protected void deleteJob(String id) {
+        File file = jobFiles.remove(id);
+        if (file != null && !file.delete()) {
+            log.warn("Failed to remove completed job record {}", file);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/******************************************************************
+ * File:        ExecutionHistory.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.tasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.tasks.TaskState;
+
+/**
+ * Bounded record of recent action executions, safe for concurrent use without locking
+ * so that status queries never contend with actions being started.
+ * <p>
+ * Executions are held in order of the time they were recorded, with secondary indexes
+ * by id, by action name and of the executions which are still active. Once the history
+ * is full the oldest executions are discarded, though executions which are still active
+ * continue to be listed as such until they finish.
+ * </p>
+ */
+public class ExecutionHistory {
+    protected volatile int maxSize;
+
+    protected final AtomicLong nextSeq = new AtomicLong();
+    protected final AtomicInteger size = new AtomicInteger();
+    protected final NavigableSet<Entry> history = new ConcurrentSkipListSet<>();
+    protected final Map<String, Entry> byId = new ConcurrentHashMap<>();
+    protected final Map<String, NavigableSet<Entry>> byName = new ConcurrentHashMap<>();
+    protected final Map<String, Entry> active = new ConcurrentHashMap<>();
+
+    public ExecutionHistory(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /**
+     * Record a new execution, which is treated as active until {@link #finished(ActionExecution)} is called
+     */
+    public void add(ActionExecution ae) {
+        add(ae, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Record an execution
+     * @param ae the execution
+     * @param time the time to record it against, for ordering and time window queries
+     * @param isActive true if the execution is still running or waiting to run
+     */
+    public void add(ActionExecution ae, long time, boolean isActive) {
+        Entry entry = new Entry(ae, time, nextSeq.incrementAndGet());
+        Entry previous = byId.put(ae.getId(), entry);
+        if (previous != null) {
+            remove(previous);
+        }
+        history.add(entry);
+        byName.computeIfAbsent(entry.name, k -> new ConcurrentSkipListSet<>()).add(entry);
+        if (isActive) {
+            active.put(ae.getId(), entry);
+        } else if (previous != null) {
+            active.remove(ae.getId(), previous);
+        }
+        size.incrementAndGet();
+        trim();
+    }
+
+    /**
+     * Note that an execution is no longer active
+     */
+    public void finished(ActionExecution ae) {
+        active.remove( ae.getId() );
+    }
+
+    /**
+     * Return the execution with the given id, or null if it is not in the history
+     */
+    public ActionExecution get(String id) {
+        Entry entry = byId.get(id);
+        return entry == null ? null : entry.ae;
+    }
+
+    /**
+     * Return all active executions, oldest first
+     */
+    public List<ActionExecution> listActive() {
+        List<Entry> entries = new ArrayList<>( active.values() );
+        entries.sort(null);
+        List<ActionExecution> results = new ArrayList<>( entries.size() );
+        for (Entry entry : entries) {
+            results.add(entry.ae);
+        }
+        return results;
+    }
+
+    /**
+     * Find executions matching a filter, most recent first.
+     * @param name only return executions of this name, or null for any
+     * @param state only return executions in this state, or null for any
+     * @param from only return executions recorded at or after this time (in ms), or 0 for no limit
+     * @param to only return executions recorded before this time (in ms), or 0 for no limit
+     * @param offset number of matching executions to skip, for paging through results
+     * @param limit maximum number of executions to return
+     */
+    public List<ActionExecution> find(String name, TaskState state, long from, long to, int offset, int limit) {
+        NavigableSet<Entry> candidates;
+        if (state == TaskState.Waiting || state == TaskState.Running) {
+            candidates = new ConcurrentSkipListSet<>( active.values() );
+        } else if (name != null) {
+            candidates = byName.get(name);
+            if (candidates == null) {
+                return new ArrayList<>();
+            }
+        } else {
+            candidates = history;
+        }
+        if (from > 0 || to > 0) {
+            candidates = candidates.subSet(new Entry(null, from, Long.MIN_VALUE), true,
+                    new Entry(null, to > 0 ? to : Long.MAX_VALUE, Long.MIN_VALUE), false);
+        }
+        List<ActionExecution> results = new ArrayList<>( Math.min(limit, 100) );
+        int skipped = 0;
+        Iterator<Entry> it = candidates.descendingIterator();
+        while (it.hasNext() && results.size() < limit) {
+            Entry entry = it.next();
+            if ( (name == null || name.equals(entry.name)) &&
+                 (state == null || state == entry.ae.getMonitor().getState()) ) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    results.add(entry.ae);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return the number of executions in the history
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Return the names of all actions in the history
+     */
+    public Collection<String> listNames() {
+        return new ArrayList<>( byName.keySet() );
+    }
+
+    protected void trim() {
+        while (size.get() > maxSize) {
+            Entry oldest = history.pollFirst();
+            if (oldest == null) break;
+            size.decrementAndGet();
+            byId.remove(oldest.ae.getId(), oldest);
+            removeFromIndexes(oldest);
+        }
+    }
+
+    protected void remove(Entry entry) {
+        if (history.remove(entry)) {
+            size.decrementAndGet();
+        }
+        removeFromIndexes(entry);
+    }
+
+    protected void removeFromIndexes(Entry entry) {
+        NavigableSet<Entry> named = byName.get( entry.name );
+        if (named != null) {
+            named.remove(entry);
+        }
+    }
+
+    /**
+     * An execution in the history, ordered by recorded time.
+     * Indexed under the execution's name at the time it was recorded.
+     */
+    protected static class Entry implements Comparable<Entry> {
+        protected final ActionExecution ae;
+        protected final String name;
+        protected final long time;
+        protected final long seq;
+
+        Entry(ActionExecution ae, long time, long seq) {
+            this.ae = ae;
+            this.name = (ae == null || ae.getName() == null) ? "" : ae.getName();
+            this.time = time;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Long.compare(time, other.time);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && compareTo((Entry) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(seq);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/******************************************************************
+ * File:        TraceStore.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Append-only store for serialized execution traces, replacing a file per trace.
+ * <p>
+ * Traces are appended, by a background writer, to a sequence of segment files. Each
+ * segment has a companion index file of fixed size records giving the hash of the trace
+ * id, its location in the segment and its time. Lookup by id scans the memory mapped
+ * indexes, newest first, and recent history can be reloaded from the tail of the
+ * indexes without reading the rest of the store. Whole segments are deleted once
+ * they are older than the retention period.
+ * </p>
+ * <p>
+ * Each trace is framed with its length and a CRC so that a torn write, following a crash,
+ * is detected. A new segment is started each time the store is opened. If a write fails the
+ * segment is truncated back to its state before that batch, or abandoned in favour of a new
+ * segment if that isn't possible, and the failure is reported by the next {@link #flush()}.
+ * </p>
+ */
+public class TraceStore implements AutoCloseable {
+    static Logger log = LoggerFactory.getLogger( TraceStore.class );
+
+    public static final String SEGMENT_PREFIX = "traces-";
+    public static final String DATA_SUFFIX = ".dat";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // id hash, offset, length, time
+    protected static final int INDEX_RECORD = 8 + 8 + 4 + 8;
+    protected static final int FRAME_HEADER = 8;
+
+    protected static class Pending {
+        final String id;
+        final long time;
+        final byte[] trace;
+        // Set for a flush request rather than a trace
+        final CompletableFuture<Boolean> synced;
+
+        Pending(String id, long time, byte[] trace) {
+            this.id = id;
+            this.time = time;
+            this.trace = trace;
+            this.synced = null;
+        }
+
+        Pending(CompletableFuture<Boolean> synced) {
+            this.id = null;
+            this.time = 0;
+            this.trace = null;
+            this.synced = synced;
+        }
+    }
+
+    protected final File dir;
+    protected final long segmentSize;
+    protected final long retention;
+    protected final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    protected final Map<String, byte[]> unwritten = new ConcurrentHashMap<>();
+    protected final Map<File, MappedByteBuffer> sealedIndexes = new ConcurrentHashMap<>();
+    protected final Thread writer;
+    protected volatile File currentIndex;
+    protected FileChannel data;
+    protected FileChannel index;
+    protected long nextSegment;
+    protected volatile boolean closed = false;
+    // Only accessed by the writer thread
+    protected boolean failedSinceSync = false;
+
+    /**
+     * Open, or create, a trace store in the given directory
+     * @param dir the directory
+     * @param segmentSize size at which to start a new segment
+     * @param retention time (in ms) for which to keep segments, or 0 to keep them indefinitely
+     */
+    public TraceStore(File dir, long segmentSize, long retention) {
+        FileUtil.ensureDir( dir.getPath() );
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+        File[] segments = listIndexes();
+        for (File idx : segments) {
+            repair(idx);
+        }
+        nextSegment = segments.length == 0 ? 1 : segmentNumber( segments[segments.length - 1] ) + 1;
+        deleteExpired();
+        this.writer = new Thread(this::writeLoop, "traces-" + dir.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a trace to be written
+     */
+    public void append(String id, long time, byte[] trace) {
+        if (closed) {
+            throw new EpiException("Trace store is closed: " + dir);
+        }
+        unwritten.put(id, trace);
+        queue.add( new Pending(id, time, trace) );
+    }
+
+    /**
+     * Return the serialized trace with the given id, or null if not found
+     */
+    public byte[] find(String id) {
+        byte[] trace = unwritten.get(id);
+        if (trace != null) return trace;
+        long hash = hash(id);
+        File[] indexes = listIndexes();
+        for (int s = indexes.length - 1; s >= 0; s--) {
+            ByteBuffer idx = mapIndex( indexes[s] );
+            if (idx == null) continue;
+            for (int pos = idx.limit() - INDEX_RECORD; pos >= 0; pos -= INDEX_RECORD) {
+                if (idx.getLong(pos) == hash) {
+                    trace = read(dataFile(indexes[s]), idx.getLong(pos + 8), idx.getInt(pos + 16));
+                    if (trace != null) return trace;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return up to n of the most recently written traces, oldest first.
+     * Only the tail of the indexes, and the corresponding traces, are read.
+     */
+    public List<byte[]> tail(int n) {
+        List<byte[]> results = new ArrayList<>();
+        File[] indexes = listIndexes();
+        for (int s = indexes.length - 1; s >= 0 && results.size() < n; s--) {
+            ByteBuffer idx = mapIndex( indexes[s] );
+            if (idx == null) continue;
+            List<byte[]> segment = new ArrayList<>();
+            int count = Math.min(n - results.size(), idx.limit() / INDEX_RECORD);
+            int start = idx.limit() - count * INDEX_RECORD;
+            try (FileChannel in = FileChannel.open( dataFile(indexes[s]).toPath(), StandardOpenOption.READ )) {
+                for (int pos = start; pos < idx.limit(); pos += INDEX_RECORD) {
+                    byte[] trace = read(in, idx.getLong(pos + 8), idx.getInt(pos + 16));
+                    if (trace != null) segment.add(trace);
+                }
+            } catch (IOException e) {
+                log.error("Failed to read trace segment for {}", indexes[s], e);
+            }
+            Collections.reverse(segment);
+            results.addAll(segment);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Delete segments which are older than the retention period, other than the current segment
+     * @return the number of segments deleted
+     */
+    public int deleteExpired() {
+        if (retention <= 0) return 0;
+        long cutoff = System.currentTimeMillis() - retention;
+        int deleted = 0;
+        for (File idx : listIndexes()) {
+            if (idx.equals(currentIndex) || idx.lastModified() >= cutoff) continue;
+            sealedIndexes.remove(idx);
+            File dat = dataFile(idx);
+            if (dat.delete() | idx.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            log.info("Deleted {} expired trace segments from {}", deleted, dir);
+        }
+        return deleted;
+    }
+
+    /**
+     * Wait until all queued traces have been written and synced to disk
+     * @return false if any trace queued since the previous flush could not be written
+     */
+    public boolean flush() {
+        CompletableFuture<Boolean> synced = new CompletableFuture<>();
+        queue.add( new Pending(synced) );
+        try {
+            while (true) {
+                try {
+                    return synced.get(100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (!writer.isAlive()) return synced.getNow(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Not completed exceptionally
+        }
+        return false;
+    }
+
+    /**
+     * Write outstanding traces and stop the writer
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) break;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                // Write the traces between each flush request, then sync for the request
+                int from = 0;
+                for (int i = 0; i <= batch.size(); i++) {
+                    if (i == batch.size() || batch.get(i).synced != null) {
+                        writeTraces( batch.subList(from, i) );
+                        if (i < batch.size()) {
+                            sync( batch.get(i).synced );
+                        }
+                        from = i + 1;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            batch.clear();
+        }
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            log.warn("Failed to close trace segment", e);
+        }
+    }
+
+    protected void writeTraces(List<Pending> traces) {
+        if (traces.isEmpty()) return;
+        try {
+            writeBatch(traces);
+        } catch (Throwable t) {
+            log.error("Failed to write action traces to {}", dir, t);
+            failedSinceSync = true;
+        } finally {
+            for (Pending p : traces) {
+                unwritten.remove(p.id, p.trace);
+            }
+        }
+    }
+
+    protected void sync(CompletableFuture<Boolean> synced) {
+        boolean ok = !failedSinceSync;
+        failedSinceSync = false;
+        try {
+            if (data != null) {
+                data.force(false);
+                index.force(false);
+            }
+        } catch (IOException e) {
+            log.error("Failed to sync action traces in {}", dir, e);
+            ok = false;
+        }
+        synced.complete(ok);
+    }
+
+    protected void writeBatch(List<Pending> batch) throws IOException {
+        int from = 0;
+        while (from < batch.size()) {
+            if (data == null || data.size() >= segmentSize) {
+                rotate();
+            }
+            // Fill the current segment, with at least one trace in each segment
+            long size = data.size();
+            int to = from;
+            while (to < batch.size() && (to == from || size < segmentSize)) {
+                size += FRAME_HEADER + batch.get(to).trace.length;
+                to++;
+            }
+            write( batch.subList(from, to) );
+            from = to;
+        }
+    }
+
+    protected void write(List<Pending> batch) throws IOException {
+        long dataStart = data.size();
+        long indexStart = index.size();
+        long offset = dataStart;
+        int total = 0;
+        for (Pending p : batch) total += FRAME_HEADER + p.trace.length;
+        ByteBuffer frames = ByteBuffer.allocate(total);
+        ByteBuffer records = ByteBuffer.allocate(batch.size() * INDEX_RECORD);
+        CRC32 crc = new CRC32();
+        for (Pending p : batch) {
+            crc.reset();
+            crc.update(p.trace);
+            frames.putInt(p.trace.length);
+            frames.putInt((int) crc.getValue());
+            frames.put(p.trace);
+            records.putLong( hash(p.id) );
+            records.putLong(offset);
+            records.putInt(p.trace.length);
+            records.putLong(p.time);
+            offset += FRAME_HEADER + p.trace.length;
+        }
+        // Data first so that any visible index record refers to complete data
+        try {
+            writeFully(data, frames);
+            writeFully(index, records);
+        } catch (Throwable t) {
+            discard(dataStart, indexStart);
+            throw t;
+        }
+    }
+
+    /**
+     * Remove a partially written batch from the current segment, abandoning the
+     * segment, so that the next write starts a new one, if that isn't possible
+     */
+    protected void discard(long dataSize, long indexSize) {
+        try {
+            index.truncate(indexSize);
+            data.truncate(dataSize);
+        } catch (IOException e) {
+            log.error("Failed to truncate trace segment {} after write failure, abandoning it", currentIndex, e);
+            try {
+                data.close();
+                index.close();
+            } catch (IOException ce) {
+                // Already failed, the segment is repaired when the store is reopened
+            }
+            data = null;
+            index = null;
+        }
+    }
+
+    protected void rotate() throws IOException {
+        File previous = currentIndex;
+        closeSegment();
+        String name = String.format("%s%012d", SEGMENT_PREFIX, nextSegment++);
+        File idx = new File(dir, name + INDEX_SUFFIX);
+        data = FileChannel.open(new File(dir, name + DATA_SUFFIX).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        index = FileChannel.open(idx.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        currentIndex = idx;
+        if (previous != null) {
+            deleteExpired();
+        }
+    }
+
+    protected void closeSegment() throws IOException {
+        if (data != null) {
+            data.force(false);
+            data.close();
+            data = null;
+        }
+        if (index != null) {
+            index.force(false);
+            index.close();
+            index = null;
+        }
+    }
+
+    /**
+     * Return a view of an index. Sealed indexes are mapped once and reused,
+     * the current index is mapped afresh to see the latest records.
+     */
+    protected ByteBuffer mapIndex(File idx) {
+        if (!idx.equals(currentIndex)) {
+            MappedByteBuffer mapped = sealedIndexes.get(idx);
+            if (mapped == null) {
+                mapped = map(idx);
+                if (mapped == null) return null;
+                sealedIndexes.put(idx, mapped);
+            }
+            return mapped.duplicate();
+        }
+        return map(idx);
+    }
+
+    protected MappedByteBuffer map(File idx) {
+        try (FileChannel in = FileChannel.open(idx.toPath(), StandardOpenOption.READ)) {
+            long size = in.size() - in.size() % INDEX_RECORD;
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            // Segment may have just been deleted by retention
+            return null;
+        }
+    }
+
+    protected byte[] read(File dat, long offset, int length) {
+        try (FileChannel in = FileChannel.open(dat.toPath(), StandardOpenOption.READ)) {
+            return read(in, offset, length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the trace at the given offset, returning null if the frame is incomplete or corrupt
+     */
+    protected byte[] read(FileChannel in, long offset, int length) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+        while (frame.hasRemaining()) {
+            if (in.read(frame, offset + frame.position()) < 0) return null;
+        }
+        frame.flip();
+        if (frame.getInt() != length) return null;
+        long checksum = frame.getInt() & 0xFFFFFFFFL;
+        byte[] trace = new byte[length];
+        frame.get(trace);
+        CRC32 crc = new CRC32();
+        crc.update(trace);
+        return crc.getValue() == checksum ? trace : null;
+    }
+
+    /**
+     * Drop any partial index record, or records for data which was never completely written
+     */
+    protected void repair(File idx) {
+        File dat = dataFile(idx);
+        try (FileChannel ch = FileChannel.open(idx.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size() - ch.size() % INDEX_RECORD;
+            long dataSize = dat.length();
+            ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD);
+            while (size > 0) {
+                record.clear();
+                ch.read(record, size - INDEX_RECORD);
+                if (record.getLong(8) + FRAME_HEADER + record.getInt(16) <= dataSize) break;
+                size -= INDEX_RECORD;
+            }
+            if (size < ch.size()) {
+                log.warn("Truncating incomplete trace index {}", idx);
+                ch.truncate(size);
+            }
+        } catch (IOException e) {
+            throw new EpiException("Failed to open trace store: " + idx, e);
+        }
+    }
+
+    protected File[] listIndexes() {
+        File[] indexes = dir.listFiles( (d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(INDEX_SUFFIX) );
+        if (indexes == null) return new File[0];
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    protected static File dataFile(File idx) {
+        String name = idx.getName();
+        return new File(idx.getParentFile(), name.substring(0, name.length() - INDEX_SUFFIX.length()) + DATA_SUFFIX);
+    }
+
+    protected static long segmentNumber(File idx) {
+        String name = idx.getName();
+        return Long.parseLong( name.substring(SEGMENT_PREFIX.length(), name.length() - INDEX_SUFFIX.length()) );
+    }
+
+    protected void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the id
+     */
+    protected static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
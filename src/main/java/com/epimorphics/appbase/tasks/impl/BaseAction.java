@@ -13,6 +13,8 @@ import static com.epimorphics.appbase.tasks.ActionJsonFactorylet.*;
 import static com.epimorphics.json.JsonUtil.*;
 
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.jena.atlas.json.JsonObject;
 import org.apache.jena.atlas.json.JsonString;
@@ -91,6 +93,11 @@ public abstract class BaseAction implements Action {
     public int getTimeout() {
         return getIntConfig(TIMEOUT_KEY, -1);
     }
+    
+    @Override
+    public int getMaxConcurrent() {
+        return getIntConfig(MAX_CONCURRENT_KEY, -1);
+    }
 
     public JsonValue getParameter(JsonObject parameters, String key) {
         JsonValue value = parameters.get(key);
@@ -220,6 +227,37 @@ public abstract class BaseAction implements Action {
     }
     
     protected abstract JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor);
+    
+    @Override
+    public CompletableFuture<JsonObject> runAsync(JsonObject parameters, ProgressMonitorReporter monitor) {
+        return doRunAsync( mergedCall(parameters), monitor );
+    }
+    
+    /**
+     * Asynchronous version of doRun, override for actions that wait on other executions.
+     * The default runs doRun synchronously.
+     */
+    protected CompletableFuture<JsonObject> doRunAsync(JsonObject parameters, ProgressMonitorReporter monitor) {
+        try {
+            return CompletableFuture.completedFuture( doRun(parameters, monitor) );
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /**
+     * Wait for the result of an asynchronous run, rethrowing any failure
+     */
+    protected JsonObject await(CompletableFuture<JsonObject> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new EpiException(e.getCause());
+        }
+    }
  
     /**
      * Merge a set of configurations for a base action into this configuration,
@@ -9,6 +9,11 @@
 
 package com.epimorphics.appbase.tasks.impl;
 
+import static com.epimorphics.appbase.tasks.ActionJsonFactorylet.FAIL_FAST_KEY;
+import static com.epimorphics.appbase.tasks.ActionJsonFactorylet.REQUIRED_KEY;
+
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.jena.atlas.json.JsonObject;
 
 import com.epimorphics.appbase.tasks.ActionExecution;
@@ -17,6 +22,18 @@ import com.epimorphics.appbase.tasks.NestedProgressReporter;
 import com.epimorphics.json.JsonUtil;
 import com.epimorphics.tasks.ProgressMonitorReporter;
 
+/**
+ * Runs a set of component actions in parallel, each as a separate execution.
+ * By default completes once all the components have finished, succeeding if they all succeeded.
+ * Can be configured to complete early:
+ * <ul>
+ *   <li><code>@required</code> - number of components which must succeed, the action succeeds
+ *       as soon as this many have done so</li>
+ *   <li><code>@failFast</code> - if true the action fails as soon as any component fails</li>
+ * </ul>
+ * Components still running when the action completes are cancelled. Progress is updated
+ * as each component finishes. No thread is held while waiting for the components.
+ */
 public class ParallelAction extends CompoundAction {
     protected ActionManager am;
     
@@ -29,22 +46,97 @@ public class ParallelAction extends CompoundAction {
     @Override
     protected JsonObject doRun(JsonObject parameters,
             ProgressMonitorReporter monitor) {
+        return await( doRunAsync(parameters, monitor) );
+    }
+    
+    @Override
+    protected CompletableFuture<JsonObject> doRunAsync(JsonObject parameters,
+            ProgressMonitorReporter monitor) {
         int n = componentActions.length;
-        ActionExecution[] aes = new ActionExecution[n];
+        int required = Math.min(n, JsonUtil.getIntValue(parameters, REQUIRED_KEY, n));
+        boolean failFast = JsonUtil.getBooleanValue(parameters, FAIL_FAST_KEY, false);
+        JsonObject call = JsonUtil.makeJson(parameters);
+        call.remove(REQUIRED_KEY);
+        call.remove(FAIL_FAST_KEY);
+        
+        Join join = new Join(n, required, failFast, monitor);
         for (int i = 0; i < n; i++) {
-            aes[i] = am.runAction(componentActions[i], parameters, new NestedProgressReporter(monitor));
+            join.aes[i] = am.runAction(componentActions[i], call, new ComponentReporter(monitor));
         }
-        boolean failed = false;
-        for (int i = 0; i < n; i++) {
-            aes[i].waitForCompletion();
-            if (!aes[i].getMonitor().succeeded()) {
-                failed = true;
+        for (ActionExecution ae : join.aes) {
+            ae.getCompletion().thenAccept(join::componentFinished);
+        }
+        return join.result;
+    }
+    
+    /**
+     * Tracks the components as they finish, completing the result once the policy is satisfied
+     */
+    protected static class Join {
+        protected final ActionExecution[] aes;
+        protected final int required;
+        protected final boolean failFast;
+        protected final ProgressMonitorReporter monitor;
+        protected final CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        protected int succeeded = 0;
+        protected int failed = 0;
+        
+        Join(int n, int required, boolean failFast, ProgressMonitorReporter monitor) {
+            this.aes = new ActionExecution[n];
+            this.required = required;
+            this.failFast = failFast;
+            this.monitor = monitor;
+            if (n == 0) {
+                monitor.setSucceeded();
+                result.complete( JsonUtil.emptyObject() );
+            }
+        }
+        
+        synchronized void componentFinished(ActionExecution ae) {
+            if (result.isDone()) return;
+            if (ae.getMonitor().succeeded()) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            int n = aes.length;
+            monitor.setProgress( 100 * (succeeded + failed) / n );
+            if (succeeded >= required) {
+                complete(true);
+            } else if ( (failFast && failed > 0) || succeeded + failed == n ) {
+                complete(false);
+            }
+        }
+        
+        protected void complete(boolean success) {
+            // The outcome must be set before the result completes, which is when the parent finishes
+            if (success) {
+                monitor.setSucceeded();
             } else {
-                monitor.setProgress((int)Math.floor(100*i/n));
+                monitor.setFailed();
             }
+            result.complete( JsonUtil.emptyObject() );
+            for (ActionExecution ae : aes) {
+                if ( ! ae.getCompletion().isDone() ) {
+                    ae.cancel("Cancelled, no longer needed by parallel action");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Component failures are judged by the policy rather than directly failing the parent
+     */
+    protected static class ComponentReporter extends NestedProgressReporter {
+        
+        public ComponentReporter(ProgressMonitorReporter monitor) {
+            super(monitor);
+        }
+        
+        @Override
+        public synchronized void setFailed() {
+            succeeded = false;
         }
-        monitor.setSuccess( !failed );
-        return JsonUtil.emptyObject();
     }
 
 }
@@ -9,33 +9,48 @@
 
 package com.epimorphics.appbase.tasks.impl;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.jena.atlas.json.JsonObject;
 
+import com.epimorphics.appbase.tasks.ActionExecution;
 import com.epimorphics.appbase.tasks.NestedProgressReporter;
 import com.epimorphics.json.JsonUtil;
 import com.epimorphics.tasks.ProgressMonitorReporter;
 
 /**
- * Runs a set of component actions in sequence
+ * Runs a set of component actions in sequence. Each component starts once the previous
+ * one completes, so no thread is held while waiting for an asynchronous component.
  */
 public class SequenceAction extends CompoundAction {
 
     @Override
     protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
-        JsonObject call = JsonUtil.makeJson(parameters);
+        return await( doRunAsync(parameters, monitor) );
+    }
+    
+    @Override
+    protected CompletableFuture<JsonObject> doRunAsync(JsonObject parameters, ProgressMonitorReporter monitor) {
+        return runFrom(0, JsonUtil.makeJson(parameters), monitor);
+    }
+    
+    protected CompletableFuture<JsonObject> runFrom(int i, JsonObject call, ProgressMonitorReporter monitor) {
         int n = componentActions.length;
-        for (int i = 0; i < n; i++) {
-            NestedProgressReporter prog = new NestedProgressReporter(monitor);
-            JsonObject result = componentActions[i].run(call, prog);
+        if (i >= n) {
+            monitor.setSucceeded();
+            return CompletableFuture.completedFuture(call);
+        }
+        NestedProgressReporter prog = new NestedProgressReporter(monitor);
+        // The next step runs as part of this execution, whichever thread completes this one
+        return componentActions[i].runAsync(call, prog).thenCompose( ActionExecution.within( (JsonObject result) -> {
             if (! prog.succeeded()) {
                 monitor.setFailed();
-                return result;
+                return CompletableFuture.completedFuture(result);
             }
             JsonUtil.mergeInto(call, result);
-            monitor.setProgress((int)Math.floor(100*i/n));
-        }
-        monitor.setSucceeded();
-        return call;
+            monitor.setProgress((int)Math.floor(100*(i+1)/n));
+            return runFrom(i + 1, call, monitor);
+        }) );
     }
     
 }
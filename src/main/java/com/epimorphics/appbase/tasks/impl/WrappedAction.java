@@ -11,6 +11,8 @@ package com.epimorphics.appbase.tasks.impl;
 
 import static com.epimorphics.appbase.tasks.ActionJsonFactorylet.BASE_KEY;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.jena.atlas.json.JsonObject;
 
 import com.epimorphics.appbase.tasks.Action;
@@ -53,5 +55,14 @@ public class WrappedAction extends BaseAction implements Action {
             
         }
     }
+    
+    @Override
+    protected CompletableFuture<JsonObject> doRunAsync(JsonObject parameters, ProgressMonitorReporter monitor) {
+        if (baseAction == null) {
+            return super.doRunAsync(parameters, monitor);
+        } else {
+            return baseAction.runAsync( mergedCall(parameters), monitor);
+        }
+    }
 
 }
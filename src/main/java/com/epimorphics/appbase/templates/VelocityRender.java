@@ -49,6 +49,7 @@ import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.RequestScope;
 import com.epimorphics.util.EpiException;
 
 /**
@@ -214,7 +215,7 @@ public class VelocityRender extends ComponentBase {
        response.setStatus(HttpServletResponse.SC_OK);
        response.setCharacterEncoding("UTF-8");
        PrintWriter out = response.getWriter();
-       try {
+       try (RequestScope scope = RequestScope.open()) {
            String root = request.getServletContext().getContextPath();
            VelocityContext vc = buildContext(root, env);
            Enumeration<String> paramNames = request.getParameterNames();
@@ -248,7 +249,7 @@ public class VelocityRender extends ComponentBase {
             @Override
             public void write(OutputStream output) throws IOException,
                     WebApplicationException {
-                try {
+                try (RequestScope scope = RequestScope.open()) {
                     OutputStreamWriter writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
                     template.merge(vc, writer);
                     writer.flush();
@@ -280,7 +281,9 @@ public class VelocityRender extends ComponentBase {
             vc.put(CONTEXT, context);
         }
         OutputStreamWriter writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
-        template.merge(vc, writer);
+        try (RequestScope scope = RequestScope.open()) {
+            template.merge(vc, writer);
+        }
         writer.flush();
     }
 
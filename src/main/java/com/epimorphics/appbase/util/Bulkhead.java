@@ -0,0 +1,329 @@
+/******************************************************************
+ * File:        Bulkhead.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.jena.atlas.json.JsonObject;
+
+import com.epimorphics.util.EpiException;
+
+/**
+ * Limits the number of concurrent calls to some resource, such as a sparql endpoint.
+ * Callers beyond the limit wait in a bounded queue, for at most a timeout, and are
+ * rejected with an {@link EpiException} if the queue is full or the timeout expires,
+ * so that a slow backend leads to fast failures rather than exhausting the caller's threads.
+ * <p>
+ * Callers are in one of two lanes. Interactive callers (the default) take priority over
+ * batch callers, a waiting batch caller is only admitted when there are no
+ * interactive callers waiting. Batch callers may also be limited to a smaller number of
+ * concurrent calls so that some capacity is always left for interactive use. The lane
+ * is a property of the calling thread, see {@link #runAs(Lane, Supplier)}.
+ * </p>
+ * <p>
+ * Permits are reentrant. A thread which already holds a permit, such as one streaming
+ * results, is admitted straight away for nested calls rather than waiting on itself.
+ * </p>
+ */
+public class Bulkhead {
+
+    public enum Lane { INTERACTIVE, BATCH }
+
+    protected static final ThreadLocal<Lane> currentLane = ThreadLocal.withInitial( () -> Lane.INTERACTIVE );
+
+    protected final int maxConcurrent;
+    protected final int maxBatch;
+    protected final int maxQueued;
+    protected final long timeout;
+
+    // Number of permits held by each thread, counted on the acquiring thread whichever thread releases them
+    protected final ThreadLocal<AtomicInteger> holds = ThreadLocal.withInitial(AtomicInteger::new);
+
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition released = lock.newCondition();
+    protected int active = 0;
+    protected int activeBatch = 0;
+    protected final int[] queued = new int[ Lane.values().length ];
+    protected int peakQueued = 0;
+    protected long admitted = 0;
+    protected long rejected = 0;
+    protected long timeouts = 0;
+    protected long totalWait = 0;
+
+    /**
+     * @param maxConcurrent maximum number of concurrent calls
+     * @param maxBatch maximum number of concurrent calls from the batch lane, at most maxConcurrent
+     * @param maxQueued maximum number of callers waiting, across both lanes
+     * @param timeout maximum time to wait for admission, in ms
+     */
+    public Bulkhead(int maxConcurrent, int maxBatch, int maxQueued, long timeout) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxBatch = maxBatch <= 0 ? maxConcurrent : Math.min(maxBatch, maxConcurrent);
+        this.maxQueued = maxQueued;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Return the lane for calls from the current thread
+     */
+    public static Lane getLane() {
+        return currentLane.get();
+    }
+
+    /**
+     * Set the lane for calls from the current thread
+     */
+    public static void setLane(Lane lane) {
+        currentLane.set(lane);
+    }
+
+    /**
+     * Run the task with calls from the current thread in the given lane
+     */
+    public static <T> T runAs(Lane lane, Supplier<T> task) {
+        Lane previous = currentLane.get();
+        currentLane.set(lane);
+        try {
+            return task.get();
+        } finally {
+            currentLane.set(previous);
+        }
+    }
+
+    /**
+     * Wait for a slot in the current thread's lane, for a call which runs on the current thread.
+     * Passes straight through if the thread already holds a permit. The returned permit must
+     * be released once the call completes.
+     * @throws EpiException if the queue is full, the wait times out or the thread is interrupted
+     */
+    public Permit acquire() {
+        return acquire(true);
+    }
+
+    /**
+     * Wait for a slot in the current thread's lane, for a call which completes asynchronously.
+     * The permit does not count as held by the current thread, so later calls from the thread
+     * are still limited while the asynchronous call is in progress.
+     * @throws EpiException if the queue is full, the wait times out or the thread is interrupted
+     */
+    public Permit acquireAsync() {
+        return acquire(false);
+    }
+
+    /**
+     * True if the current thread holds a permit
+     */
+    public boolean isHeld() {
+        return holds.get().get() > 0;
+    }
+
+    protected Permit acquire(boolean hold) {
+        AtomicInteger held = holds.get();
+        if (held.get() > 0) {
+            // Nested call from an admitted thread
+            return new Permit(null, hold ? held : null);
+        }
+        Lane lane = currentLane.get();
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (!canRun(lane)) {
+                if (queued[0] + queued[1] >= maxQueued) {
+                    rejected++;
+                    throw new EpiException("Too many concurrent requests, queue full");
+                }
+                queued[lane.ordinal()]++;
+                peakQueued = Math.max(peakQueued, queued[0] + queued[1]);
+                try {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (!canRun(lane)) {
+                        if (remaining <= 0) {
+                            timeouts++;
+                            throw new EpiException("Too many concurrent requests, timed out waiting after " + timeout + "ms");
+                        }
+                        remaining = released.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new EpiException("Interrupted waiting for request slot", e);
+                } finally {
+                    queued[lane.ordinal()]--;
+                }
+                totalWait += System.nanoTime() - start;
+            }
+            active++;
+            if (lane == Lane.BATCH) activeBatch++;
+            admitted++;
+            return new Permit(lane, hold ? held : null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected boolean canRun(Lane lane) {
+        if (active >= maxConcurrent) return false;
+        if (lane == Lane.BATCH) {
+            return activeBatch < maxBatch && queued[Lane.INTERACTIVE.ordinal()] == 0;
+        }
+        return true;
+    }
+
+    protected void release(Lane lane) {
+        lock.lock();
+        try {
+            active--;
+            if (lane == Lane.BATCH) activeBatch--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a snapshot of the current usage of the bulkhead
+     */
+    public Stats getStats() {
+        lock.lock();
+        try {
+            return new Stats(active, activeBatch, queued[Lane.INTERACTIVE.ordinal()], queued[Lane.BATCH.ordinal()],
+                    peakQueued, admitted, rejected, timeouts,
+                    admitted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWait) / admitted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admission to the bulkhead, to be released once the call completes.
+     * Releasing more than once has no effect.
+     */
+    public class Permit {
+        protected final Lane lane;
+        protected final AtomicInteger holder;
+        protected boolean done = false;
+
+        /**
+         * @param lane the lane the slot was taken in, null for a nested call which took no slot
+         * @param holder hold count of the acquiring thread, null if not held by the thread
+         */
+        protected Permit(Lane lane, AtomicInteger holder) {
+            this.lane = lane;
+            this.holder = holder;
+            if (holder != null) {
+                holder.incrementAndGet();
+            }
+        }
+
+        public synchronized void release() {
+            if (!done) {
+                done = true;
+                if (holder != null) {
+                    holder.decrementAndGet();
+                }
+                if (lane != null) {
+                    Bulkhead.this.release(lane);
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshot of bulkhead usage
+     */
+    public static class Stats {
+        protected final int active;
+        protected final int activeBatch;
+        protected final int queuedInteractive;
+        protected final int queuedBatch;
+        protected final int peakQueued;
+        protected final long admitted;
+        protected final long rejected;
+        protected final long timeouts;
+        protected final long meanWait;
+
+        public Stats(int active, int activeBatch, int queuedInteractive, int queuedBatch, int peakQueued,
+                long admitted, long rejected, long timeouts, long meanWait) {
+            this.active = active;
+            this.activeBatch = activeBatch;
+            this.queuedInteractive = queuedInteractive;
+            this.queuedBatch = queuedBatch;
+            this.peakQueued = peakQueued;
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.timeouts = timeouts;
+            this.meanWait = meanWait;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getActiveBatch() {
+            return activeBatch;
+        }
+
+        public int getQueuedInteractive() {
+            return queuedInteractive;
+        }
+
+        public int getQueuedBatch() {
+            return queuedBatch;
+        }
+
+        public int getQueueDepth() {
+            return queuedInteractive + queuedBatch;
+        }
+
+        public int getPeakQueued() {
+            return peakQueued;
+        }
+
+        public long getAdmitted() {
+            return admitted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /** Mean time spent waiting for admission, in ms, across all admitted calls */
+        public long getMeanWait() {
+            return meanWait;
+        }
+
+        public JsonObject asJson() {
+            JsonObject json = new JsonObject();
+            json.put("active", active);
+            json.put("activeBatch", activeBatch);
+            json.put("queuedInteractive", queuedInteractive);
+            json.put("queuedBatch", queuedBatch);
+            json.put("peakQueued", peakQueued);
+            json.put("admitted", admitted);
+            json.put("rejected", rejected);
+            json.put("timeouts", timeouts);
+            json.put("meanWait", meanWait);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d (batch %d), queued=%d/%d, peakQueued=%d, admitted=%d, rejected=%d, timeouts=%d, meanWait=%dms",
+                    active, activeBatch, queuedInteractive, queuedBatch, peakQueued, admitted, rejected, timeouts, meanWait);
+        }
+    }
+}
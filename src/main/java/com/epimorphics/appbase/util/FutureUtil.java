@@ -0,0 +1,44 @@
+/******************************************************************
+ * File:        FutureUtil.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.epimorphics.util.EpiException;
+
+/**
+ * Utilities for working with sets of asynchronous results.
+ */
+public class FutureUtil {
+
+    /**
+     * Wait for a set of asynchronous results, returning them in order.
+     * Failures are rethrown unwrapped.
+     */
+    public static <T> List<T> join(List<CompletableFuture<T>> futures) {
+        try {
+            CompletableFuture.allOf( futures.toArray(new CompletableFuture<?>[futures.size()]) ).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new EpiException(e.getCause());
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> f : futures) {
+            results.add( f.join() );
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,186 @@
+/******************************************************************
+ * File:        ParallelGZIPOutputStream.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream which compresses in parallel. Data is divided into fixed size
+ * blocks, each block is compressed independently on a pool of threads and written
+ * out, in order, as a separate gzip member. The result is a valid multi-member gzip
+ * file which can be read by GZIPInputStream and standard gzip tools, though
+ * slightly larger than a single stream compression.
+ * <p>
+ * Memory use is bounded by the block size times twice the number of threads.
+ * Not thread safe, a single writer is assumed.
+ * </p>
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    protected final OutputStream out;
+    protected final ExecutorService executor;
+    protected final boolean ownExecutor;
+    protected final int blockSize;
+    protected final int maxPending;
+    protected final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    protected byte[] block;
+    protected int fill = 0;
+    protected long bytesIn = 0;
+    protected long bytesOut = 0;
+    protected boolean closed = false;
+
+    /**
+     * Compress to the given stream using a thread per available processor
+     */
+    public ParallelGZIPOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize) {
+        this(out, Executors.newFixedThreadPool(Math.max(1, threads)), true, Math.max(1, threads), blockSize);
+    }
+
+    /**
+     * Compress to the given stream using a supplied executor, which is not shut down on close
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int parallelism, int blockSize) {
+        this(out, executor, false, parallelism, blockSize);
+    }
+
+    protected ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, boolean ownExecutor, int parallelism, int blockSize) {
+        this.out = out;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.blockSize = blockSize;
+        this.maxPending = 2 * Math.max(1, parallelism);
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Number of uncompressed bytes written so far
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Number of compressed bytes written to the underlying stream so far
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[fill++] = (byte) b;
+        bytesIn++;
+        if (fill == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - fill);
+            System.arraycopy(b, off, block, fill, n);
+            fill += n;
+            off += n;
+            len -= n;
+            bytesIn += n;
+            if (fill == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Flush completes any partial block as a gzip member so that all data
+     * written so far reaches the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (bytesIn == 0) {
+                // An empty file is not valid gzip, write a single empty member instead
+                byte[] empty = compress(new byte[0], 0);
+                out.write(empty);
+                bytesOut += empty.length;
+            }
+            flush();
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(true);
+            }
+            pending.clear();
+            if (ownExecutor) {
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    protected void submitBlock() throws IOException {
+        if (fill == 0) return;
+        byte[] data = (fill == blockSize) ? block : Arrays.copyOf(block, fill);
+        int length = fill;
+        pending.add( executor.submit( () -> compress(data, length) ) );
+        block = new byte[blockSize];
+        fill = 0;
+        while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+            writeNext();
+        }
+    }
+
+    protected void writeNext() throws IOException {
+        try {
+            byte[] compressed = pending.poll().get();
+            out.write(compressed);
+            bytesOut += compressed.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during compression");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    protected static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(buffer, 64 * 1024)) {
+            gz.write(data, 0, length);
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,57 @@
+/******************************************************************
+ * File:        TestBatchDescribe.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.data.impl.ModelSparqlSource;
+
+public class TestBatchDescribe {
+    protected static final String NS = "http://localhost/test/";
+
+    @Test
+    public void testBatchedDescribe() {
+        Model model = ModelFactory.createDefaultModel();
+        String[] uris = new String[7];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = NS + "i" + i;
+            Resource r = model.createResource(uris[i]);
+            r.addProperty(RDFS.label, "label " + i);
+            // Nested blank node structure belongs in the description
+            Resource bnode = model.createResource();
+            bnode.addProperty(RDFS.comment, "comment " + i);
+            bnode.addProperty(RDFS.seeAlso, model.createResource().addProperty(RDFS.label, "inner " + i));
+            r.addProperty(RDFS.seeAlso, bnode);
+            // Link to a sibling resource which should not be included
+            r.addProperty(RDFS.seeAlso, model.createResource(NS + "i" + ((i + 1) % uris.length)));
+        }
+        ModelSparqlSource source = new ModelSparqlSource(model);
+        source.setDescribeBatchSize(3);
+
+        Graph[] descriptions = source.describeEach(uris);
+        assertEquals(uris.length, descriptions.length);
+        for (int i = 0; i < uris.length; i++) {
+            Model d = ModelFactory.createModelForGraph(descriptions[i]);
+            assertEquals(6, d.size());
+            assertTrue( d.contains(d.createResource(uris[i]), RDFS.label, "label " + i) );
+            assertTrue( d.contains(null, RDFS.label, "inner " + i) );
+        }
+
+        assertEquals(6 * uris.length, source.describeAll(uris).size());
+    }
+}
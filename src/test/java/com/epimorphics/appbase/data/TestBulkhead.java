@@ -0,0 +1,133 @@
+/******************************************************************
+ * File:        TestBulkhead.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+import com.epimorphics.appbase.util.Bulkhead;
+import com.epimorphics.appbase.util.Bulkhead.Lane;
+import com.epimorphics.util.EpiException;
+
+public class TestBulkhead {
+    protected ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    public void testLimits() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(1, 0, 1, 200);
+        Bulkhead.Permit permit = bulkhead.acquire();
+
+        // Waits then times out
+        assertThrows(EpiException.class, bulkhead::acquire);
+        assertEquals(1, bulkhead.getStats().getTimeouts());
+
+        // Rejected immediately when the queue is full
+        CompletableFuture<Bulkhead.Permit> waiting = CompletableFuture.supplyAsync(bulkhead::acquire, executor);
+        awaitQueued(bulkhead, 1);
+        assertThrows(EpiException.class, bulkhead::acquire);
+        assertEquals(1, bulkhead.getStats().getRejected());
+
+        permit.release();
+        permit.release();
+        waiting.get(5, TimeUnit.SECONDS).release();
+        assertEquals(0, bulkhead.getStats().getActive());
+        assertEquals(2, bulkhead.getStats().getAdmitted());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(1, 0, 10, 5000);
+        Bulkhead.Permit permit = bulkhead.acquire();
+        List<Lane> order = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> batch = CompletableFuture.runAsync( () -> Bulkhead.runAs(Lane.BATCH, () -> {
+            bulkhead.acquire().release();
+            return order.add(Lane.BATCH);
+        }), executor);
+        awaitQueued(bulkhead, 1);
+        CompletableFuture<Void> interactive = CompletableFuture.runAsync( () -> {
+            Bulkhead.Permit p = bulkhead.acquire();
+            order.add(Lane.INTERACTIVE);
+            p.release();
+        }, executor);
+        awaitQueued(bulkhead, 2);
+        permit.release();
+        CompletableFuture.allOf(batch, interactive).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(Lane.INTERACTIVE, Lane.BATCH), order);
+    }
+
+    @Test
+    public void testSourceLimit() {
+        FileSparqlSource source = new FileSparqlSource();
+        source.setFiles("src/test/data/source-tests/base");
+        source.setMaxConcurrent(1);
+        source.setQueueTimeout(100);
+        source.startup( new App("bulkhead test") );
+
+        ClosableResultSet open = source.streamableSelect("SELECT * WHERE {?s ?p ?o}");
+        try {
+            assertEquals(1, source.getBulkheadStats().getActive());
+            // Nested queries from the streaming thread pass through, others wait and time out
+            source.select("SELECT * WHERE {?s ?p ?o}");
+            source.describeAll(BaseSourceTest.TEST_NS + "i1");
+            CompletableFuture<?> other = CompletableFuture.supplyAsync( () -> source.select("SELECT * WHERE {?s ?p ?o}"), executor );
+            ExecutionException e = assertThrows(ExecutionException.class, () -> other.get(5, TimeUnit.SECONDS));
+            assertTrue( e.getCause() instanceof EpiException );
+        } finally {
+            open.close();
+        }
+        source.select("SELECT * WHERE {?s ?p ?o}");
+        assertEquals(0, source.getBulkheadStats().getActive());
+        assertEquals(2, source.getBulkheadStats().getAdmitted());
+    }
+
+    @Test
+    public void testReentrant() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(1, 0, 1, 100);
+        Bulkhead.Permit outer = bulkhead.acquire();
+        assertTrue( bulkhead.isHeld() );
+        Bulkhead.Permit inner = bulkhead.acquire();
+        inner.release();
+        assertTrue( bulkhead.isHeld() );
+        assertEquals(1, bulkhead.getStats().getActive());
+
+        // Released on another thread, still clears the acquiring thread's hold
+        CompletableFuture.runAsync(outer::release, executor).get(5, TimeUnit.SECONDS);
+        assertFalse( bulkhead.isHeld() );
+        assertEquals(0, bulkhead.getStats().getActive());
+
+        // Asynchronous permits don't let later calls from the thread through
+        Bulkhead.Permit async = bulkhead.acquireAsync();
+        assertFalse( bulkhead.isHeld() );
+        assertThrows(EpiException.class, bulkhead::acquire);
+        async.release();
+        assertEquals(2, bulkhead.getStats().getAdmitted());
+    }
+
+    private void awaitQueued(Bulkhead bulkhead, int depth) throws InterruptedException {
+        for (int i = 0; i < 500 && bulkhead.getStats().getQueueDepth() < depth; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, bulkhead.getStats().getQueueDepth());
+    }
+}
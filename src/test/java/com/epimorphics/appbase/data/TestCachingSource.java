@@ -0,0 +1,92 @@
+/******************************************************************
+ * File:        TestCachingSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.data.impl.CachingSparqlSource;
+import com.epimorphics.appbase.data.impl.DatasetSparqlSource;
+
+public class TestCachingSource {
+    protected static final String NS = "http://localhost/test/";
+    protected static final String G1 = NS + "g1";
+    protected static final String G2 = NS + "g2";
+
+    protected CachingSparqlSource source;
+
+    @BeforeEach
+    public void setup() {
+        DatasetSparqlSource base = new DatasetSparqlSource();
+        base.getAccessor().putModel(G1, model("a", "A"));
+        base.getAccessor().putModel(G2, model("b", "B"));
+        source = new CachingSparqlSource(base);
+    }
+
+    @Test
+    public void testSelectCache() {
+        String q1 = "SELECT ?l WHERE { GRAPH <" + G1 + "> { ?x <" + RDFS.label.getURI() + "> ?l } }";
+        String q1alt = "SELECT ?l\nWHERE {\n  GRAPH <" + G1 + "> {?x <" + RDFS.label.getURI() + "> ?l}\n}";
+        assertEquals("A", label(source.select(q1)));
+        assertEquals("A", label(source.select(q1alt)));
+        assertEquals(1, source.getStats().getHits());
+        assertEquals(1, source.getStats().getMisses());
+
+        assertTrue( source.ask("ASK { GRAPH <" + G2 + "> { ?x ?p ?o } }") );
+        assertTrue( source.ask("ASK { GRAPH <" + G2 + "> { ?x ?p ?o } }") );
+        assertEquals(2, source.getStats().getHits());
+
+        // Write to an unrelated graph leaves the g1 result cached
+        source.getAccessor().putModel(G2, model("b", "B2"));
+        assertEquals("A", label(source.select(q1)));
+        assertEquals(3, source.getStats().getHits());
+        assertEquals(1, source.size());
+
+        // Write to g1 invalidates it
+        source.getAccessor().putModel(G1, model("a", "A2"));
+        assertEquals("A2", label(source.select(q1)));
+        assertEquals(3, source.getStats().getHits());
+    }
+
+    @Test
+    public void testUpdateInvalidates() {
+        String q = "SELECT ?l WHERE { GRAPH ?g { ?x <" + RDFS.label.getURI() + "> ?l } } ORDER BY ?l";
+        ResultSet rs = source.select(q);
+        assertEquals("A", label(rs));
+        assertEquals("B", rs.next().getLiteral("l").getLexicalForm());
+        assertFalse(rs.hasNext());
+
+        source.update( UpdateFactory.create("DELETE WHERE { GRAPH <" + G1 + "> { ?s ?p ?o } }") );
+        assertEquals("B", label(source.select(q)));
+        assertEquals(0, source.getStats().getHits());
+    }
+
+    private static String label(ResultSet rs) {
+        assertTrue(rs.hasNext());
+        return rs.next().getLiteral("l").getLexicalForm();
+    }
+
+    private static Model model(String local, String label) {
+        Model m = ModelFactory.createDefaultModel();
+        Resource r = m.createResource(NS + local);
+        r.addProperty(RDFS.label, label);
+        return m;
+    }
+}
@@ -0,0 +1,93 @@
+/******************************************************************
+ * File:        TestColumnarResults.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.data.impl.ColumnarResultSet;
+import com.epimorphics.appbase.data.impl.ModelSparqlSource;
+import com.epimorphics.appbase.data.impl.WResultSetColumnar;
+
+public class TestColumnarResults {
+    protected static final String NS = "http://localhost/test/";
+
+    @Test
+    public void testColumnar() {
+        Model model = ModelFactory.createDefaultModel();
+        Resource type = model.createResource(NS + "Type");
+        for (int i = 0; i < 40; i++) {
+            Resource r = model.createResource(NS + "i" + i).addProperty(RDF.type, type);
+            if (i % 2 == 0) {
+                r.addProperty(RDFS.label, "label " + i);
+            }
+        }
+        String query = "SELECT ?x ?type ?label WHERE { ?x a ?type OPTIONAL {?x <" + RDFS.label.getURI() + "> ?label} } ORDER BY ?x";
+        ColumnarResultSet results;
+        try (QueryExecution qexec = QueryExecutionFactory.create(query, model)) {
+            results = ColumnarResultSet.materialize( qexec.execSelect() );
+        }
+        assertEquals(40, results.size());
+        assertEquals(3, results.getResultVars().size());
+
+        // Repeated values are shared
+        int typeCol = results.columnIndex("type");
+        assertSame( results.get(0, typeCol), results.get(39, typeCol) );
+
+        int count = 0, labelled = 0;
+        while (results.hasNext()) {
+            Binding b = results.nextBinding();
+            assertEquals(type.asNode(), b.get("type"));
+            if (b.contains("label")) labelled++;
+            count++;
+        }
+        assertEquals(40, count);
+        assertEquals(20, labelled);
+        assertFalse(results.hasNext());
+
+        results.reset();
+        assertTrue(results.hasNext());
+        results.nextSolution();
+        assertEquals(1, results.getRowNumber());
+
+        // Independent cursors
+        ColumnarResultSet view = results.view();
+        assertEquals(0, view.getRowNumber());
+        assertEquals(1, results.getRowNumber());
+
+        // Wrapped form, starting from current position and re-iterable
+        WSource source = new WSource();
+        source.setSource( new ModelSparqlSource(model) );
+        WResultSetColumnar wrs = new WResultSetColumnar(results, source);
+        assertEquals(39, wrs.count());
+        for (int pass = 0; pass < 2; pass++) {
+            int rows = 0, labels = 0;
+            for (WQuerySolution row : wrs) {
+                assertEquals(NS + "Type", row.get("type").getURI());
+                if (row.get("label") != null) labels++;
+                rows++;
+            }
+            assertEquals(39, rows);
+            assertEquals(19, labels);     // first row, i0, was labelled
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/******************************************************************
+ * File:        TestDescriptionCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphMemFactory;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.data.impl.ModelSparqlSource;
+import com.epimorphics.appbase.data.impl.StripedLRUDescriptionCache;
+import com.epimorphics.appbase.data.impl.TinyLFUDescriptionCache;
+
+public class TestDescriptionCache {
+    protected static final String NS = "http://localhost/test/";
+
+    @Test
+    public void testLRU() {
+        DescriptionCache cache = new StripedLRUDescriptionCache(4, 0, 1);
+        for (int i = 0; i < 4; i++) {
+            cache.put(node(i), description(i, 1));
+        }
+        assertNotNull( cache.get(node(0)) );    // touch 0 so 1 becomes eldest
+        cache.put(node(4), description(4, 1));
+        assertNull( cache.get(node(1)) );
+        assertNotNull( cache.get(node(0)) );
+        assertNotNull( cache.get(node(4)) );
+        assertEquals(4, cache.size());
+        
+        DescriptionCache.Stats stats = cache.getStats();
+        assertEquals(3, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getEvictions());
+        
+        cache.invalidate(node(0));
+        assertNull( cache.get(node(0)) );
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLRUWeight() {
+        DescriptionCache cache = new StripedLRUDescriptionCache(100, 10, 1);
+        cache.put(node(0), description(0, 4));
+        cache.put(node(1), description(1, 4));
+        cache.put(node(2), description(2, 4));
+        assertNull( cache.get(node(0)) );
+        assertEquals(8, cache.getStats().getWeight());
+    }
+
+    @Test
+    public void testTinyLFU() {
+        DescriptionCache cache = new TinyLFUDescriptionCache(100, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(node(i), description(i, 2));
+        }
+        assertEquals(2, cache.get(node(3)).getWeight());
+        assertNull( cache.get(node(42)) );
+        DescriptionCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        
+        cache.invalidate(node(3));
+        assertNull( cache.get(node(3)) );
+    }
+
+    @Test
+    public void testTinyLFUWeight() {
+        TinyLFUDescriptionCache cache = new TinyLFUDescriptionCache(100, 10);
+        for (int i = 0; i < 10; i++) {
+            cache.put(node(i), description(i, 4));
+        }
+        cache.cleanUp();
+        assertTrue( cache.getStats().getWeight() <= 10 );
+    }
+
+    @Test
+    public void testCoalescedDescribe() throws InterruptedException {
+        Model model = ModelFactory.createDefaultModel();
+        model.getGraph().add( Triple.create(node(1), RDFS.label.asNode(), NodeFactory.createLiteralString("one")) );
+        model.getGraph().add( Triple.create(node(2), RDFS.label.asNode(), NodeFactory.createLiteralString("two")) );
+        CountingSource ss = new CountingSource(model);
+        WSource source = new WSource();
+        source.setSource(ss);
+        
+        // First caller claims both nodes and is held inside the describe
+        List<WNode> results = new ArrayList<>();
+        Thread first = describer(source, results);
+        first.start();
+        assertTrue( ss.entered.await(10, TimeUnit.SECONDS) );
+        
+        // Other callers must wait on the in-flight describe rather than issue their own
+        int nthreads = 8;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nthreads; t++) {
+            Thread thread = describer(source, results);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(Thread.State.WAITING, thread.getState());
+        }
+        ss.release.countDown();
+        
+        first.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2 * (nthreads + 1), results.size());
+        for (WNode n : results) {
+            assertTrue( n.isDescribed() );
+        }
+        assertEquals(1, ss.describeCount.get());
+    }
+
+    protected Thread describer(WSource source, List<WNode> results) {
+        return new Thread( () -> {
+            List<WNode> nodes = new ArrayList<>();
+            nodes.add( new WNode(source, node(1)) );
+            nodes.add( new WNode(source, node(2)) );
+            source.describe(nodes);
+            synchronized (results) {
+                results.addAll(nodes);
+            }
+        });
+    }
+
+    @Test
+    public void testCustomCacheRetained() {
+        WSource source = new WSource();
+        DescriptionCache custom = new StripedLRUDescriptionCache(10, 0, 1);
+        source.setCache(custom);
+        source.setCacheSize(500);
+        source.setCachePolicy(WSource.POLICY_TINYLFU);
+        assertTrue( source.getCache() == custom );
+    }
+
+    @Test
+    public void testDescribedSubjects() {
+        Graph g = GraphMemFactory.createGraphMem();
+        Node b = NodeFactory.createBlankNode();
+        g.add( Triple.create(node(1), RDFS.seeAlso.asNode(), b) );
+        g.add( Triple.create(b, RDFS.label.asNode(), NodeFactory.createLiteralString("nested")) );
+        g.add( Triple.create(node(2), RDFS.label.asNode(), NodeFactory.createLiteralString("two")) );
+        Set<Node> subjects = WSource.describedSubjects(g);
+        assertEquals(2, subjects.size());
+        assertTrue( subjects.contains(node(1)) );
+        assertTrue( subjects.contains(node(2)) );
+        
+        g.add( Triple.create(NodeFactory.createBlankNode(), RDFS.label.asNode(), NodeFactory.createLiteralString("orphan")) );
+        assertNull( WSource.describedSubjects(g) );
+    }
+
+    @Test
+    public void testTargetedInvalidation() {
+        WSource source = new WSource();
+        source.getCache().put(node(1), description(1, 1));
+        source.getCache().put(node(2), description(2, 1));
+        source.invalidateFor( UpdateFactory.create("INSERT DATA { <" + NS + "1> <" + RDFS.label.getURI() + "> 'new' }") );
+        assertNull( source.getCache().get(node(1)) );
+        assertNotNull( source.getCache().get(node(2)) );
+    }
+
+    @Test
+    public void testUpdateInvalidates() {
+        Model model = ModelFactory.createDefaultModel();
+        model.getGraph().add( Triple.create(node(1), RDFS.label.asNode(), NodeFactory.createLiteralString("one")) );
+        model.getGraph().add( Triple.create(node(2), RDFS.label.asNode(), NodeFactory.createLiteralString("two")) );
+        WSource source = new WSource();
+        source.setSource( new ModelSparqlSource(model) );
+        List<WNode> nodes = new ArrayList<>();
+        nodes.add( new WNode(source, node(1)) );
+        nodes.add( new WNode(source, node(2)) );
+        source.describe(nodes);
+        assertNotNull( source.getCache().get(node(1)) );
+        
+        source.update( UpdateFactory.create("INSERT DATA { <" + NS + "1> <" + RDFS.comment.getURI() + "> 'new' }") );
+        assertNull( source.getCache().get(node(1)) );
+        assertNotNull( source.getCache().get(node(2)) );
+        assertTrue( source.get(node(1)).getDescription().find(node(1), RDFS.comment.asNode(), Node.ANY).hasNext() );
+    }
+
+    @Test
+    public void testInvalidateDuringDescribe() throws InterruptedException {
+        Model model = ModelFactory.createDefaultModel();
+        model.getGraph().add( Triple.create(node(1), RDFS.label.asNode(), NodeFactory.createLiteralString("one")) );
+        CountingSource ss = new CountingSource(model);
+        WSource source = new WSource();
+        source.setSource(ss);
+        
+        Thread describer = describer(source, new ArrayList<>());
+        describer.start();
+        assertTrue( ss.entered.await(10, TimeUnit.SECONDS) );
+        source.invalidate(node(1));
+        ss.release.countDown();
+        describer.join();
+        
+        // The description fetched before the invalidation must not be cached
+        assertNull( source.getCache().get(node(1)) );
+    }
+
+    public static class CountingSource extends ModelSparqlSource {
+        AtomicInteger describeCount = new AtomicInteger();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        public CountingSource(Model model) {
+            super(model);
+        }
+
+        @Override
+        public Graph[] describeEach(String... uris) {
+            describeCount.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            return super.describeEach(uris);
+        }
+    }
+
+    protected Node node(int i) {
+        return NodeFactory.createURI(NS + i);
+    }
+
+    protected NodeDescription description(int i, int size) {
+        Node n = node(i);
+        Graph g = GraphMemFactory.createGraphMem();
+        for (int j = 0; j < size; j++) {
+            g.add( Triple.create(n, RDFS.label.asNode(), NodeFactory.createLiteralString("label " + j)) );
+        }
+        return new NodeDescription(n, g);
+    }
+}
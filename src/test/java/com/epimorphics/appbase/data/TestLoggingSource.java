@@ -11,10 +11,18 @@ package com.epimorphics.appbase.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.update.UpdateFactory;
@@ -26,6 +34,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.data.impl.DatasetSparqlSource;
 import com.epimorphics.appbase.data.impl.LoggingSparqlSource;
+import com.epimorphics.appbase.data.impl.UpdateJournal;
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
 
 /**
  * Test support for logging 
@@ -68,6 +79,101 @@ public class TestLoggingSource {
         compareDirectories(new File("src/test/data/logging-expected"), logDir);
     }
     
+    @Test
+    public void testJournal() throws Exception {
+        File journalDir = Files.createTempDirectory("journalTest").toFile();
+        LoggingSparqlSource jsource = new LoggingSparqlSource();
+        jsource.setSource( new DatasetSparqlSource() );
+        jsource.setJournalDirectory( journalDir.getPath() );
+        jsource.setSegmentSize(200);
+        
+        DatasetAccessor accessor = jsource.getAccessor();
+        accessor.add(TEST + "g1", createGraph("g1"));
+        accessor.putModel(TEST + "g2", createGraph("g2"));
+        accessor.deleteModel(TEST + "g1");
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String update = String.format("INSERT DATA { <%s> <%s> 'u%d' }", TEST + "u", RDFS.label.getURI(), i);
+            updates.add( CompletableFuture.runAsync( () -> jsource.update( UpdateFactory.create(update) ) ) );
+        }
+        updates.forEach(CompletableFuture::join);
+        jsource.shutdown();
+        assertTrue( UpdateJournal.listSegments(journalDir).length > 1 );
+        
+        // Reopening continues the sequence
+        jsource.update( UpdateFactory.create(String.format("INSERT DATA { <%s> <%s> 'last' }", TEST + "u", RDFS.label.getURI())) );
+        jsource.shutdown();
+        List<Long> seqs = new ArrayList<>();
+        UpdateJournal.read(journalDir, e -> seqs.add(e.seq));
+        assertEquals(24, seqs.size());
+        assertEquals(24L, seqs.get(23).longValue());
+        
+        DatasetSparqlSource rebuilt = new DatasetSparqlSource();
+        assertEquals(24, LoggingSparqlSource.replay(journalDir, rebuilt, 0, Long.MAX_VALUE));
+        ResultSet labels = rebuilt.select("SELECT * WHERE { ?s <" + RDFS.label.getURI() + "> ?l }");
+        int count = 0;
+        while (labels.hasNext()) {
+            labels.next();
+            count++;
+        }
+        assertEquals(21, count);
+        assertTrue( rebuilt.ask("ASK { GRAPH <" + TEST + "g2> { ?s ?p 'g2' } }") );
+        assertFalse( rebuilt.ask("ASK { GRAPH <" + TEST + "g1> { ?s ?p ?o } }") );
+        FileUtil.deleteDirectory(journalDir);
+    }
+    
+    @Test
+    public void testJournalWriteFailure() throws Exception {
+        File journalDir = Files.createTempDirectory("journalTest").toFile();
+        AtomicBoolean fail = new AtomicBoolean(false);
+        UpdateJournal journal = new UpdateJournal(journalDir, UpdateJournal.DEFAULT_SEGMENT_SIZE) {
+            @Override
+            protected void write(ByteBuffer buffer) throws IOException {
+                if (fail.get()) {
+                    // Simulate a partial write, such as a full disk
+                    ByteBuffer half = buffer.duplicate();
+                    half.limit( half.position() + half.remaining() / 2 );
+                    channel.write(half);
+                    throw new IOException("Simulated write failure");
+                }
+                super.write(buffer);
+            }
+        };
+        assertEquals(1L, journal.append("UPDATE", null, "first").join().longValue());
+        File segment = UpdateJournal.listSegments(journalDir)[0];
+        long length = segment.length();
+        
+        fail.set(true);
+        CompletableFuture<Long> failed = journal.append("UPDATE", null, "second");
+        assertThrows(CompletionException.class, failed::join);
+        assertEquals(length, segment.length());
+        assertThrows(EpiException.class, () -> journal.append("UPDATE", null, "third"));
+        journal.close();
+        
+        List<String> bodies = new ArrayList<>();
+        UpdateJournal.read(journalDir, e -> bodies.add(e.body));
+        assertEquals(Arrays.asList("first"), bodies);
+        FileUtil.deleteDirectory(journalDir);
+    }
+    
+    @Test
+    public void testJournalCorruptLength() throws Exception {
+        File journalDir = Files.createTempDirectory("journalTest").toFile();
+        UpdateJournal journal = new UpdateJournal(journalDir, UpdateJournal.DEFAULT_SEGMENT_SIZE);
+        journal.append("UPDATE", null, "first").join();
+        journal.close();
+        
+        // A torn header claiming a huge record must be treated as the end of the journal
+        File segment = UpdateJournal.listSegments(journalDir)[0];
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE - 8).putInt(0);
+        Files.write(segment.toPath(), header.array(), StandardOpenOption.APPEND);
+        
+        List<String> bodies = new ArrayList<>();
+        UpdateJournal.read(journalDir, e -> bodies.add(e.body));
+        assertEquals(Arrays.asList("first"), bodies);
+        FileUtil.deleteDirectory(journalDir);
+    }
+    
     public static void compareDirectories(File expectedDir, File actualDir) {
         String[] expectedFiles = expectedDir.list();
         Arrays.sort(expectedFiles);
@@ -0,0 +1,89 @@
+/******************************************************************
+ * File:        TestQueryMetrics.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.QueryMetrics.ShapeStats;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+
+public class TestQueryMetrics {
+
+    @Test
+    public void testShape() {
+        String q1 = QueryMetrics.shape( QueryFactory.create("SELECT * WHERE {?s <http://localhost/p> 'foo'} LIMIT 10") );
+        String q2 = QueryMetrics.shape( QueryFactory.create("SELECT * WHERE {?s <http://localhost/p> \"bar\"@en} LIMIT 10") );
+        assertEquals(q1, q2);
+        assertEquals( QueryMetrics.shape( QueryFactory.create("DESCRIBE <http://localhost/a>") ),
+                      QueryMetrics.shape( QueryFactory.create("DESCRIBE <http://localhost/b>") ) );
+    }
+
+    @Test
+    public void testSourceMetrics() {
+        App app = new App("metrics test");
+        QueryMetrics metrics = new QueryMetrics();
+        FileSparqlSource source = new FileSparqlSource();
+        source.setFiles("src/test/data/source-tests/base");
+        source.setMetrics(metrics);
+        source.startup(app);
+
+        String template = "SELECT * WHERE {?s ?p '%s'}";
+        source.select( String.format(template, "a") );
+        source.select( String.format(template, "b") );
+        int rows = ResultSetFormatter.consume( source.select("SELECT * WHERE {?s ?p ?o}") );
+        source.describeAll(BaseSourceTest.TEST_NS + "i1");
+
+        List<ShapeStats> shapes = metrics.getShapes();
+        assertEquals(3, shapes.size());
+        ShapeStats literal = shapes.stream().filter( s -> s.getShape().contains("?lit") ).findFirst().get();
+        assertEquals(2, literal.getCount());
+        assertTrue( literal.getPercentile(99) <= literal.getMaxTime() );
+        assertTrue( shapes.stream().anyMatch( s -> s.getResults() == rows ) );
+        ShapeStats describe = shapes.stream().filter( s -> s.getShape().equals("DESCRIBE <uri>") ).findFirst().get();
+        assertEquals(1, describe.getCount());
+        assertTrue( describe.getResults() > 0 );
+        assertEquals( 3, metrics.asJson().get("shapes").getAsArray().size() );
+
+        metrics.record("test", QueryFactory.create("ASK {?s ?p ?o}"), 5_000_000, -1, -1, new RuntimeException("fail"));
+        ShapeStats ask = metrics.getShapes().stream().filter( s -> s.getShape().startsWith("ASK") ).findFirst().get();
+        assertEquals(1, ask.getErrors());
+        assertEquals(5, ask.getMaxTime());
+    }
+
+    @Test
+    public void testBoundShapes() {
+        App app = new App("metrics test");
+        QueryMetrics metrics = new QueryMetrics();
+        FileSparqlSource source = new FileSparqlSource();
+        source.setFiles("src/test/data/source-tests/base");
+        source.setMetrics(metrics);
+        source.startup(app);
+
+        for (String id : new String[] {"i1", "i2", "i3"}) {
+            QuerySolutionMap bindings = new QuerySolutionMap();
+            bindings.add("s", ResourceFactory.createResource(BaseSourceTest.TEST_NS + id));
+            ResultSetFormatter.consume( source.select("SELECT * WHERE {?s ?p ?o}", bindings) );
+        }
+        List<ShapeStats> shapes = metrics.getShapes();
+        assertEquals(1, shapes.size());
+        assertEquals(3, shapes.get(0).getCount());
+        assertTrue( shapes.get(0).getShape().contains("?s") );
+    }
+}
@@ -73,6 +73,14 @@ public class TestRemoteSource {
         source.update( UpdateFactory.create(update) );
 
         checkLabels(new String[]{"In graph 0", "new string"});
+        
+        // Shared client, all queries completed
+        RemoteSparqlSource remote = (RemoteSparqlSource) source;
+        assertSame( remote.getHttpClient(), remote.getHttpClient() );
+        RemoteSparqlSource.ClientStats stats = remote.getClientStats();
+        assertEquals(4, stats.getQueries());
+        assertEquals(1, stats.getUpdates());
+        assertEquals(0, stats.getActive());
 
         // clean up
         for (int i = 0; i < 2; i++) {
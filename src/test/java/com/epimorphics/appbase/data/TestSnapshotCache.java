@@ -0,0 +1,72 @@
+/******************************************************************
+ * File:        TestSnapshotCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.epimorphics.appbase.data.impl.RDFSnapshotCache;
+
+public class TestSnapshotCache {
+    protected static final String PREFIX = "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testModelSnapshot() throws IOException {
+        File snapshotDir = new File(tempDir, "snapshots");
+        RDFSnapshotCache cache = new RDFSnapshotCache(snapshotDir);
+        File source = new File(tempDir, "data.ttl");
+        Files.writeString(source.toPath(), PREFIX + "<http://localhost/a> rdfs:label 'a' ; rdfs:seeAlso [ rdfs:label 'b' ] .\n");
+
+        Model parsed = cache.loadModel(source);
+        assertEquals(3, parsed.size());
+        assertEquals(1, snapshotDir.list().length);
+
+        Model cached = cache.loadModel(source);
+        assertTrue( cached.isIsomorphicWith(parsed) );
+        assertEquals("http://www.w3.org/2000/01/rdf-schema#", cached.getNsPrefixURI("rdfs"));
+
+        // A changed source invalidates the old snapshot
+        Files.writeString(source.toPath(), PREFIX + "<http://localhost/a> rdfs:label 'a2' .\n");
+        assertEquals(1, cache.loadModel(source).size());
+        assertEquals(1, snapshotDir.list().length);
+        assertEquals(1, cache.loadModel(source).size());
+    }
+
+    @Test
+    public void testDatasetSnapshot() throws IOException {
+        RDFSnapshotCache cache = new RDFSnapshotCache( new File(tempDir, "snapshots") );
+        File source = new File(tempDir, "data.trig");
+        Files.writeString(source.toPath(), PREFIX + "<http://localhost/a> rdfs:label 'a' .\n"
+                + "<http://localhost/g> { <http://localhost/b> rdfs:label 'b' }\n");
+
+        DatasetGraph parsed = DatasetGraphFactory.createGeneral();
+        cache.read(parsed, source);
+        DatasetGraph cached = DatasetGraphFactory.createGeneral();
+        cache.read(cached, source);
+        assertEquals(1, cached.getDefaultGraph().size());
+        Node g = NodeFactory.createURI("http://localhost/g");
+        assertTrue( cached.getGraph(g).isIsomorphicWith( parsed.getGraph(g) ) );
+    }
+}
@@ -0,0 +1,59 @@
+/******************************************************************
+ * File:        TestSnapshotSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.update.UpdateFactory;
+import org.junit.jupiter.api.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+
+public class TestSnapshotSource {
+    protected static final String COUNT = "SELECT (COUNT(*) AS ?n) WHERE {?s ?p ?o}";
+
+    @Test
+    public void testSnapshotReads() throws Exception {
+        FileSparqlSource source = new FileSparqlSource();
+        source.setFiles("src/test/data/source-tests/base");
+        source.setTextIndex("default");
+        source.setSnapshot(true);
+        source.startup( new App("snapshot test") );
+        int initial = count(source);
+        assertTrue(initial > 0);
+        assertTrue( source.describeAll(BaseSourceTest.TEST_NS + "i1").size() > 0 );
+
+        ClosableResultSet open = source.streamableSelect("SELECT * WHERE {?s ?p ?o}");
+        try {
+            // An open reader does not block the update
+            CompletableFuture.runAsync( () -> source.update( UpdateFactory.create("INSERT DATA { <http://localhost/new> <http://localhost/p> 'new' }") ) )
+                .get(10, TimeUnit.SECONDS);
+            int rows = 0;
+            while (open.hasNext()) {
+                open.next();
+                rows++;
+            }
+            // ... and sees the version that was current when it started
+            assertEquals(initial, rows);
+        } finally {
+            open.close();
+        }
+        assertEquals(initial + 1, count(source));
+    }
+
+    protected int count(SparqlSource source) {
+        return source.select(COUNT).next().getLiteral("n").getInt();
+    }
+}
@@ -12,20 +12,29 @@ package com.epimorphics.appbase.data;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.jupiter.api.Test;
 
+import com.epimorphics.appbase.core.RequestScope;
+import com.epimorphics.appbase.data.impl.BaseSparqlSource;
+import com.epimorphics.appbase.data.impl.WResultSetStreaming;
+import com.epimorphics.appbase.data.impl.WResultSetWrapper;
 import com.epimorphics.appbase.util.SQueryUtil;
 import com.epimorphics.util.PrefixUtils;
 import com.epimorphics.util.TestUtil;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Literal;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
@@ -151,6 +160,136 @@ public class TestSource extends BaseSourceTest {
         });
     }
     
+    @Test
+    public void testBoundSelect() {
+        String query = PrefixUtils.expandQuery("SELECT ?x WHERE {?item a ?x}", app.getPrefixes());
+        for (String item : new String[]{"i1", "i2"}) {
+            QuerySolutionMap bindings = new QuerySolutionMap();
+            bindings.add("item", ResourceFactory.createResource(TEST_NS + item));
+            ResultSet results = ssource.select(query, bindings);
+            assertTrue(results.hasNext());
+            assertEquals(ResourceFactory.createResource(TEST_NS + "Sample"), results.next().getResource("x"));
+            assertFalse(results.hasNext());
+        }
+        assertEquals(1, ((BaseSparqlSource)ssource).getQueryCache().size());
+        
+        int count = 0;
+        for (WQuerySolution row : source.select("SELECT ?x WHERE {?item a ?x}", "item", ResourceFactory.createResource(TEST_NS + "i3"))) {
+            assertEquals(TEST_NS + "Sample", row.get("x").getURI());
+            count++;
+        }
+        assertEquals(1, count);
+    }
+    
+    @Test
+    public void testStreamingWSelect() {
+        String query = "SELECT ?x WHERE {?x a test:Sample} ORDER BY ?x";
+        assertTrue( source.stream(query) instanceof WResultSetWrapper );
+        
+        WResultSetStreaming unfinished;
+        try (RequestScope scope = RequestScope.open()) {
+            WResultSet results = source.stream(query);
+            assertTrue( results instanceof WResultSetStreaming );
+            int count = 0;
+            for (WQuerySolution row : results) {
+                assertNotNull( row.get("x") );
+                count++;
+            }
+            assertEquals(5, count);
+            
+            unfinished = (WResultSetStreaming) source.stream(query);
+            Iterator<WQuerySolution> i = unfinished.iterator();
+            assertTrue(i.hasNext());
+            i.next();
+            
+            WResultSet spilled = source.stream(query).copy();
+            count = 0;
+            for (@SuppressWarnings("unused") WQuerySolution row : spilled) count++;
+            for (@SuppressWarnings("unused") WQuerySolution row : spilled) count++;
+            assertEquals(10, count);
+        }
+        // Closed by the end of the scope
+        assertFalse( unfinished.hasNext() );
+    }
+    
+    @Test
+    public void testRequestMemo() {
+        QueryMetrics metrics = new QueryMetrics();
+        ((BaseSparqlSource)ssource).setMetrics(metrics);
+        String query = "SELECT ?x WHERE {?x a test:Sample}";
+        try (RequestScope scope = RequestScope.open()) {
+            for (int i = 0; i < 3; i++) {
+                int count = 0;
+                for (@SuppressWarnings("unused") WQuerySolution row : source.select(query)) count++;
+                assertEquals(5, count);
+                assertEquals("Pref label", getNode("test:i1").getLabel());
+            }
+            List<WNode> nodes = source.describe( List.of(source.getNode(TEST_NS + "i2")) );
+            source.describe( List.of(source.getNode(TEST_NS + "i2")) );
+            assertEquals("Alt label", nodes.get(0).getLabel());
+        }
+        // The repeated select is only run once, each resource is only described once
+        assertEquals(1, countQueries(metrics, "SELECT"));
+        assertEquals(2, countQueries(metrics, "DESCRIBE"));
+        
+        source.select(query);
+        assertEquals(2, countQueries(metrics, "SELECT"));
+    }
+    
+    @Test
+    public void testDescribeResultsUncached() {
+        source.setCacheSize(0);
+        QueryMetrics metrics = new QueryMetrics();
+        ((BaseSparqlSource)ssource).setMetrics(metrics);
+        WResultSet results = source.describe( source.select("SELECT ?x WHERE {?x a test:Sample}") );
+        for (int pass = 0; pass < 2; pass++) {
+            int count = 0;
+            for (WQuerySolution row : results) {
+                assertTrue( row.get("x").isDescribed() );
+                count++;
+            }
+            assertEquals(5, count);
+        }
+        // One batch describe, not one per row
+        assertEquals(1, countQueries(metrics, "DESCRIBE"));
+    }
+    
+    private long countQueries(QueryMetrics metrics, String type) {
+        long total = 0;
+        for (QueryMetrics.ShapeStats stats : metrics.getShapes()) {
+            if (stats.getShape().contains(type)) {
+                total += stats.getCount();
+            }
+        }
+        return total;
+    }
+    
+    @Test
+    public void testAsyncSelect() throws Exception {
+        assertTrue( ssource instanceof AsyncSparqlSource );
+        AsyncSparqlSource async = (AsyncSparqlSource) ssource;
+        String ask = PrefixUtils.expandQuery("ASK {test:i1 a test:Sample}", app.getPrefixes());
+        assertTrue( async.askAsync(ask).get() );
+        
+        List<WResultSet> results = source.selectAll(
+                "SELECT ?x WHERE {?x a test:Sample}",
+                "SELECT ?l WHERE {test:i1 skos:prefLabel ?l}");
+        assertEquals(2, results.size());
+        int count = 0;
+        for (@SuppressWarnings("unused") WQuerySolution row : results.get(0)) count++;
+        assertEquals(5, count);
+        assertEquals("Pref label", results.get(1).iterator().next().get("l").getLabel());
+    }
+    
+    @Test
+    public void testAsyncAfterShutdown() throws Exception {
+        AsyncSparqlSource async = (AsyncSparqlSource) ssource;
+        String ask = PrefixUtils.expandQuery("ASK {test:i1 a test:Sample}", app.getPrefixes());
+        assertTrue( async.askAsync(ask).get() );
+        ((BaseSparqlSource) ssource).shutdown();
+        assertThrows( ExecutionException.class, () -> async.askAsync(ask).get() );
+    }
+    
     @Test
     public void testStreamableSelect() {
         String query = PrefixUtils.expandQuery("SELECT ?x WHERE {test:i1 a ?x}", app.getPrefixes());
@@ -0,0 +1,104 @@
+/******************************************************************
+ * File:        TestTDBSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.jena.atlas.json.JsonObject;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.update.UpdateFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.TDBSparqlSource;
+import com.epimorphics.json.JsonUtil;
+import com.epimorphics.tasks.SimpleProgressMonitor;
+
+public class TestTDBSource {
+    protected static final String NS = "http://localhost/test/";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testTDB2() {
+        TDBSparqlSource source = new TDBSparqlSource();
+        source.setLocation( new File(tempDir, "tdb2").getPath() );
+        source.setTdb2(true);
+        source.startup( new App("tdb test") );
+
+        for (int i = 0; i < 3; i++) {
+            source.update( UpdateFactory.create("INSERT DATA { <" + NS + "i" + i + "> <" + NS + "p> " + i + " }") );
+        }
+        String ask = "ASK { <" + NS + "i2> <" + NS + "p> 2 }";
+        assertTrue( source.ask(ask) );
+        assertEquals(3, ResultSetFormatter.consume( source.select("SELECT * WHERE {?s ?p ?o}") ));
+        ResultSet rs = source.select("SELECT ?o WHERE { <" + NS + "i1> <" + NS + "p> ?o }");
+        assertTrue( rs.hasNext() );
+        assertEquals(1, rs.next().getLiteral("o").getInt());
+        assertFalse( rs.hasNext() );
+
+        JsonObject stats = source.getStoreStats();
+        assertEquals("TDB2", stats.get("format").getAsString().value());
+        assertTrue( stats.get("storeBytes").getAsNumber().value().longValue() > 0 );
+
+        source.getCompactAction().run(JsonUtil.emptyObject(), new SimpleProgressMonitor());
+        assertEquals(1, source.getStoreStats().get("generations").getAsNumber().value().intValue());
+        assertTrue( source.ask(ask) );
+    }
+
+    @Test
+    public void testBackupRestore() {
+        TDBSparqlSource source = new TDBSparqlSource();
+        source.setLocation( new File(tempDir, "tdb2").getPath() );
+        source.setBackupDir( new File(tempDir, "backups").getPath() );
+        source.setTdb2(true);
+        source.startup( new App("tdb test") );
+
+        source.update( UpdateFactory.create("INSERT DATA { <" + NS + "i1> <" + NS + "p> 1 . GRAPH <" + NS + "g> { <" + NS + "i2> <" + NS + "p> 2 } }") );
+        JsonObject backup = source.getBackupAction().run(JsonUtil.emptyObject(), new SimpleProgressMonitor());
+        assertEquals(2, backup.get("quads").getAsNumber().value().intValue());
+        assertTrue( new File(backup.get("backupfile").getAsString().value()).length() > 0 );
+
+        source.update( UpdateFactory.create("INSERT DATA { <" + NS + "i3> <" + NS + "p> 3 }") );
+        JsonObject restore = source.getRestoreAction().run(JsonUtil.emptyObject(), new SimpleProgressMonitor());
+        assertEquals(2, restore.get("quads").getAsNumber().value().intValue());
+        assertTrue( source.ask("ASK { <" + NS + "i1> <" + NS + "p> 1 }") );
+        assertTrue( source.ask("ASK { GRAPH <" + NS + "g> { <" + NS + "i2> <" + NS + "p> 2 } }") );
+        assertFalse( source.ask("ASK { <" + NS + "i3> ?p ?o }") );
+        assertEquals(0, new File(tempDir, "backups").listFiles( (dir, name) -> name.endsWith(".tmp") ).length);
+    }
+
+    @Test
+    public void testRestoreBadBackup() throws IOException {
+        TDBSparqlSource source = new TDBSparqlSource();
+        source.setLocation( new File(tempDir, "tdb2").getPath() );
+        File backups = new File(tempDir, "backups");
+        backups.mkdirs();
+        source.setBackupDir( backups.getPath() );
+        source.setTdb2(true);
+        source.startup( new App("tdb test") );
+
+        source.update( UpdateFactory.create("INSERT DATA { <" + NS + "i1> <" + NS + "p> 1 }") );
+        Files.writeString( new File(backups, "backup-bad.nq").toPath(), "<" + NS + "i2> <" + NS + "p> 2 <" + NS + "g> .\nnot n-quads\n" );
+        JsonObject parameters = JsonUtil.makeJson("file", "backup-bad.nq");
+        JsonObject restore = source.getRestoreAction().run(parameters, new SimpleProgressMonitor());
+        assertFalse( restore.hasKey("quads") );
+        assertTrue( source.ask("ASK { <" + NS + "i1> <" + NS + "p> 1 }") );
+    }
+}
@@ -27,9 +27,13 @@ import com.epimorphics.appbase.data.SparqlSource;
 import com.epimorphics.appbase.data.TestUnionSource;
 import com.epimorphics.appbase.data.impl.UnionDatasetSparqlSource;
 import com.epimorphics.appbase.monitor.DatasetMonitor.MonitoredGraph;
+import com.epimorphics.appbase.monitor.FileRecord.FileState;
 import com.epimorphics.util.FileUtil;
 import com.epimorphics.util.TestUtil;
 import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.vocabulary.RDFS;
 import org.apache.jena.util.FileUtils;
 
 public class TestDatasetMonitor {
@@ -96,6 +100,82 @@ public class TestDatasetMonitor {
         assertEquals(1, cmonitor.getCachedUnion().size());
     }
     
+    @Test
+    public void testIncrementalChange() throws IOException {
+        List<DatasetMonitor.GraphDelta> deltas = new ArrayList<>();
+        CachingDatasetMonitor dmonitor = new CachingDatasetMonitor() {
+            @Override
+            protected synchronized void changeModelHook(String graph, Model model, GraphDelta delta) {
+                deltas.add(delta);
+                super.changeModelHook(graph, model, delta);
+            }
+        };
+        // Separate directory and store so the scanning monitors don't see this
+        File dir = Files.createTempDirectory("testincremental").toFile();
+        SparqlSource source = new UnionDatasetSparqlSource();
+        dmonitor.setProductionMode(true);
+        dmonitor.setDirectory(dir.getPath());
+        dmonitor.setSparqlSource(source);
+        dmonitor.startup(app);
+        
+        File file = new File(dir, "inc.ttl");
+        writeLabels(file, "a", "b", "c", "d");
+        dmonitor.process( new FileRecord(file, FileState.NEW) );
+        assertEquals(4, dmonitor.getCachedUnion().size());
+        
+        writeLabels(file, "a", "b", "c", "d2");
+        dmonitor.process( new FileRecord(file, FileState.MODIFIED) );
+        assertEquals(1, deltas.size());
+        assertEquals(1, deltas.get(0).additions.size());
+        assertEquals(1, deltas.get(0).removals.size());
+        assertEquals(4, dmonitor.getCachedUnion().size());
+        assertTrue( dmonitor.getCachedUnion().contains(null, RDFS.label, "d2") );
+        assertFalse( dmonitor.getCachedUnion().contains(null, RDFS.label, "d") );
+        List<String> labels = TestUnionSource.checkGraphs(source);
+        assertTrue( labels.contains("d2") );
+        assertFalse( labels.contains("d") );
+        
+        // Wholesale change falls back to a full replace
+        writeLabels(file, "w", "x", "y", "z");
+        dmonitor.process( new FileRecord(file, FileState.MODIFIED) );
+        assertEquals(1, deltas.size());
+        TestUtil.testArray(TestUnionSource.checkGraphs(source), new String[]{"w", "x", "y", "z"});
+        FileUtil.deleteDirectory(dir);
+    }
+    
+    @Test
+    public void testParallelLoad() throws IOException {
+        File dir = Files.createTempDirectory("testparallel").toFile();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            writeLabels(new File(dir, "f" + i + ".ttl"), "label" + i);
+            expected.add("file:f" + i + ".ttl");
+        }
+        SparqlSource source = new UnionDatasetSparqlSource();
+        DatasetMonitor pmonitor = new DatasetMonitor();
+        pmonitor.setProductionMode(true);
+        pmonitor.setLoadThreads(4);
+        pmonitor.setLoadBatchSize(3);
+        pmonitor.setDirectory(dir.getPath());
+        pmonitor.setSparqlSource(source);
+        pmonitor.startup(app);
+        
+        assertEquals(10, pmonitor.getEntries().size());
+        TestUtil.testArray(checkGraphNames(source), expected.toArray(new String[0]));
+        assertEquals(10, TestUnionSource.checkGraphs(source).size());
+        FileUtil.deleteDirectory(dir);
+    }
+    
+    protected void writeLabels(File file, String... labels) throws IOException {
+        Model m = ModelFactory.createDefaultModel();
+        for (String label : labels) {
+            m.createResource("http://localhost/test/def#" + label).addProperty(RDFS.label, label);
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            m.write(out, FileUtils.langTurtle);
+        }
+    }
+    
     protected void waitFor(DatasetMonitor dsmon, String graphname, boolean present) throws InterruptedException {
         for (int t = 0; t < NTRIES; t++) {
             Thread.sleep(MONITOR_CHECK_DELAY);
@@ -12,23 +12,41 @@ package com.epimorphics.appbase.task;
 import static com.epimorphics.json.JsonUtil.getPath;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.jena.atlas.json.JSON;
 import org.apache.jena.atlas.json.JsonObject;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import com.epimorphics.appbase.core.TimerManager;
 import com.epimorphics.appbase.tasks.Action;
 import com.epimorphics.appbase.tasks.ActionExecution;
+import com.epimorphics.appbase.tasks.ActionJsonFactorylet;
 import com.epimorphics.appbase.tasks.ActionManager;
+import com.epimorphics.appbase.tasks.impl.BaseAction;
+import com.epimorphics.appbase.tasks.impl.ParallelAction;
+import com.epimorphics.appbase.tasks.impl.SequenceAction;
 import com.epimorphics.json.JSFullWriter;
 import com.epimorphics.json.JSONWritable;
+import com.epimorphics.json.JsonUtil;
 import com.epimorphics.tasks.ProgressMessage;
 import com.epimorphics.tasks.ProgressMonitorReporter;
 import com.epimorphics.tasks.TaskState;
@@ -100,6 +118,275 @@ public class TestActionManager {
         assertEquals( "Test message", monitor.getMessages().get(1).getMessage() );
     }
     
+    @Test
+    public void testVirtualExecutor() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        BaseAction action = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // finish early
+                }
+                running.decrementAndGet();
+                return parameters;
+            }
+        };
+        action.setName("limited");
+        action.setConfig(ActionJsonFactorylet.MAX_CONCURRENT_KEY, 3);
+        ActionManager am = new ActionManager();
+        am.setExecutor(ActionManager.EXECUTOR_VIRTUAL);
+        am.register(action);
+        
+        // More than the default pool would accept
+        List<ActionExecution> executions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            executions.add( am.runAction(action, createParams("count=" + i)) );
+        }
+        for (ActionExecution ae : executions) {
+            ae.waitForCompletion();
+            assertTrue( ae.getMonitor().succeeded() );
+        }
+        assertTrue(peak.get() <= 3);
+        am.shutdown();
+    }
+    
+    @Test
+    public void testQueue(@TempDir File queueDir) {
+        CountDownLatch release = new CountDownLatch(1);
+        BaseAction action = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // finish early
+                }
+                return parameters;
+            }
+        };
+        action.setName("queued");
+        ActionManager am = new ActionManager();
+        am.setQueueDir(queueDir.getPath());
+        am.setQueueLimits("normal=1");
+        am.register(action);
+        
+        ActionExecution running = am.runAction(action, createParams("count=1"));
+        ActionExecution first = am.runAction(action, createParams("count=2"));
+        ActionExecution second = am.runAction(action, createParams("count=3"));
+        ActionExecution urgent = am.runAction(action, createParams("count=4,@priority=high"));
+        assertEquals(-1, running.getQueuePosition());
+        assertEquals(0, first.getQueuePosition());
+        assertEquals(1, second.getQueuePosition());
+        assertTrue(second.getEstimatedWait() > first.getEstimatedWait());
+        assertEquals(4, queueDir.list().length);
+        
+        second.cancel("no longer needed");
+        assertEquals(-1, second.getQueuePosition());
+        assertEquals(3, queueDir.list().length);
+        
+        release.countDown();
+        for (ActionExecution ae : new ActionExecution[]{running, first, urgent}) {
+            ae.waitForCompletion();
+            assertTrue( ae.getMonitor().succeeded() );
+        }
+        assertEquals(0, queueDir.list().length);
+        am.shutdown();
+    }
+    
+    @Test
+    public void testQueueRecovery(@TempDir File queueDir) throws IOException {
+        JsonObject job = JsonUtil.makeJson("id", "recovered-1", "action", "Test", "name", "Test",
+                "priority", "LOW", "call", createParams("message=Resumed,count=2"));
+        try (OutputStream out = new FileOutputStream( new File(queueDir, "job-000000000007-recovered-1.json") )) {
+            JSON.write(out, job);
+        }
+        Action action = new DummyAction();
+        action.setName("Test");
+        ActionManager am = new ActionManager();
+        am.setQueueDir(queueDir.getPath());
+        am.register(action);
+        
+        assertEquals(1, am.getQueue().recover());
+        ActionExecution ae = am.getExecution("recovered-1");
+        ae.waitForCompletion();
+        assertTrue( ae.getMonitor().succeeded() );
+        assertEquals("Message: Resumed", getPath(ae.getResult(), "result"));
+        am.shutdown();
+    }
+    
+    @Test
+    public void testHistory() throws InterruptedException {
+        Action action = new DummyAction();
+        action.setName("first");
+        Action other = new DummyAction();
+        other.setName("second");
+        ActionManager am = new ActionManager();
+        am.setMaxHistory(5);
+        
+        List<ActionExecution> executions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            executions.add( am.runAction(action, createParams("count=1")) );
+        }
+        Thread.sleep(5);
+        long mark = System.currentTimeMillis();
+        executions.add( am.runAction(other, createParams("count=1")) );
+        executions.add( am.runAction(other, createParams("count=1")) );
+        for (ActionExecution ae : executions) {
+            ae.waitForCompletion();
+        }
+        
+        // Oldest has been discarded
+        assertEquals(null, am.getExecution( executions.get(0).getId() ));
+        assertEquals(5, am.listRecentExecutions(10).size());
+        assertEquals(executions.get(5), am.listRecentExecutions(1).get(0));
+        
+        List<ActionExecution> page = am.listExecutions("first", TaskState.Terminated, 0, 0, 1, 2);
+        assertEquals(List.of(executions.get(2), executions.get(1)), page);
+        assertEquals(2, am.listExecutions(null, null, mark, 0, 0, 10).size());
+        assertEquals(3, am.listExecutions(null, null, 0, mark, 0, 10).size());
+        assertEquals(0, am.listExecutions(null, TaskState.Running, 0, 0, 0, 10).size());
+        am.shutdown();
+    }
+    
+    @Test
+    public void testParallelPolicies() {
+        CountDownLatch release = new CountDownLatch(1);
+        BaseAction slow = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    monitor.reportError("interrupted");
+                }
+                return parameters;
+            }
+        };
+        BaseAction fail = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                return error("failed", monitor);
+            }
+        };
+        Action ok = new DummyAction();
+        ActionManager am = new ActionManager();
+        
+        // Succeeds once one component has, without waiting for the slow one
+        ActionExecution ae = am.runAction( parallel(am, 1, false, fail, ok, slow), createParams("") );
+        ae.waitForCompletion();
+        assertTrue( ae.getMonitor().succeeded() );
+        
+        // Fails on the first failure
+        ae = am.runAction( parallel(am, -1, true, slow, fail), createParams("") );
+        ae.waitForCompletion();
+        assertFalse( ae.getMonitor().succeeded() );
+        
+        // Default waits for all and fails if any fail
+        release.countDown();
+        ae = am.runAction( parallel(am, -1, false, ok, fail, slow), createParams("") );
+        ae.waitForCompletion();
+        assertFalse( ae.getMonitor().succeeded() );
+        assertEquals( 100, ae.getMonitor().getProgress() );
+        ae = am.runAction( parallel(am, -1, false, ok, slow), createParams("") );
+        ae.waitForCompletion();
+        assertTrue( ae.getMonitor().succeeded() );
+        am.shutdown();
+    }
+    
+    @Test
+    public void testCancelAsync() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        BaseAction hang = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    monitor.reportError("interrupted");
+                }
+                return parameters;
+            }
+        };
+        ActionManager am = new ActionManager();
+        ParallelAction par = (ParallelAction) parallel(am, -1, false, hang);
+        par.setName("limited");
+        par.setConfig(ActionJsonFactorylet.MAX_CONCURRENT_KEY, 1);
+        
+        ActionExecution first = am.runAction(par, createParams(""));
+        assertTrue( waitForState(first, TaskState.Running) );
+        first.cancel("Cancelled by test");
+        assertTrue( first.getCompletion().isDone() );
+        
+        // The cancelled execution must not keep hold of the only permit
+        ActionExecution second = am.runAction(par, createParams(""));
+        assertTrue( waitForState(second, TaskState.Running) );
+        release.countDown();
+        second.waitForCompletion();
+        assertTrue( second.getMonitor().succeeded() );
+        am.shutdown();
+    }
+    
+    @Test
+    public void testSequenceContinuation() {
+        BaseAction delayed = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                return parameters;
+            }
+            
+            @Override
+            protected CompletableFuture<JsonObject> doRunAsync(JsonObject parameters, ProgressMonitorReporter monitor) {
+                // Completes on the timer thread, not the execution's own thread
+                CompletableFuture<JsonObject> result = new CompletableFuture<>();
+                TimerManager.get().schedule( () -> result.complete(parameters), 50, TimeUnit.MILLISECONDS );
+                return result;
+            }
+        };
+        AtomicReference<ActionExecution> seen = new AtomicReference<>();
+        BaseAction check = new BaseAction() {
+            @Override
+            protected JsonObject doRun(JsonObject parameters, ProgressMonitorReporter monitor) {
+                seen.set( ActionExecution.current() );
+                return parameters;
+            }
+        };
+        ActionManager am = new ActionManager();
+        SequenceAction seq = new SequenceAction();
+        seq.addComponent(delayed);
+        seq.addComponent(check);
+        seq.resolve(am);
+        
+        ActionExecution ae = am.runAction(seq, createParams(""));
+        ae.waitForCompletion();
+        assertSame(ae, seen.get());
+        am.shutdown();
+    }
+    
+    private boolean waitForState(ActionExecution ae, TaskState state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ae.getMonitor().getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return ae.getMonitor().getState() == state;
+    }
+    
+    private Action parallel(ActionManager am, int required, boolean failFast, Action...components) {
+        ParallelAction par = new ParallelAction();
+        for (Action component : components) {
+            par.addComponent(component);
+        }
+        if (required > 0) {
+            par.setConfig(ActionJsonFactorylet.REQUIRED_KEY, required);
+        }
+        par.setConfig(ActionJsonFactorylet.FAIL_FAST_KEY, failFast);
+        par.resolve(am);
+        return par;
+    }
+    
     public static void dumpState(ActionExecution ae) {
         ProgressMonitorReporter monitor = ae.getMonitor();
         for (ProgressMessage msg : monitor.getMessages()) {
@@ -0,0 +1,130 @@
+/******************************************************************
+ * File:        TestTraceStore.java
+ * Created by:  Dave Reynolds
+ * Created on:  17 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.task;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.epimorphics.appbase.tasks.TraceStore;
+
+public class TestTraceStore {
+
+    @Test
+    public void testStore(@TempDir File dir) throws IOException {
+        TraceStore store = new TraceStore(dir, 200, 0);
+        for (int i = 0; i < 50; i++) {
+            store.append("trace-" + i, i, trace(i));
+        }
+        assertEquals("trace 7", text( store.find("trace-7") ));
+        store.flush();
+        assertTrue( dir.list( (d, name) -> name.endsWith(".idx") ).length > 1 );
+        checkContents(store);
+        store.close();
+        
+        // Torn index record at the end is dropped on reopening
+        File[] indexes = dir.listFiles( (d, name) -> name.endsWith(".idx") );
+        try (FileOutputStream out = new FileOutputStream(indexes[indexes.length - 1], true)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+        store = new TraceStore(dir, 200, 0);
+        checkContents(store);
+        store.append("trace-50", 50, trace(50));
+        store.flush();
+        assertEquals("trace 50", text( store.find("trace-50") ));
+        assertEquals("trace 49", text( store.tail(2).get(0) ));
+        store.close();
+    }
+    
+    @Test
+    public void testRetention(@TempDir File dir) {
+        TraceStore store = new TraceStore(dir, 200, 0);
+        for (int i = 0; i < 20; i++) {
+            store.append("trace-" + i, i, trace(i));
+        }
+        store.close();
+        long old = System.currentTimeMillis() - 10000;
+        for (File f : dir.listFiles()) {
+            f.setLastModified(old);
+        }
+        
+        store = new TraceStore(dir, 200, 5000);
+        assertNull( store.find("trace-0") );
+        assertEquals(0, dir.list().length);
+        store.append("trace-20", 20, trace(20));
+        store.flush();
+        assertEquals("trace 20", text( store.find("trace-20") ));
+        store.close();
+    }
+    
+    @Test
+    public void testWriteFailure(@TempDir File dir) {
+        AtomicBoolean fail = new AtomicBoolean(false);
+        TraceStore store = new TraceStore(dir, TraceStore.DEFAULT_SEGMENT_SIZE, 0) {
+            @Override
+            protected void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+                // Fail once the data has been written, leaving it without an index record
+                if (fail.get() && channel == index) {
+                    throw new IOException("Simulated write failure");
+                }
+                super.writeFully(channel, buffer);
+            }
+        };
+        store.append("trace-0", 0, trace(0));
+        assertTrue( store.flush() );
+        File dat = dir.listFiles( (d, name) -> name.endsWith(".dat") )[0];
+        long length = dat.length();
+        
+        fail.set(true);
+        store.append("trace-1", 1, trace(1));
+        assertFalse( store.flush() );
+        assertEquals(length, dat.length());
+        assertNull( store.find("trace-1") );
+        
+        fail.set(false);
+        store.append("trace-2", 2, trace(2));
+        assertTrue( store.flush() );
+        assertEquals("trace 2", text( store.find("trace-2") ));
+        store.close();
+    }
+    
+    private void checkContents(TraceStore store) {
+        for (int i = 0; i < 50; i++) {
+            assertEquals("trace " + i, text( store.find("trace-" + i) ));
+        }
+        assertNull( store.find("trace-none") );
+        List<byte[]> tail = store.tail(10);
+        assertEquals(10, tail.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("trace " + (40 + i), text( tail.get(i) ));
+        }
+    }
+    
+    private byte[] trace(int i) {
+        return ("trace " + i).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private String text(byte[] trace) {
+        return trace == null ? null : new String(trace, StandardCharsets.UTF_8);
+    }
+}